@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import org.nuxeo.s3utils.S3HandlerDescriptor;
+import org.nuxeo.s3utils.S3HandlerImpl;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+
+/**
+ * S3HandlerImpl running without the Nuxeo runtime: static credentials, everything else comes from the descriptor
+ * (see {@link Descriptor#withEndpoint(String)} to send the requests to a LocalS3Server).
+ *
+ * @since 3.2.1
+ */
+public class BenchS3Handler extends S3HandlerImpl {
+
+    protected static final AWSCredentialsProvider CREDENTIALS = new AWSStaticCredentialsProvider(
+            new BasicAWSCredentials("AKIDBENCH", "bench/secret/key"));
+
+    @Override
+    protected AWSCredentialsProvider getCredentialsProvider() {
+        return CREDENTIALS;
+    }
+
+    /**
+     * @param desc
+     * @return an initialized handler
+     */
+    public static BenchS3Handler create(Descriptor desc) {
+        BenchS3Handler handler = new BenchS3Handler();
+        handler.initialize(desc);
+        return handler;
+    }
+
+    /**
+     * Descriptor built in Java instead of XML
+     */
+    public static class Descriptor extends S3HandlerDescriptor {
+
+        public Descriptor(String name, String bucket) {
+            this.name = name;
+            this.bucket = bucket;
+            region = "eu-west-3";
+        }
+
+        /**
+         * Sends the requests to this endpoint, with path-style access. Without an endpoint, the AWS endpoint of the
+         * region is used (no request is sent when only presigning URLs)
+         */
+        public Descriptor withEndpoint(String value) {
+            endpoint = value;
+            pathStyleAccess = "true";
+            return this;
+        }
+
+        public Descriptor withRangeCacheSize(String value) {
+            rangeCacheSize = value;
+            return this;
+        }
+
+        public Descriptor withSequentialStreamPrefetch(String value) {
+            sequentialStreamPrefetch = value;
+            return this;
+        }
+
+        public Descriptor withLocalUrlSigner(String value) {
+            localUrlSigner = value;
+            return this;
+        }
+
+        public Descriptor withPresignedUrlCacheSize(String value) {
+            presignedUrlCacheSize = value;
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.s3utils.BlobKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the blob keys of the S3UtilsBlobProvider (<code>providerId:bucket:objectKey</code>), done for every
+ * blob read.
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlobKeyBenchmark {
+
+    protected static final String PROVIDER_ID = "s3-utils-provider";
+
+    @Param({ "file.pdf", "a/rather/deep/folder/hierarchy/with/a/long-file-name-2023-12-31T23-59-59.pdf" })
+    public String objectKey;
+
+    protected String fullKey;
+
+    @Setup
+    public void setup() {
+        fullKey = BlobKey.buildFullKey(PROVIDER_ID, "my-bucket", objectKey);
+    }
+
+    @Benchmark
+    public BlobKey parse() {
+        return new BlobKey(PROVIDER_ID, fullKey);
+    }
+
+    @Benchmark
+    public String build() {
+        return BlobKey.buildFullKey(PROVIDER_ID, "my-bucket", objectKey);
+    }
+
+}
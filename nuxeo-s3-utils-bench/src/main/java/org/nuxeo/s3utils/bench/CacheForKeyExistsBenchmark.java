@@ -0,0 +1,118 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.s3utils.CacheForKeyExists;
+import org.nuxeo.s3utils.S3HandlerImpl;
+import org.nuxeo.s3utils.S3UtilsMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups and inserts in the cache of existing keys, alone and under contention. The cache holds its default 500
+ * entries, half of the keys looked up are in it. No call to S3.
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheForKeyExistsBenchmark {
+
+    protected static final String BUCKET = "bench-bucket";
+
+    protected static final int KEY_COUNT = 1000;
+
+    protected CacheForKeyExists cache;
+
+    protected String[] keys;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        protected int index;
+
+        protected int next() {
+            index = (index + 1) % KEY_COUNT;
+            return index;
+        }
+    }
+
+    @Setup
+    public void setup() {
+
+        cache = new CacheForKeyExists(new S3HandlerImpl(), new S3UtilsMetrics("bench"));
+        keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "folder/sub-folder/object-" + i + ".pdf";
+            if (i % 2 == 0) {
+                cache.putInCache(BUCKET, keys[i], true);
+            }
+        }
+    }
+
+    @Benchmark
+    public Boolean lookup(Cursor cursor) {
+        return cache.getFromCache(BUCKET, keys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Boolean lookupContended(Cursor cursor) {
+        return cache.getFromCache(BUCKET, keys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void insertContended(Cursor cursor) {
+        cache.putInCache(BUCKET, keys[cursor.next()], true);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public Boolean mixedLookup(Cursor cursor) {
+        return cache.getFromCache(BUCKET, keys[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedInsert(Cursor cursor) {
+        int i = cursor.next();
+        cache.putInCache(BUCKET, keys[i], i % 2 == 0);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.s3utils.test.LocalS3Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * <code>getObjectMetadataJson</code>:
+ * <ul>
+ * <li><code>serialize</code>: conversion to JSON only, the metadata is not fetched from S3</li>
+ * <li><code>headAndSerialize</code>: HEAD request to a {@link LocalS3Server}, then conversion</li>
+ * </ul>
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectMetadataJsonBenchmark {
+
+    protected static final String BUCKET = "bench-bucket";
+
+    protected static final String KEY = "folder/metadata.pdf";
+
+    protected LocalS3Server server;
+
+    protected BenchS3Handler handler;
+
+    protected BenchS3Handler noS3Handler;
+
+    @Setup
+    public void setup() throws IOException {
+
+        server = new LocalS3Server();
+        server.putObject(BUCKET, KEY, "Some content".getBytes(StandardCharsets.UTF_8), "application/pdf");
+        handler = BenchS3Handler.create(
+                new BenchS3Handler.Descriptor("bench-metadata", BUCKET).withEndpoint(server.getEndpoint()));
+
+        ObjectMetadata metadata = handler.getObjectMetadata(KEY);
+        metadata.setLastModified(new Date());
+        metadata.addUserMetadata("author", "jdoe");
+        metadata.addUserMetadata("department", "legal");
+        noS3Handler = new BenchS3Handler() {
+            @Override
+            public ObjectMetadata getObjectMetadata(String inKey) {
+                return metadata;
+            }
+        };
+        noS3Handler.initialize(new BenchS3Handler.Descriptor("bench-metadata-no-s3", BUCKET));
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.cleanup();
+        noS3Handler.cleanup();
+        server.close();
+    }
+
+    @Benchmark
+    public JsonNode serialize() throws JsonProcessingException {
+        return noS3Handler.getObjectMetadataJson(KEY);
+    }
+
+    @Benchmark
+    public JsonNode headAndSerialize() throws JsonProcessingException {
+        return handler.getObjectMetadataJson(KEY);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Presigned URLs built by the handler (signing is local, no request is sent):
+ * <ul>
+ * <li><code>sdk</code>: signed by the AWS SDK (<code>localUrlSigner</code> false)</li>
+ * <li><code>local</code>: signed by S3PresignedUrlSigner</li>
+ * <li><code>cached</code>: local signer and presigned URL cache, always hit here</li>
+ * </ul>
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresignedUrlBenchmark {
+
+    @Param({ "sdk", "local", "cached" })
+    public String signer;
+
+    protected BenchS3Handler handler;
+
+    @Setup
+    public void setup() {
+
+        BenchS3Handler.Descriptor desc = new BenchS3Handler.Descriptor("bench-presign", "my-bucket");
+        desc.withLocalUrlSigner(String.valueOf(!"sdk".equals(signer)));
+        if ("cached".equals(signer)) {
+            desc.withPresignedUrlCacheSize("1000");
+        }
+        handler = BenchS3Handler.create(desc);
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.cleanup();
+    }
+
+    @Benchmark
+    public String presign() {
+        return handler.buildPresignedUrl("my-bucket", "folder/the file.pdf", 1200, "application/pdf",
+                "attachment; filename=\"the file.pdf\"");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String presignContended() {
+        return presign();
+    }
+
+}
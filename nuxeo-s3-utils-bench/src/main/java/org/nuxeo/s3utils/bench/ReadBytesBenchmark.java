@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.s3utils.test.LocalS3Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>readBytes</code> of 64KB at a random offset of an object of a {@link LocalS3Server}, without
+ * (<code>rangeCacheSize</code> = 0) or with the block cache (the whole object fits in it after the warmup).
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class ReadBytesBenchmark {
+
+    protected static final String BUCKET = "bench-bucket";
+
+    protected static final String KEY = "folder/big-object.bin";
+
+    protected static final int READ_SIZE = 64 * 1024;
+
+    @Param({ "67108864" })
+    public int objectSize;
+
+    @Param({ "0", "128MB" })
+    public String rangeCacheSize;
+
+    protected LocalS3Server server;
+
+    protected BenchS3Handler handler;
+
+    @Setup
+    public void setup() throws IOException {
+
+        byte[] content = new byte[objectSize];
+        new Random(42).nextBytes(content);
+        server = new LocalS3Server();
+        server.putObject(BUCKET, KEY, content, null);
+
+        handler = BenchS3Handler.create(new BenchS3Handler.Descriptor("bench-read-bytes", BUCKET).withEndpoint(
+                server.getEndpoint()).withRangeCacheSize(rangeCacheSize));
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.cleanup();
+        server.close();
+    }
+
+    @Benchmark
+    public byte[] readBytes() throws IOException {
+        long start = ThreadLocalRandom.current().nextLong(objectSize - READ_SIZE);
+        return handler.readBytes(KEY, start, READ_SIZE);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.s3utils.test.LocalS3Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a whole object from a {@link LocalS3Server} with <code>getSequenceInputStream</code>, without
+ * (<code>prefetch</code> = 0) or with prefetching. Divide the object size by the time to get the throughput.
+ *
+ * @since 3.2.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx2g" })
+public class SequentialStreamBenchmark {
+
+    protected static final String BUCKET = "bench-bucket";
+
+    protected static final String KEY = "folder/big-object.bin";
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({ "67108864" })
+    public int objectSize;
+
+    @Param({ "4194304" })
+    public long pieceSize;
+
+    @Param({ "0", "4" })
+    public int prefetch;
+
+    protected LocalS3Server server;
+
+    protected BenchS3Handler handler;
+
+    protected byte[] buffer = new byte[BUFFER_SIZE];
+
+    @Setup
+    public void setup() throws IOException {
+
+        byte[] content = new byte[objectSize];
+        new Random(42).nextBytes(content);
+        server = new LocalS3Server();
+        server.putObject(BUCKET, KEY, content, null);
+
+        handler = BenchS3Handler.create(new BenchS3Handler.Descriptor("bench-sequential-stream", BUCKET).withEndpoint(
+                server.getEndpoint()).withSequentialStreamPrefetch(String.valueOf(prefetch)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        handler.cleanup();
+        server.close();
+    }
+
+    @Benchmark
+    public long sequentialStream() throws IOException {
+
+        long total = 0;
+        try (InputStream stream = handler.getSequenceInputStream(KEY, pieceSize)) {
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                total += count;
+            }
+        }
+        if (total != objectSize) {
+            throw new IllegalStateException("Read " + total + " bytes, expected " + objectSize);
+        }
+        return total;
+    }
+
+}
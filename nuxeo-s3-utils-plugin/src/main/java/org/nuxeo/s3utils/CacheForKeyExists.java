@@ -18,15 +18,14 @@
  */
 package org.nuxeo.s3utils;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-
 import org.apache.commons.lang3.StringUtils;
 
 /**
  * This class caches S3 keys and their existence on S3 for a given S3Handler. This is to avoid checking a key too often
+ * <br>
+ * The class is thread safe (the same instance is used by all the callers of a S3Handler). Entries are stored in a
+ * lock-striped LRU map ({@link StripedLRUMap}), one entry per key holding both the flag and the time it was checked.
+ * Expired entries are removed lazily, when they are read, or evicted as least recently used ones.
  *
  * @since 7.10
  */
@@ -36,21 +35,33 @@ public class CacheForKeyExists {
 
     protected static final int DURATION_IN_CACHE_MS = 600000; // 10 minutes (in milliseconds)
 
-    protected String defaultBucket;
-
-    protected int maxInCache = MAX_KEYS;
+    protected volatile String defaultBucket;
 
-    protected int durationInCache = DURATION_IN_CACHE_MS;
+    protected volatile int maxInCache = MAX_KEYS;
 
-    protected LinkedHashMap<String, Boolean> cachedKeysAndExist = new LinkedHashMap<String, Boolean>();
+    protected volatile int durationInCache = DURATION_IN_CACHE_MS;
 
-    protected LinkedHashMap<String, Long> cachedKeysAndSince = new LinkedHashMap<String, Long>();
+    protected StripedLRUMap<String, KeyExists> cachedKeys = new StripedLRUMap<>(MAX_KEYS);
 
     protected S3Handler s3Handler;
 
+    // null => hits and misses are not counted
+    protected S3UtilsMetrics metrics;
+
     public CacheForKeyExists(S3Handler handler) {
 
+        this(handler, null);
+    }
+
+    /**
+     * @param handler
+     * @param metrics where the hits and misses are counted (cache <code>keyExists</code>), can be null
+     * @since 3.2.1
+     */
+    public CacheForKeyExists(S3Handler handler, S3UtilsMetrics metrics) {
+
         s3Handler = handler;
+        this.metrics = metrics;
 
         defaultBucket = s3Handler.getBucket();
     }
@@ -62,8 +73,7 @@ public class CacheForKeyExists {
      */
     public void cleanup() {
 
-        cachedKeysAndExist = null;
-        cachedKeysAndSince = null;
+        cachedKeys.clear();
 
         s3Handler = null;
     }
@@ -72,7 +82,8 @@ public class CacheForKeyExists {
         if (StringUtils.isBlank(bucket)) {
             bucket = defaultBucket;
         }
-        return bucket + objectKey;
+        // A bucket name cannot contain a "/"
+        return bucket + "/" + objectKey;
     }
 
     /*
@@ -84,16 +95,12 @@ public class CacheForKeyExists {
         int result = -1;
 
         if (StringUtils.isNotBlank(cacheKey)) {
-            Boolean exists = cachedKeysAndExist.get(cacheKey);
-            if (exists != null) {
-                Long since = cachedKeysAndSince.get(cacheKey);
-                long timeNow = System.currentTimeMillis();
-
-                if ((timeNow - since) >= durationInCache) {
-                    cachedKeysAndExist.remove(cacheKey);
-                    cachedKeysAndSince.remove(cacheKey);
+            KeyExists entry = cachedKeys.get(cacheKey);
+            if (entry != null) {
+                if ((System.currentTimeMillis() - entry.since) >= durationInCache) {
+                    cachedKeys.remove(cacheKey, entry);
                 } else {
-                    result = exists ? 1 : 0;
+                    result = entry.exists ? 1 : 0;
                 }
             }
         }
@@ -105,40 +112,31 @@ public class CacheForKeyExists {
     protected void addToCachedKeys(String cacheKey, boolean exists) {
 
         if (StringUtils.isNotBlank(cacheKey)) {
-            if (cachedKeysAndExist.size() >= maxInCache) {
-
-                Entry<String, Long> current;
-                long timeNow = System.currentTimeMillis();
-                Iterator<Map.Entry<String, Long>> it = cachedKeysAndSince.entrySet().iterator();
-                while (it.hasNext()) {
-                    current = it.next(); // Must be called before removing
-                    Long since = current.getValue();
-                    if ((timeNow - since) >= durationInCache) {
-                        it.remove();
-                        cachedKeysAndExist.remove(current.getKey());
-                    }
-                }
-
-                // Still something? Remove a few...
-                if (cachedKeysAndExist.size() >= maxInCache) {
-                    int howMany = (int) (maxInCache * 0.2);
-                    String[] keys = new String[howMany];
-                    Iterator<Map.Entry<String, Boolean>> iterator = cachedKeysAndExist.entrySet().iterator();
-                    for (int i = 0; i < howMany; ++i) {
-                        keys[i] = iterator.next().getKey();
-                    }
-
-                    for (String oneKey : keys) {
-                        cachedKeysAndExist.remove(oneKey);
-                        cachedKeysAndSince.remove(oneKey);
-                    }
-                }
-            }
+            cachedKeys.put(cacheKey, new KeyExists(exists, System.currentTimeMillis()));
+        }
+    }
 
-            cachedKeysAndExist.put(cacheKey, exists);
-            cachedKeysAndSince.put(cacheKey, System.currentTimeMillis());
+    /**
+     * Stores the existence of a key, checked by the caller (after uploading or deleting an object for example)
+     *
+     * @param bucket
+     * @param objectKey
+     * @param exists
+     * @since 3.2.1
+     */
+    public void putInCache(String bucket, String objectKey, boolean exists) {
+        addToCachedKeys(buildCachekey(bucket, objectKey), exists);
+    }
 
-        }
+    /**
+     * Removes the key from the cache, so the next check calls S3
+     *
+     * @param bucket
+     * @param objectKey
+     * @since 3.2.1
+     */
+    public void invalidate(String bucket, String objectKey) {
+        cachedKeys.remove(buildCachekey(bucket, objectKey));
     }
 
     /**
@@ -166,6 +164,28 @@ public class CacheForKeyExists {
         return isInCache(null, objectKey);
     }
 
+    /**
+     * Returns the cached existence of the key, or null if it is not in the cache. Unlike
+     * {@link #existsKey(String, String)}, never calls S3.
+     *
+     * @param bucket
+     * @param objectKey
+     * @return true/false if the key is in the cache, null if it is not
+     * @since 3.2.1
+     */
+    public Boolean getFromCache(String bucket, String objectKey) {
+
+        int inCache = existsKeyCheckInCache(buildCachekey(bucket, objectKey));
+        countLookup(inCache);
+        return inCache == -1 ? null : inCache == 1;
+    }
+
+    protected void countLookup(int inCache) {
+        if (metrics != null) {
+            metrics.cacheLookup("keyExists", inCache != -1);
+        }
+    }
+
     /**
      * Checks if the key exists on S3, after first checking if it is in the cache
      * <p>
@@ -203,11 +223,12 @@ public class CacheForKeyExists {
 
             String bucketAndKey = buildCachekey(bucket, objectKey);
             int inCache = existsKeyCheckInCache(bucketAndKey);
+            countLookup(inCache);
             if (inCache != -1) {
                 exists = inCache == 1;
             } else {
-                s3Handler.setBucket(bucket);
-                exists = s3Handler.existsKeyInS3(objectKey);
+                // Do not change the bucket of the handler, it is shared
+                exists = s3Handler.existsKeyInS3(bucket, objectKey);
                 addToCachedKeys(bucketAndKey, exists);
             }
         }
@@ -222,7 +243,7 @@ public class CacheForKeyExists {
      * @since 8.2
      */
     public int getCacheCount() {
-        return cachedKeysAndExist.size();
+        return cachedKeys.size();
     }
 
     /**
@@ -253,6 +274,7 @@ public class CacheForKeyExists {
      */
     public void setMaxInCache(int maxInCache) {
         this.maxInCache = maxInCache <= 0 ? MAX_KEYS : maxInCache;
+        cachedKeys.setMaxSize(this.maxInCache);
     }
 
     /**
@@ -275,4 +297,16 @@ public class CacheForKeyExists {
         durationInCache = durationInCacheMillisecs <= 0 ? DURATION_IN_CACHE_MS : durationInCacheMillisecs;
     }
 
+    protected static class KeyExists {
+
+        protected final boolean exists;
+
+        protected final long since;
+
+        protected KeyExists(boolean exists, long since) {
+            this.exists = exists;
+            this.since = since;
+        }
+    }
+
 }
@@ -36,4 +36,9 @@ public class Constants {
     
     public static final int DEFAULT_SIGNED_URL_DURATION = 1200;// 20 minutes
 
+    /**
+     * @since 3.2.1
+     */
+    public static final int DEFAULT_BATCH_CONCURRENCY = 8;
+
 }
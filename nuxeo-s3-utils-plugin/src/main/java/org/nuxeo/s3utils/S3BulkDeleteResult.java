@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Result of {@link S3Handler#deleteFiles(java.util.Collection)}: the number of deleted keys, and the keys that could not
+ * be deleted, with the error returned by S3.
+ * <br>
+ * Notice S3 does not return an error when deleting a key that does not exist, it is counted as deleted.
+ * <br>
+ * The class is thread safe (batches are deleted in parallel).
+ *
+ * @since 3.2.1
+ */
+public class S3BulkDeleteResult {
+
+    protected final AtomicLong deletedCount = new AtomicLong();
+
+    protected final Map<String, String> errors = new ConcurrentHashMap<>();
+
+    public void addDeleted(long count) {
+        deletedCount.addAndGet(count);
+    }
+
+    public void addError(String key, String message) {
+        errors.put(key, message == null ? "" : message);
+    }
+
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    /**
+     * @return the keys that could not be deleted, with the error
+     */
+    public Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(errors);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+}
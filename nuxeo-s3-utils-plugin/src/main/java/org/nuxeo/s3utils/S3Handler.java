@@ -20,7 +20,14 @@ package org.nuxeo.s3utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -118,6 +125,61 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public Blob downloadFile(String inKey, String inFileName);
 
+    /**
+     * Uploads the stream to S3, using the "Current bucket", without copying it to a local file first. Streams of known
+     * length below the multipart threshold are sent in a single request, bigger ones (or of unknown length) are sent
+     * in parts, uploaded in parallel. The memory used is bounded by the <code>streamUploadBuffers</code> configuration
+     * (see S3StreamUpload).
+     * <br>
+     * The caller is responsible for closing the stream.
+     *
+     * @param inKey
+     * @param inStream
+     * @param length the length of the stream, -1 if unknown
+     * @param contentType can be null
+     * @return true if the stream could be uploaded with no error
+     * @throws NuxeoException
+     * @since 3.2.1
+     */
+    public boolean sendStream(String inKey, InputStream inStream, long length, String contentType)
+            throws NuxeoException;
+
+    /**
+     * Asynchronous version of {@link #sendFile(String, File)}. The upload runs in the transfer threads of the handler,
+     * the calling thread is not blocked.
+     * <br>
+     * The future completes with <code>true</code> when the upload is done, or exceptionally with a NuxeoException.
+     *
+     * @param inKey
+     * @param inFile
+     * @return a future completed when the upload is done
+     * @since 3.2.1
+     */
+    public CompletableFuture<Boolean> sendFileAsync(String inKey, File inFile);
+
+    /**
+     * Asynchronous version of {@link #downloadFile(String, File)}. The download runs in the transfer threads of the
+     * handler, the calling thread is not blocked.
+     * <br>
+     * The future completes with the Blob of the downloaded file, or exceptionally with a NuxeoException.
+     *
+     * @param inKey
+     * @param inDestFile
+     * @return a future completed when the download is done
+     * @since 3.2.1
+     */
+    public CompletableFuture<Blob> downloadFileAsync(String inKey, File inDestFile);
+
+    /**
+     * Asynchronous version of {@link #downloadFile(String, String)}
+     *
+     * @param inKey
+     * @param inFileName
+     * @return a future completed when the download is done
+     * @since 3.2.1
+     */
+    public CompletableFuture<Blob> downloadFileAsync(String inKey, String inFileName);
+
     /**
      * Get a SequenceInputStream to the object. The goal of using a SequenceInputStream is to avoid time out while
      * reading large, big objects.
@@ -143,11 +205,38 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public SequenceInputStream getSequenceInputStream(String key, long pieceSize) throws IOException;
 
+    /**
+     * Same as {@link #getSequenceInputStream(String, long)}, but keeps up to <code>prefetch</code> ranged GETs in
+     * flight ahead of the reader (see S3ObjectPrefetchingStream). The memory used is bounded by the
+     * <code>sequentialStreamMaxMemory</code> configuration of the handler.
+     * <br>
+     * If <code>prefetch</code> is <= 0, this is the same as {@link #getSequenceInputStream(String, long)} with no
+     * prefetch.
+     *
+     * @param key
+     * @param pieceSize
+     * @param prefetch
+     * @return the SequenceInputStream
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public SequenceInputStream getSequenceInputStream(String key, long pieceSize, int prefetch) throws IOException;
+
     /**
      * @see S3ObjectStreaming#readBytes(String, long, long)
      */
     public byte[] readBytes(String key, long start, long len) throws IOException;
 
+    /**
+     * @see S3ObjectStreaming#getSeekableChannel(String)
+     */
+    public SeekableByteChannel getSeekableChannel(String key) throws IOException;
+
+    /**
+     * @see S3ObjectStreaming#getInputStream(String)
+     */
+    public InputStream getInputStream(String key) throws IOException;
+
     /**
      * Deletes the file from S3 using the "current bucket", returns true if succesful
      *
@@ -158,6 +247,20 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public boolean deleteFile(String inKey) throws NuxeoException;
 
+    /**
+     * Deletes the files from S3 using the "current bucket". Keys are sent by batches of 1000 (the S3 limit for a
+     * DeleteObjects request), and the batches are sent in parallel, at most <code>batchConcurrency</code> at a time
+     * (see the handler configuration).
+     * <br>
+     * Errors do not stop the deletion, the keys that could not be deleted are returned in the result.
+     *
+     * @param inKeys
+     * @return the result, with the number of deleted keys and the errors
+     * @throws NuxeoException
+     * @since 3.2.1
+     */
+    public S3BulkDeleteResult deleteFiles(Collection<String> inKeys) throws NuxeoException;
+
     /**
      * Builds a temporary signed URL for the object and returns it.
      * <p>
@@ -205,6 +308,27 @@ public interface S3Handler extends S3ObjectStreaming {
     public String buildPresignedUrl(String inBucket, String inKey, int durationInSeconds, String contentType,
             String contentDisposition) throws NuxeoException;
 
+    /**
+     * Builds temporary signed URLs for several objects, with the same parameters, in one call. All the URLs have the
+     * same expiration.
+     * <p>
+     * Uses <code>inBucket</code>. If it is empty, uses the "current bucket"
+     * <p>
+     * If <code>durationInSeconds</code> is <= 0, the duration set in the XML configuration is used (or the default
+     * duration)
+     *
+     * @param inBucket
+     * @param inKeys
+     * @param durationInSeconds
+     * @param contentType
+     * @param contentDisposition
+     * @return a map of key to URL, in the order of <code>inKeys</code>
+     * @throws NuxeoException
+     * @since 3.2.1
+     */
+    public Map<String, String> buildPresignedUrls(String inBucket, List<String> inKeys, int durationInSeconds,
+            String contentType, String contentDisposition) throws NuxeoException;
+
     /**
      * Returns true if the key exists in the current bucket.
      * <p>
@@ -249,6 +373,44 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public boolean existsKey(String bucket, String inKey);
 
+    /**
+     * Checks the existence of several keys in the bucket (or the "current bucket" if <code>bucket</code> is empty),
+     * with as few requests as possible:
+     * <ul>
+     * <li>If <code>useCache</code> is true, keys found in the CacheForKeyExists are not checked on S3</li>
+     * <li>When many keys are in the same "folder", the folder is listed (1 request for 1000 objects) instead of sending
+     * one HEAD per key</li>
+     * <li>Other keys are checked with HEAD requests, in parallel (at most <code>batchConcurrency</code> at a time, see
+     * the handler configuration)</li>
+     * </ul>
+     * The results are stored in the CacheForKeyExists (if the handler uses it).
+     *
+     * @param bucket
+     * @param inKeys
+     * @param useCache
+     * @return a map of key to exists, in the order of <code>inKeys</code>
+     * @since 3.2.1
+     */
+    public Map<String, Boolean> existsKeys(String bucket, Collection<String> inKeys, boolean useCache);
+
+    /**
+     * Asynchronous version of {@link #existsKey(String, String)}. If the answer is in the CacheForKeyExists, the
+     * returned future is already completed.
+     *
+     * @param bucket
+     * @param inKey
+     * @return a future completed with true if the key exists
+     * @since 3.2.1
+     */
+    public CompletableFuture<Boolean> existsKeyAsync(String bucket, String inKey);
+
+    /**
+     * Same as <code>existsKeyAsync(null, inKey)</code>, using the "current bucket"
+     *
+     * @since 3.2.1
+     */
+    public CompletableFuture<Boolean> existsKeyAsync(String inKey);
+
     /**
      * Gets the object metadata without fetching the object itself,
      * as returned by AWS SDK
@@ -259,6 +421,16 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public ObjectMetadata getObjectMetadata(String inKey);
 
+    /**
+     * Asynchronous version of {@link #getObjectMetadata(String)}. The future completes exceptionally with a
+     * NuxeoException if the metadata cannot be fetched.
+     *
+     * @param inKey
+     * @return a future completed with the metadata
+     * @since 3.2.1
+     */
+    public CompletableFuture<ObjectMetadata> getObjectMetadataAsync(String inKey);
+
     /**
      * Gets the object metadata without fetching the object itself.
      * Values returned are whatever is stored as system metadata,
@@ -278,6 +450,33 @@ public interface S3Handler extends S3ObjectStreaming {
      */
     public JsonNode getObjectMetadataJson(String inKey) throws JsonProcessingException;
 
+    /**
+     * Returns the map used to build the JSON returned by {@link #getObjectMetadataJson(String)}: all the system
+     * metadata plus "bucketName", "objectKey" and "userMetadata".
+     *
+     * @param bucket
+     * @param inKey
+     * @param metadata
+     * @return the map
+     * @since 3.2.1
+     */
+    public Map<String, Object> buildMetadataMap(String bucket, String inKey, ObjectMetadata metadata);
+
+    /**
+     * Gets the metadata of several objects in the "current bucket". The HEAD requests are sent in parallel (at most
+     * <code>batchConcurrency</code> at a time, see the handler configuration), and the consumer is called in the order
+     * of <code>inKeys</code>, in the calling thread, as soon as the result is available. So the caller can stream the
+     * results, there is no need to hold all of them in memory.
+     * <br>
+     * If a key does not exist, the consumer receives <code>null</code>. Any other error is thrown (as a
+     * NuxeoException).
+     *
+     * @param inKeys
+     * @param consumer receives the key and its metadata
+     * @since 3.2.1
+     */
+    public void getObjectMetadata(Collection<String> inKeys, BiConsumer<String, ObjectMetadata> consumer);
+
     /**
      * Return the current bucket
      *
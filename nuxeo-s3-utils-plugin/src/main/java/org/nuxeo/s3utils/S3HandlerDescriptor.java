@@ -19,12 +19,17 @@
 package org.nuxeo.s3utils;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.utils.SizeUtils;
 import org.nuxeo.common.xmap.annotation.XNode;
 //import org.nuxeo.common.xmap.annotation.XNodeMap;
 import org.nuxeo.common.xmap.annotation.XObject;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.aws.AWSConfigurationService;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.RetryMode;
 import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 
 /**
@@ -49,6 +54,81 @@ import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
  *     <!-- 16MB (16777216) -->
  *     <multipartUploadThreshold>${nuxeo.aws.s3utils.multipartUploadThreshold:=}</multipartUploadThreshold>
  *     
+ *     <!-- Number of ranged GETs in flight ahead of the reader in getSequenceInputStream. 0 (default) => no prefetch -->
+ *     <sequentialStreamPrefetch>${nuxeo.aws.s3utils.sequentialStreamPrefetch:=}</sequentialStreamPrefetch>
+ *     <!-- Max. memory used by each prefetching stream. Default 64MB -->
+ *     <sequentialStreamMaxMemory>${nuxeo.aws.s3utils.sequentialStreamMaxMemory:=}</sequentialStreamMaxMemory>
+ *     
+ *     <!-- Block cache for readBytes. 0 (default) => no cache -->
+ *     <rangeCacheSize>${nuxeo.aws.s3utils.rangeCacheSize:=}</rangeCacheSize>
+ *     <!-- Default 256KB -->
+ *     <rangeCacheBlockSize>${nuxeo.aws.s3utils.rangeCacheBlockSize:=}</rangeCacheBlockSize>
+ *     <!-- true => blocks are stored in direct (off-heap) buffers. Default false -->
+ *     <rangeCacheOffHeap>${nuxeo.aws.s3utils.rangeCacheOffHeap:=}</rangeCacheOffHeap>
+ *     <!-- Seconds during which cached blocks are used without checking the ETag of the object. Default 60 -->
+ *     <rangeCacheETagTrustDuration>${nuxeo.aws.s3utils.rangeCacheETagTrustDuration:=}</rangeCacheETagTrustDuration>
+ *     
+ *     <!-- Concurrent HEAD requests for the same object are sent only once. Default true -->
+ *     <coalesceHeadRequests>${nuxeo.aws.s3utils.coalesceHeadRequests:=}</coalesceHeadRequests>
+ *     
+ *     <!-- Max. number of requests sent in parallel by batch methods (deleteFiles, ...). Default 8 -->
+ *     <batchConcurrency>${nuxeo.aws.s3utils.batchConcurrency:=}</batchConcurrency>
+ *     
+ *     <!-- HTTP client. No values => Use the default AWS SDK config (com.amazonaws.ClientConfiguration) -->
+ *     <maxConnections>${nuxeo.aws.s3utils.maxConnections:=}</maxConnections>
+ *     <!-- All durations in milliseconds -->
+ *     <connectionTTL>${nuxeo.aws.s3utils.connectionTTL:=}</connectionTTL>
+ *     <connectionMaxIdle>${nuxeo.aws.s3utils.connectionMaxIdle:=}</connectionMaxIdle>
+ *     <connectionTimeout>${nuxeo.aws.s3utils.connectionTimeout:=}</connectionTimeout>
+ *     <socketTimeout>${nuxeo.aws.s3utils.socketTimeout:=}</socketTimeout>
+ *     <requestTimeout>${nuxeo.aws.s3utils.requestTimeout:=}</requestTimeout>
+ *     <tcpKeepAlive>${nuxeo.aws.s3utils.tcpKeepAlive:=}</tcpKeepAlive>
+ *     <useReaper>${nuxeo.aws.s3utils.useReaper:=}</useReaper>
+ *     <!-- legacy, standard or adaptive -->
+ *     <retryMode>${nuxeo.aws.s3utils.retryMode:=}</retryMode>
+ *     <maxErrorRetry>${nuxeo.aws.s3utils.maxErrorRetry:=}</maxErrorRetry>
+ *     <!-- Bytes (or values like 1MB) -->
+ *     <socketSendBufferSizeHint>${nuxeo.aws.s3utils.socketSendBufferSizeHint:=}</socketSendBufferSizeHint>
+ *     <socketReceiveBufferSizeHint>${nuxeo.aws.s3utils.socketReceiveBufferSizeHint:=}</socketReceiveBufferSizeHint>
+ *     
+ *     <!-- Max. number of parts in memory when uploading a stream (sendStream). Default 4 -->
+ *     <streamUploadBuffers>${nuxeo.aws.s3utils.streamUploadBuffers:=}</streamUploadBuffers>
+ *     
+ *     <!-- downloadFile uses parallel ranged GETs for objects of at least this size. 0 (default) => TransferManager -->
+ *     <parallelDownloadThreshold>${nuxeo.aws.s3utils.parallelDownloadThreshold:=}</parallelDownloadThreshold>
+ *     <!-- Size of each range. Default 8MB -->
+ *     <parallelDownloadPartSize>${nuxeo.aws.s3utils.parallelDownloadPartSize:=}</parallelDownloadPartSize>
+ *     <!-- Max. number of ranges downloaded at the same time, for each download. Default 8 -->
+ *     <parallelDownloadConcurrency>${nuxeo.aws.s3utils.parallelDownloadConcurrency:=}</parallelDownloadConcurrency>
+ *     
+ *     <!-- Threads of the TransferManager (uploads, downloads). Default 10 threads, unbounded queue -->
+ *     <!-- The max. size is used only with a queue size: threads are added when the queue is full -->
+ *     <transferPoolCoreSize>${nuxeo.aws.s3utils.transferPoolCoreSize:=}</transferPoolCoreSize>
+ *     <transferPoolMaxSize>${nuxeo.aws.s3utils.transferPoolMaxSize:=}</transferPoolMaxSize>
+ *     <transferPoolQueueSize>${nuxeo.aws.s3utils.transferPoolQueueSize:=}</transferPoolQueueSize>
+ *     <!-- true => one virtual thread per task (Java 21+). Default false -->
+ *     <transferPoolVirtualThreads>${nuxeo.aws.s3utils.transferPoolVirtualThreads:=}</transferPoolVirtualThreads>
+ *     <!-- Handlers with the same value share the same pool (created with the settings of the first one) -->
+ *     <transferPoolShared>${nuxeo.aws.s3utils.transferPoolShared:=}</transferPoolShared>
+ *     
+ *     <!-- Presigned URLs are signed by the plugin (same URLs as the AWS SDK, faster). Default true -->
+ *     <localUrlSigner>${nuxeo.aws.s3utils.localUrlSigner:=}</localUrlSigner>
+ *     <!-- Max. number of presigned URLs reused while enough of their lifetime remains. 0 (default) => no cache -->
+ *     <presignedUrlCacheSize>${nuxeo.aws.s3utils.presignedUrlCacheSize:=}</presignedUrlCacheSize>
+ *     <!-- Percentage of its lifetime a cached URL must still have to be returned. Default 50 -->
+ *     <presignedUrlCacheMinRemaining>${nuxeo.aws.s3utils.presignedUrlCacheMinRemaining:=}</presignedUrlCacheMinRemaining>
+ *     
+ *     <!-- URL of an endpoint replacing the regional endpoint (VPC endpoint, S3-compatible server, ...) -->
+ *     <endpoint>${nuxeo.aws.s3utils.endpoint:=}</endpoint>
+ *     <!-- Region used to sign the requests sent to the endpoint. Default: the region -->
+ *     <signingRegion>${nuxeo.aws.s3utils.signingRegion:=}</signingRegion>
+ *     <!-- true => https://endpoint/bucket/key instead of https://bucket.endpoint/key. Default false -->
+ *     <pathStyleAccess>${nuxeo.aws.s3utils.pathStyleAccess:=}</pathStyleAccess>
+ *     <!-- S3 Transfer Acceleration (must be enabled on the bucket). Ignored with an endpoint. Default false -->
+ *     <accelerateMode>${nuxeo.aws.s3utils.accelerateMode:=}</accelerateMode>
+ *     <!-- IPv4 and IPv6 endpoint. Ignored with an endpoint. Default false -->
+ *     <dualstack>${nuxeo.aws.s3utils.dualstack:=}</dualstack>
+ *     
  *   </s3Handler>
  *  </extension>
  * </pre></code>
@@ -58,6 +138,8 @@ import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
 @XObject("s3Handler")
 public class S3HandlerDescriptor {
 
+    protected static final Log log = LogFactory.getLog(S3HandlerDescriptor.class);
+
     @XNode("name")
     protected String name = "";
 
@@ -82,6 +164,117 @@ public class S3HandlerDescriptor {
     @XNode("multipartUploadThreshold")
     protected Long multipartUploadThreshold = 0L;
 
+    @XNode("sequentialStreamPrefetch")
+    protected String sequentialStreamPrefetch = "";
+
+    @XNode("sequentialStreamMaxMemory")
+    protected String sequentialStreamMaxMemory = "";
+
+    @XNode("rangeCacheSize")
+    protected String rangeCacheSize = "";
+
+    @XNode("rangeCacheBlockSize")
+    protected String rangeCacheBlockSize = "";
+
+    @XNode("rangeCacheOffHeap")
+    protected String rangeCacheOffHeap = "";
+
+    @XNode("rangeCacheETagTrustDuration")
+    protected String rangeCacheETagTrustDuration = "";
+
+    @XNode("coalesceHeadRequests")
+    protected String coalesceHeadRequests = "";
+
+    @XNode("batchConcurrency")
+    protected String batchConcurrency = "";
+
+    @XNode("maxConnections")
+    protected String maxConnections = "";
+
+    @XNode("connectionTTL")
+    protected String connectionTTL = "";
+
+    @XNode("connectionMaxIdle")
+    protected String connectionMaxIdle = "";
+
+    @XNode("connectionTimeout")
+    protected String connectionTimeout = "";
+
+    @XNode("socketTimeout")
+    protected String socketTimeout = "";
+
+    @XNode("requestTimeout")
+    protected String requestTimeout = "";
+
+    @XNode("tcpKeepAlive")
+    protected String tcpKeepAlive = "";
+
+    @XNode("useReaper")
+    protected String useReaper = "";
+
+    @XNode("retryMode")
+    protected String retryMode = "";
+
+    @XNode("maxErrorRetry")
+    protected String maxErrorRetry = "";
+
+    @XNode("socketSendBufferSizeHint")
+    protected String socketSendBufferSizeHint = "";
+
+    @XNode("socketReceiveBufferSizeHint")
+    protected String socketReceiveBufferSizeHint = "";
+
+    @XNode("streamUploadBuffers")
+    protected String streamUploadBuffers = "";
+
+    @XNode("parallelDownloadThreshold")
+    protected String parallelDownloadThreshold = "";
+
+    @XNode("parallelDownloadPartSize")
+    protected String parallelDownloadPartSize = "";
+
+    @XNode("parallelDownloadConcurrency")
+    protected String parallelDownloadConcurrency = "";
+
+    @XNode("transferPoolCoreSize")
+    protected String transferPoolCoreSize = "";
+
+    @XNode("transferPoolMaxSize")
+    protected String transferPoolMaxSize = "";
+
+    @XNode("transferPoolQueueSize")
+    protected String transferPoolQueueSize = "";
+
+    @XNode("transferPoolVirtualThreads")
+    protected String transferPoolVirtualThreads = "";
+
+    @XNode("transferPoolShared")
+    protected String transferPoolShared = "";
+
+    @XNode("localUrlSigner")
+    protected String localUrlSigner = "";
+
+    @XNode("presignedUrlCacheSize")
+    protected String presignedUrlCacheSize = "";
+
+    @XNode("presignedUrlCacheMinRemaining")
+    protected String presignedUrlCacheMinRemaining = "";
+
+    @XNode("endpoint")
+    protected String endpoint = "";
+
+    @XNode("signingRegion")
+    protected String signingRegion = "";
+
+    @XNode("pathStyleAccess")
+    protected String pathStyleAccess = "";
+
+    @XNode("accelerateMode")
+    protected String accelerateMode = "";
+
+    @XNode("dualstack")
+    protected String dualstack = "";
+
     protected int signedUrlDuration = -1;
 
     protected int useExistsKeyCache = -1;
@@ -163,4 +356,289 @@ public class S3HandlerDescriptor {
         return multipartUploadThreshold;
     }
 
+    /**
+     * @return the number of ranged GETs in flight ahead of the reader. 0 => no prefetch
+     * @since 3.2.1
+     */
+    public int getSequentialStreamPrefetch() {
+        return (int) parseLong("sequentialStreamPrefetch", sequentialStreamPrefetch, 0);
+    }
+
+    /**
+     * @return the max. memory, in bytes, used by a prefetching stream
+     * @since 3.2.1
+     */
+    public long getSequentialStreamMaxMemory() {
+        return parseSize("sequentialStreamMaxMemory", sequentialStreamMaxMemory,
+                S3ObjectPrefetchingStream.DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * @return the max. size, in bytes, of the block cache used by readBytes. 0 => no cache
+     * @since 3.2.1
+     */
+    public long getRangeCacheSize() {
+        return parseSize("rangeCacheSize", rangeCacheSize, 0);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public int getRangeCacheBlockSize() {
+        return (int) parseSize("rangeCacheBlockSize", rangeCacheBlockSize, S3RangeCache.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public boolean isRangeCacheOffHeap() {
+        return parseBoolean(rangeCacheOffHeap, false);
+    }
+
+    /**
+     * @return the duration, in ms, during which cached blocks are used without checking the ETag of the object
+     * @since 3.2.1
+     */
+    public long getRangeCacheETagTrustDuration() {
+        return parseLong("rangeCacheETagTrustDuration", rangeCacheETagTrustDuration,
+                S3RangeCache.DEFAULT_ETAG_TRUST_DURATION_MS / 1000) * 1000;
+    }
+
+    /**
+     * @return true (default) if concurrent HEAD requests for the same object must be sent only once
+     * @since 3.2.1
+     */
+    public boolean isCoalesceHeadRequests() {
+        return !"false".equalsIgnoreCase(StringUtils.trim(coalesceHeadRequests));
+    }
+
+    /**
+     * @return the max. number of requests sent in parallel by the batch methods of the handler
+     * @since 3.2.1
+     */
+    public int getBatchConcurrency() {
+        int value = (int) parseLong("batchConcurrency", batchConcurrency, Constants.DEFAULT_BATCH_CONCURRENCY);
+        return value > 0 ? value : Constants.DEFAULT_BATCH_CONCURRENCY;
+    }
+
+    /**
+     * Builds the configuration of the AmazonS3 client. Values not set keep the AWS SDK default value.
+     *
+     * @return the client configuration
+     * @since 3.2.1
+     */
+    public ClientConfiguration buildClientConfiguration() {
+
+        ClientConfiguration config = new ClientConfiguration();
+
+        config.setMaxConnections((int) parseLong("maxConnections", maxConnections, config.getMaxConnections()));
+        config.setConnectionTTL(parseLong("connectionTTL", connectionTTL, config.getConnectionTTL()));
+        config.setConnectionMaxIdleMillis(
+                parseLong("connectionMaxIdle", connectionMaxIdle, config.getConnectionMaxIdleMillis()));
+        config.setConnectionTimeout(
+                (int) parseLong("connectionTimeout", connectionTimeout, config.getConnectionTimeout()));
+        config.setSocketTimeout((int) parseLong("socketTimeout", socketTimeout, config.getSocketTimeout()));
+        config.setRequestTimeout((int) parseLong("requestTimeout", requestTimeout, config.getRequestTimeout()));
+        config.setUseTcpKeepAlive(parseBoolean(tcpKeepAlive, config.useTcpKeepAlive()));
+        config.setUseReaper(parseBoolean(useReaper, config.useReaper()));
+
+        if (StringUtils.isNotBlank(retryMode)) {
+            try {
+                config.setRetryMode(RetryMode.valueOf(retryMode.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                log.warn(String.format("Invalid value for retryMode (%s), using the default value", retryMode));
+            }
+        }
+        // Set after the retry mode, which has its own default max. retries
+        if (StringUtils.isNotBlank(maxErrorRetry)) {
+            config.setMaxErrorRetry((int) parseLong("maxErrorRetry", maxErrorRetry, config.getMaxErrorRetry()));
+        }
+
+        int[] bufferSizeHints = config.getSocketBufferSizeHints();
+        config.setSocketBufferSizeHints(
+                (int) parseSize("socketSendBufferSizeHint", socketSendBufferSizeHint, bufferSizeHints[0]),
+                (int) parseSize("socketReceiveBufferSizeHint", socketReceiveBufferSizeHint, bufferSizeHints[1]));
+
+        return config;
+    }
+
+    /**
+     * @return the max. number of parts in memory when uploading a stream
+     * @since 3.2.1
+     */
+    public int getStreamUploadBuffers() {
+        return (int) parseLong("streamUploadBuffers", streamUploadBuffers, S3StreamUpload.DEFAULT_MAX_BUFFERS);
+    }
+
+    /**
+     * @return the size from which downloadFile uses parallel ranged GETs. 0 => never
+     * @since 3.2.1
+     */
+    public long getParallelDownloadThreshold() {
+        return parseSize("parallelDownloadThreshold", parallelDownloadThreshold, 0);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public long getParallelDownloadPartSize() {
+        return parseSize("parallelDownloadPartSize", parallelDownloadPartSize, S3ParallelDownload.DEFAULT_PART_SIZE);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public int getParallelDownloadConcurrency() {
+        return (int) parseLong("parallelDownloadConcurrency", parallelDownloadConcurrency,
+                S3ParallelDownload.DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public int getTransferPoolCoreSize() {
+        return (int) parseLong("transferPoolCoreSize", transferPoolCoreSize, S3TransferExecutors.DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * The threads above the core size are started only when the queue is full: this requires a queue size, with an
+     * unbounded queue (the default) this value is ignored.
+     *
+     * @return the max. number of threads. Default is the core size
+     * @since 3.2.1
+     */
+    public int getTransferPoolMaxSize() {
+        return (int) parseLong("transferPoolMaxSize", transferPoolMaxSize, getTransferPoolCoreSize());
+    }
+
+    /**
+     * When the queue is full and the max. number of threads is reached, a task runs in the thread submitting it: a
+     * <code>sendFileAsync</code> or <code>downloadFileAsync</code> then runs the transfer before returning, and the
+     * caller of a parallel download downloads the ranges with the threads that are available.
+     *
+     * @return the size of the queue of tasks. 0 => unbounded
+     * @since 3.2.1
+     */
+    public int getTransferPoolQueueSize() {
+        return (int) parseLong("transferPoolQueueSize", transferPoolQueueSize, 0);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public boolean isTransferPoolVirtualThreads() {
+        return parseBoolean(transferPoolVirtualThreads, false);
+    }
+
+    /**
+     * @return the name of the pool shared with other handlers, null if the handler has its own pool
+     * @since 3.2.1
+     */
+    public String getTransferPoolShared() {
+        return StringUtils.trimToNull(transferPoolShared);
+    }
+
+    /**
+     * @return true (default) if presigned URLs are built by {@link S3PresignedUrlSigner} instead of the AWS SDK
+     * @since 3.2.1
+     */
+    public boolean isLocalUrlSigner() {
+        return parseBoolean(localUrlSigner, true);
+    }
+
+    /**
+     * @return the max. number of cached presigned URLs. 0 (default) => no cache
+     * @since 3.2.1
+     */
+    public int getPresignedUrlCacheSize() {
+        return (int) parseLong("presignedUrlCacheSize", presignedUrlCacheSize, 0);
+    }
+
+    /**
+     * @return the percentage of its lifetime a cached presigned URL must still have to be reused
+     * @since 3.2.1
+     */
+    public int getPresignedUrlCacheMinRemaining() {
+        return (int) parseLong("presignedUrlCacheMinRemaining", presignedUrlCacheMinRemaining,
+                S3PresignedUrlCache.DEFAULT_MIN_REMAINING_PERCENT);
+    }
+
+    /**
+     * @return the URL of the endpoint to use instead of the regional endpoint, null if not set
+     * @since 3.2.1
+     */
+    public String getEndpoint() {
+        return StringUtils.trimToNull(endpoint);
+    }
+
+    /**
+     * @return the region used to sign the requests sent to the endpoint, null if not set (=> the region is used)
+     * @since 3.2.1
+     */
+    public String getSigningRegion() {
+        return StringUtils.trimToNull(signingRegion);
+    }
+
+    /**
+     * @since 3.2.1
+     */
+    public boolean isPathStyleAccess() {
+        return parseBoolean(pathStyleAccess, false);
+    }
+
+    /**
+     * @return true if S3 Transfer Acceleration must be used. Not compatible with an endpoint or path-style access
+     * @since 3.2.1
+     */
+    public boolean isAccelerateMode() {
+        return parseBoolean(accelerateMode, false);
+    }
+
+    /**
+     * @return true if the dual-stack (IPv4 and IPv6) endpoint must be used. Not compatible with an endpoint
+     * @since 3.2.1
+     */
+    public boolean isDualstack() {
+        return parseBoolean(dualstack, false);
+    }
+
+    protected static boolean parseBoolean(String value, boolean defaultValue) {
+        return StringUtils.isBlank(value) ? defaultValue : "true".equalsIgnoreCase(value.trim());
+    }
+
+    /*
+     * Values can be empty when filled from the configuration (${a.value:=}), so we store them as String and parse them
+     * here. Empty or invalid => default value.
+     */
+    protected static long parseLong(String name, String value, long defaultValue) {
+
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value for %s (%s), using the default value (%d)", name, value,
+                    defaultValue));
+            return defaultValue;
+        }
+    }
+
+    /*
+     * Same as parseLong, but accepts values like "64MB"
+     */
+    protected static long parseSize(String name, String value, long defaultValue) {
+
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return SizeUtils.parseSizeInBytes(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value for %s (%s), using the default value (%d)", name, value,
+                    defaultValue));
+            return defaultValue;
+        }
+    }
+
 }
@@ -20,16 +20,41 @@ package org.nuxeo.s3utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.SequenceInputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.Blob;
@@ -39,16 +64,26 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.Download;
+import com.amazonaws.services.s3.transfer.Transfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
@@ -56,6 +91,8 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.dropwizard.metrics5.Timer;
+
 import org.nuxeo.runtime.aws.NuxeoAWSCredentialsProvider;
 
 /**
@@ -67,6 +104,29 @@ public class S3HandlerImpl implements S3Handler {
 
     protected static final Log log = LogFactory.getLog(S3HandlerImpl.class);
 
+    // S3 limit for a DeleteObjects request
+    public static final int MAX_KEYS_PER_DELETE = 1000;
+
+    // existsKeys lists the prefix instead of sending a HEAD per key when at least this number of keys share it
+    public static final int LIST_PREFIX_MIN_KEYS = 20;
+
+    // Order of the keys in an S3 listing: UTF-8 bytes, which is the order of the code points (not of the UTF-16 chars
+    // of String.compareTo, different for the supplementary characters)
+    protected static final Comparator<String> S3_KEY_ORDER = (a, b) -> {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
     protected String name;
 
     protected String region;
@@ -87,6 +147,49 @@ public class S3HandlerImpl implements S3Handler {
 
     long multipartUploadThreshold;
 
+    protected int streamUploadBuffers;
+
+    protected int sequentialStreamPrefetch;
+
+    protected long sequentialStreamMaxMemory;
+
+    protected boolean coalesceHeadRequests;
+
+    protected int batchConcurrency;
+
+    // 0 => downloadFile uses the TransferManager
+    protected long parallelDownloadThreshold;
+
+    protected long parallelDownloadPartSize;
+
+    protected int parallelDownloadConcurrency;
+
+    // HEAD requests in flight, by bucket/key, when coalesceHeadRequests is true
+    protected final ConcurrentHashMap<String, CompletableFuture<ObjectMetadata>> headsInFlight = new ConcurrentHashMap<>();
+
+    // null => readBytes always calls S3
+    protected S3RangeCache rangeCache;
+
+    // Background S3 I/O (prefetching, ...). Created on first use
+    protected ExecutorService ioExecutor;
+
+    // Max. number of threads of ioExecutor: the max. number of connections
+    protected int ioPoolSize;
+
+    // Threads of the TransferManager
+    protected ExecutorService transferExecutor;
+
+    // Name of the pool shared with other handlers, null if transferExecutor is owned by this handler
+    protected String transferPoolShared;
+
+    // null => presigned URLs are built by the SDK
+    protected S3PresignedUrlSigner urlSigner;
+
+    // null => a new presigned URL is built for every call
+    protected S3PresignedUrlCache presignedUrlCache;
+
+    protected S3UtilsMetrics metrics;
+
     /**
      * Caller must call {@link initialize} right after creating creating a new instance
      */
@@ -97,6 +200,7 @@ public class S3HandlerImpl implements S3Handler {
     public void initialize(S3HandlerDescriptor desc) throws NuxeoException {
 
         name = desc.getName();
+        metrics = new S3UtilsMetrics(name);
         region = desc.getRegion();
         currentBucket = desc.getBucket();
         signedUrlDuration = desc.getTempSignedUrlDuration();
@@ -104,21 +208,93 @@ public class S3HandlerImpl implements S3Handler {
 
         minimumUploadPartSize = desc.getMinimumUploadPartSize();
         multipartUploadThreshold = desc.getMultipartUploadThreshold();
+        streamUploadBuffers = desc.getStreamUploadBuffers();
+
+        sequentialStreamPrefetch = desc.getSequentialStreamPrefetch();
+        sequentialStreamMaxMemory = desc.getSequentialStreamMaxMemory();
+
+        coalesceHeadRequests = desc.isCoalesceHeadRequests();
+        batchConcurrency = desc.getBatchConcurrency();
+
+        parallelDownloadThreshold = desc.getParallelDownloadThreshold();
+        parallelDownloadPartSize = desc.getParallelDownloadPartSize();
+        parallelDownloadConcurrency = desc.getParallelDownloadConcurrency();
+
+        long rangeCacheSize = desc.getRangeCacheSize();
+        if (rangeCacheSize > 0) {
+            rangeCache = new S3RangeCache(rangeCacheSize, desc.getRangeCacheBlockSize(), desc.isRangeCacheOffHeap(),
+                    desc.getRangeCacheETagTrustDuration());
+        }
+
+        int presignedUrlCacheSize = desc.getPresignedUrlCacheSize();
+        if (presignedUrlCacheSize > 0) {
+            presignedUrlCache = new S3PresignedUrlCache(presignedUrlCacheSize,
+                    desc.getPresignedUrlCacheMinRemaining(), metrics, getCredentialsProvider());
+        }
 
         setup(desc);
     }
 
+    /**
+     * @return the credentials of the S3 client and of the local URL signer
+     * @since 3.2.1
+     */
+    protected AWSCredentialsProvider getCredentialsProvider() {
+        return NuxeoAWSCredentialsProvider.getInstance();
+    }
+
     protected void setup(S3HandlerDescriptor desc) {
 
-        AWSCredentialsProvider awsCredentialsProvider = NuxeoAWSCredentialsProvider.getInstance();
-        s3 = AmazonS3ClientBuilder.standard()
-                                  .withCredentials(awsCredentialsProvider)
-                                  // .withClientConfiguration(HERE SOME CONFIG?)
-                                  .withRegion(region)
-                                  .build();
+        AWSCredentialsProvider awsCredentialsProvider = getCredentialsProvider();
+        ClientConfiguration clientConfiguration = desc.buildClientConfiguration();
+        ioPoolSize = clientConfiguration.getMaxConnections();
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                                                             .withCredentials(awsCredentialsProvider)
+                                                             .withClientConfiguration(clientConfiguration)
+                                                             .withPathStyleAccessEnabled(desc.isPathStyleAccess())
+                                                             .withRequestHandlers(metrics.newRequestHandler());
+        String endpoint = desc.getEndpoint();
+        String signingRegion = region;
+        boolean accelerateMode = false;
+        if (endpoint == null) {
+            builder.withRegion(region);
+            if (desc.isAccelerateMode()) {
+                if (desc.isPathStyleAccess()) {
+                    log.warn(String.format("S3Handler %s: accelerateMode requires virtual-hosted access, ignored",
+                            name));
+                } else {
+                    accelerateMode = true;
+                    builder.withAccelerateModeEnabled(true);
+                }
+            }
+            builder.withDualstackEnabled(desc.isDualstack());
+        } else {
+            if (desc.getSigningRegion() != null) {
+                signingRegion = desc.getSigningRegion();
+            }
+            if (desc.isAccelerateMode() || desc.isDualstack()) {
+                log.warn(String.format("S3Handler %s: accelerateMode and dualstack are ignored with an endpoint (%s)",
+                        name, endpoint));
+            }
+            builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, signingRegion));
+        }
+        s3 = builder.build();
+
+        transferPoolShared = desc.getTransferPoolShared();
+        Supplier<ExecutorService> executorFactory = () -> S3TransferExecutors.newExecutor(
+                transferPoolShared == null ? name : transferPoolShared, desc.getTransferPoolCoreSize(),
+                desc.getTransferPoolMaxSize(), desc.getTransferPoolQueueSize(), desc.isTransferPoolVirtualThreads());
+        if (transferPoolShared == null) {
+            transferExecutor = executorFactory.get();
+        } else {
+            transferExecutor = S3TransferExecutors.acquire(transferPoolShared, executorFactory);
+        }
 
         transferManager = TransferManagerBuilder.standard()
                                                 .withS3Client(s3)
+                                                .withExecutorFactory(() -> transferExecutor)
+                                                // We shut down the executor (it can be shared)
+                                                .withShutDownThreadPools(false)
                                                 .withMinimumUploadPartSize(minimumUploadPartSize)
                                                 .withMultipartUploadThreshold(multipartUploadThreshold)
                                                 /*
@@ -130,30 +306,88 @@ public class S3HandlerImpl implements S3Handler {
                                                 .withAlwaysCalculateMultipartMd5(true)
                                                 .build();
 
+        if (desc.isLocalUrlSigner()) {
+            // The region name of the client is not always the signing region with an endpoint (VPC endpoint, ...)
+            // and the client does not expose the accelerate mode
+            urlSigner = new S3PresignedUrlSigner(s3, awsCredentialsProvider,
+                    endpoint == null ? s3.getRegionName() : signingRegion, accelerateMode,
+                    endpoint == null && desc.isDualstack());
+        }
+
         if (useCacheForExistsKey) {
-            keyExistsCache = new CacheForKeyExists(this);
+            keyExistsCache = new CacheForKeyExists(this, metrics);
         }
     }
 
     @Override
     public void cleanup() {
 
+        if (transferManager != null) {
+            // The S3 client is shut down below, the executor is ours (see setup)
+            transferManager.shutdownNow(false);
+            transferManager = null;
+        }
+
+        if (transferExecutor != null) {
+            if (transferPoolShared == null) {
+                transferExecutor.shutdownNow();
+            } else {
+                S3TransferExecutors.release(transferPoolShared);
+            }
+            transferExecutor = null;
+        }
+
         if (keyExistsCache != null) {
             keyExistsCache.cleanup();
             keyExistsCache = null;
         }
+
+        if (rangeCache != null) {
+            rangeCache.clear();
+        }
+
+        synchronized (this) {
+            if (ioExecutor != null) {
+                ioExecutor.shutdownNow();
+                ioExecutor = null;
+            }
+        }
+
+        if (s3 != null) {
+            s3.shutdown();
+        }
+    }
+
+    /**
+     * Returns the executor used for background S3 I/O (prefetching of sequential streams, async HEAD requests,
+     * batches, ...). At most one thread per HTTP connection: when they are all busy and enough tasks are waiting, the
+     * task runs in the caller thread (see {@link S3TransferExecutors#newIOExecutor}).
+     *
+     * @return the executor
+     * @since 3.2.1
+     */
+    protected synchronized ExecutorService getIOExecutor() {
+
+        if (ioExecutor == null) {
+            ioExecutor = S3TransferExecutors.newIOExecutor(name, ioPoolSize);
+        }
+        return ioExecutor;
     }
 
     @Override
     public boolean sendFile(String inKey, File inFile) throws NuxeoException {
 
         boolean ok = false;
-        try {
+        try (Timer.Context timer = metrics.time("sendFile", currentBucket)) {
             // s3.putObject(new PutObjectRequest(currentBucket, inKey, inFile));
 
             Upload upload = transferManager.upload(currentBucket, inKey, inFile);
             // Be synchronous
             upload.waitForCompletion();
+            invalidateRangeCache(inKey);
+            if (keyExistsCache != null) {
+                keyExistsCache.putInCache(currentBucket, inKey, true);
+            }
             ok = true;
         } catch (AmazonServiceException ase) {
             String message = S3Handler.buildDetailedMessageFromAWSException(ase);
@@ -175,12 +409,19 @@ public class S3HandlerImpl implements S3Handler {
 
         ObjectMetadata metadata = null;
 
-        try {
-            GetObjectRequest gor = new GetObjectRequest(currentBucket, inKey);
-            // metadata = s3.getObject(gor, blob.getFile());
-            Download download = transferManager.download(gor, inDestFile);
-            download.waitForCompletion();
-            metadata = download.getObjectMetadata();
+        try (Timer.Context timer = metrics.time("downloadFile", currentBucket)) {
+            if (parallelDownloadThreshold > 0) {
+                S3ParallelDownload download = new S3ParallelDownload(s3, currentBucket, inKey,
+                        parallelDownloadThreshold, parallelDownloadPartSize, parallelDownloadConcurrency,
+                        transferExecutor);
+                metadata = download.download(inDestFile);
+            } else {
+                GetObjectRequest gor = new GetObjectRequest(currentBucket, inKey);
+                // metadata = s3.getObject(gor, blob.getFile());
+                Download download = transferManager.download(gor, inDestFile);
+                download.waitForCompletion();
+                metadata = download.getObjectMetadata();
+            }
 
         } catch (AmazonServiceException ase) {
             String message = S3Handler.buildDetailedMessageFromAWSException(ase);
@@ -193,6 +434,9 @@ public class S3HandlerImpl implements S3Handler {
         } catch (InterruptedException ie) {
             String message = S3Handler.buildDetailedMessageFromAWSException(ie);
             throw new NuxeoException(message);
+
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to download " + inKey, e);
         }
 
         Blob blob = new FileBlob(inDestFile);
@@ -204,17 +448,190 @@ public class S3HandlerImpl implements S3Handler {
         return blob;
     }
 
+    @Override
+    public boolean sendStream(String inKey, InputStream inStream, long length, String contentType)
+            throws NuxeoException {
+
+        try (Timer.Context timer = metrics.time("sendStream", currentBucket)) {
+            S3StreamUpload upload = new S3StreamUpload(s3, currentBucket, inKey, minimumUploadPartSize,
+                    multipartUploadThreshold, streamUploadBuffers, transferExecutor);
+            upload.upload(inStream, length, contentType);
+            invalidateRangeCache(inKey);
+            if (keyExistsCache != null) {
+                keyExistsCache.putInCache(currentBucket, inKey, true);
+            }
+        } catch (AmazonServiceException ase) {
+            String message = S3Handler.buildDetailedMessageFromAWSException(ase);
+            throw new NuxeoException(message);
+
+        } catch (AmazonClientException ace) {
+            String message = S3Handler.buildDetailedMessageFromAWSException(ace);
+            throw new NuxeoException(message);
+
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to upload " + inKey, e);
+        }
+
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> sendFileAsync(String inKey, File inFile) {
+
+        return metrics.timeAsync("sendFileAsync", currentBucket, () -> doSendFileAsync(inKey, inFile));
+    }
+
+    protected CompletableFuture<Boolean> doSendFileAsync(String inKey, File inFile) {
+
+        String bucket = currentBucket;
+        Upload upload;
+        try {
+            upload = transferManager.upload(bucket, inKey, inFile);
+        } catch (AmazonClientException e) {
+            return CompletableFuture.failedFuture(new NuxeoException(S3Handler.buildDetailedMessageFromAWSException(e)));
+        }
+
+        return whenTransferDone(upload).thenApply(v -> {
+            invalidateRangeCache(inKey);
+            if (keyExistsCache != null) {
+                keyExistsCache.putInCache(bucket, inKey, true);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Blob> downloadFileAsync(String inKey, File inDestFile) {
+
+        return metrics.timeAsync("downloadFileAsync", currentBucket, () -> doDownloadFileAsync(inKey, inDestFile));
+    }
+
+    protected CompletableFuture<Blob> doDownloadFileAsync(String inKey, File inDestFile) {
+
+        if (parallelDownloadThreshold > 0) {
+            // The I/O thread downloads ranges with the transfer threads (alone if they are all busy)
+            return CompletableFuture.supplyAsync(() -> downloadFile(inKey, inDestFile), getIOExecutor());
+        }
+
+        Download download;
+        try {
+            download = transferManager.download(new GetObjectRequest(currentBucket, inKey), inDestFile);
+        } catch (AmazonClientException e) {
+            return CompletableFuture.failedFuture(new NuxeoException(S3Handler.buildDetailedMessageFromAWSException(e)));
+        }
+
+        return whenTransferDone(download).thenApply(v -> {
+            ObjectMetadata metadata = download.getObjectMetadata();
+            Blob blob = new FileBlob(inDestFile);
+            blob.setDigest(metadata.getETag());
+            blob.setEncoding(metadata.getContentEncoding());
+            blob.setFilename(inDestFile.getName());
+            blob.setMimeType(metadata.getContentType());
+            return blob;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Blob> downloadFileAsync(String inKey, String inFileName) {
+
+        Blob tmp;
+        try {
+            tmp = Blobs.createBlobWithExtension(".tmp");
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new NuxeoException(e));
+        }
+
+        String fileName = StringUtils.isBlank(inFileName) ? FilenameUtils.getName(inKey) : inFileName;
+        return downloadFileAsync(inKey, tmp.getFile()).thenApply(blob -> {
+            blob.setFilename(fileName);
+            return blob;
+        });
+    }
+
+    /**
+     * Returns a future completed when the transfer is done. No thread waits for the transfer: the future is completed
+     * from the progress listener of the transfer, when it receives the completed/failed/canceled event (the result is
+     * then read in the I/O executor, since listeners must not block).
+     * <br>
+     * AWS errors are wrapped in a NuxeoException, as the synchronous methods do.
+     *
+     * @param transfer
+     * @return the future
+     * @since 3.2.1
+     */
+    protected CompletableFuture<Void> whenTransferDone(Transfer transfer) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Runnable complete = () -> {
+            try {
+                // Returns immediately, the transfer is done
+                transfer.waitForCompletion();
+                future.complete(null);
+            } catch (AmazonClientException e) {
+                future.completeExceptionally(new NuxeoException(S3Handler.buildDetailedMessageFromAWSException(e)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(new NuxeoException(e));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        };
+
+        transfer.addProgressListener((ProgressListener) event -> {
+            switch (event.getEventType()) {
+            case TRANSFER_COMPLETED_EVENT:
+            case TRANSFER_FAILED_EVENT:
+            case TRANSFER_CANCELED_EVENT:
+                getIOExecutor().execute(complete);
+                break;
+            default:
+                break;
+            }
+        });
+        // The transfer may have ended before the listener was added
+        if (transfer.isDone()) {
+            getIOExecutor().execute(complete);
+        }
+
+        return future;
+    }
+
     @Override
     public SequenceInputStream getSequenceInputStream(String inKey, long pieceSize) throws IOException {
-        
-        S3ObjectSequentialStream seqStream = new S3ObjectSequentialStream(s3, currentBucket, inKey, pieceSize);
-                
-        return seqStream.getInputStream();
-        
+
+        return getSequenceInputStream(inKey, pieceSize, sequentialStreamPrefetch);
+
+    }
+
+    @Override
+    public SequenceInputStream getSequenceInputStream(String inKey, long pieceSize, int prefetch) throws IOException {
+
+        try (Timer.Context timer = metrics.time("getSequenceInputStream", currentBucket)) {
+            if (prefetch > 0) {
+                S3ObjectPrefetchingStream prefetchStream = new S3ObjectPrefetchingStream(s3, currentBucket, inKey,
+                        pieceSize, prefetch, sequentialStreamMaxMemory, getIOExecutor());
+                return prefetchStream.getInputStream();
+            }
+
+            S3ObjectSequentialStream seqStream = new S3ObjectSequentialStream(s3, currentBucket, inKey, pieceSize);
+
+            return seqStream.getInputStream();
+        }
+
     }
     
     @Override
     public byte[] readBytes(String key, long start, long len) throws IOException {
+
+        return metrics.time("readBytes", currentBucket, () -> doReadBytes(key, start, len));
+    }
+
+    protected byte[] doReadBytes(String key, long start, long len) throws IOException {
+
+        if (rangeCache != null) {
+            return rangeCache.readBytes(s3, currentBucket, key, start, len);
+        }
+
         GetObjectRequest gor = new GetObjectRequest(currentBucket, key)
                                    .withRange(start, start + len - 1);
         S3ObjectInputStream stream = s3.getObject(gor).getObjectContent();
@@ -224,6 +641,40 @@ public class S3HandlerImpl implements S3Handler {
         return bytes;
     }
 
+    @Override
+    public InputStream getInputStream(String key) throws IOException {
+
+        try (Timer.Context timer = metrics.time("getInputStream", currentBucket)) {
+            return s3.getObject(currentBucket, key).getObjectContent();
+        } catch (AmazonClientException e) {
+            throw new IOException(S3Handler.buildDetailedMessageFromAWSException(e), e);
+        }
+    }
+
+    protected void invalidateRangeCache(String key) {
+        if (rangeCache != null) {
+            rangeCache.invalidate(currentBucket, key);
+        }
+    }
+
+    /**
+     * @return the block cache used by readBytes, null if not configured
+     * @since 3.2.1
+     */
+    public S3RangeCache getRangeCache() {
+        return rangeCache;
+    }
+
+    @Override
+    public SeekableByteChannel getSeekableChannel(String key) throws IOException {
+
+        try (Timer.Context timer = metrics.time("getSeekableChannel", currentBucket)) {
+            return new S3ObjectSeekableChannel(s3, currentBucket, key, headObject(currentBucket, key));
+        } catch (AmazonClientException e) {
+            throw new IOException(S3Handler.buildDetailedMessageFromAWSException(e), e);
+        }
+    }
+
     @Override
     public Blob downloadFile(String inKey, String inFileName) throws NuxeoException {
 
@@ -247,8 +698,12 @@ public class S3HandlerImpl implements S3Handler {
     public boolean deleteFile(String inKey) throws NuxeoException {
 
         boolean ok = false;
-        try {
+        try (Timer.Context timer = metrics.time("deleteFile", currentBucket)) {
             s3.deleteObject(currentBucket, inKey);
+            invalidateRangeCache(inKey);
+            if (keyExistsCache != null) {
+                keyExistsCache.putInCache(currentBucket, inKey, false);
+            }
             ok = true;
         } catch (AmazonServiceException ase) {
             String message = S3Handler.buildDetailedMessageFromAWSException(ase);
@@ -261,10 +716,94 @@ public class S3HandlerImpl implements S3Handler {
         return ok;
     }
 
+    @Override
+    public S3BulkDeleteResult deleteFiles(Collection<String> inKeys) throws NuxeoException {
+
+        return metrics.time("deleteFiles", currentBucket, () -> doDeleteFiles(inKeys));
+    }
+
+    protected S3BulkDeleteResult doDeleteFiles(Collection<String> inKeys) throws NuxeoException {
+
+        S3BulkDeleteResult result = new S3BulkDeleteResult();
+        if (inKeys == null || inKeys.isEmpty()) {
+            return result;
+        }
+
+        String bucket = currentBucket;
+        List<String> keys = new ArrayList<>(new LinkedHashSet<>(inKeys));
+        Semaphore slots = new Semaphore(batchConcurrency);
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        try {
+            for (int start = 0; start < keys.size(); start += MAX_KEYS_PER_DELETE) {
+                List<String> batch = keys.subList(start, Math.min(start + MAX_KEYS_PER_DELETE, keys.size()));
+                slots.acquire();
+                batches.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        deleteBatch(bucket, batch, result);
+                    } finally {
+                        slots.release();
+                    }
+                }, getIOExecutor()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while deleting keys in bucket " + bucket, e);
+        } finally {
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+        }
+
+        return result;
+    }
+
+    /*
+     * Deletes up to MAX_KEYS_PER_DELETE keys with a single request. Keys that could not be deleted are added to the
+     * errors of the result.
+     */
+    protected void deleteBatch(String bucket, List<String> keys, S3BulkDeleteResult result) {
+
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys.toArray(new String[0]))
+                                                                       .withQuiet(true);
+        Set<String> failed = new HashSet<>();
+        try {
+            s3.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for (DeleteError error : e.getErrors()) {
+                result.addError(error.getKey(), error.getCode() + ": " + error.getMessage());
+                failed.add(error.getKey());
+            }
+        } catch (AmazonClientException e) {
+            String message = S3Handler.buildDetailedMessageFromAWSException(e);
+            for (String key : keys) {
+                result.addError(key, message);
+            }
+            return;
+        }
+
+        for (String key : keys) {
+            if (!failed.contains(key)) {
+                if (rangeCache != null) {
+                    rangeCache.invalidate(bucket, key);
+                }
+                if (keyExistsCache != null) {
+                    keyExistsCache.putInCache(bucket, key, false);
+                }
+            }
+        }
+        result.addDeleted(keys.size() - failed.size());
+    }
+
     @Override
     public String buildPresignedUrl(String inBucket, String inKey, int durationInSeconds, String contentType,
             String contentDisposition) throws NuxeoException {
 
+        String bucket = StringUtils.isBlank(inBucket) ? currentBucket : inBucket;
+        return metrics.time("buildPresignedUrl", bucket,
+                () -> doBuildPresignedUrl(inBucket, inKey, durationInSeconds, contentType, contentDisposition));
+    }
+
+    protected String doBuildPresignedUrl(String inBucket, String inKey, int durationInSeconds, String contentType,
+            String contentDisposition) throws NuxeoException {
+
         if (StringUtils.isBlank(inBucket)) {
             inBucket = currentBucket;
         }
@@ -272,6 +811,62 @@ public class S3HandlerImpl implements S3Handler {
             throw new NuxeoException("No bucket provided");
         }
 
+        if (presignedUrlCache != null) {
+            int duration = durationInSeconds > 0 ? durationInSeconds : signedUrlDuration;
+            String bucket = inBucket;
+            return presignedUrlCache.get(bucket, inKey, duration, contentType, contentDisposition,
+                    () -> buildPresignedUrl(bucket, inKey, buildExpiration(duration), contentType,
+                            contentDisposition));
+        }
+
+        Date expiration = buildExpiration(durationInSeconds);
+
+        return buildPresignedUrl(inBucket, inKey, expiration, contentType, contentDisposition);
+    }
+
+    @Override
+    public Map<String, String> buildPresignedUrls(String inBucket, List<String> inKeys, int durationInSeconds,
+            String contentType, String contentDisposition) throws NuxeoException {
+
+        String bucket = StringUtils.isBlank(inBucket) ? currentBucket : inBucket;
+        return metrics.time("buildPresignedUrls", bucket,
+                () -> doBuildPresignedUrls(inBucket, inKeys, durationInSeconds, contentType, contentDisposition));
+    }
+
+    protected Map<String, String> doBuildPresignedUrls(String inBucket, List<String> inKeys, int durationInSeconds,
+            String contentType, String contentDisposition) throws NuxeoException {
+
+        if (StringUtils.isBlank(inBucket)) {
+            inBucket = currentBucket;
+        }
+        if (StringUtils.isBlank(inBucket)) {
+            throw new NuxeoException("No bucket provided");
+        }
+
+        // Same expiration for all the URLs of the batch (except the ones found in the cache)
+        Date expiration = buildExpiration(durationInSeconds);
+        int duration = durationInSeconds > 0 ? durationInSeconds : signedUrlDuration;
+        String bucket = inBucket;
+
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (String key : inKeys) {
+            if (!urls.containsKey(key)) {
+                String url;
+                if (presignedUrlCache == null) {
+                    url = buildPresignedUrl(bucket, key, expiration, contentType, contentDisposition);
+                } else {
+                    url = presignedUrlCache.get(bucket, key, duration, contentType, contentDisposition,
+                            () -> buildPresignedUrl(bucket, key, expiration, contentType, contentDisposition));
+                }
+                urls.put(key, url);
+            }
+        }
+
+        return urls;
+    }
+
+    protected Date buildExpiration(int durationInSeconds) {
+
         if (durationInSeconds <= 0) {
             durationInSeconds = signedUrlDuration;
         }
@@ -280,9 +875,30 @@ public class S3HandlerImpl implements S3Handler {
         }
 
         Date expiration = new Date();
-        expiration.setTime(expiration.getTime() + (durationInSeconds * 1000));
+        expiration.setTime(expiration.getTime() + (durationInSeconds * 1000L));
+        return expiration;
+    }
 
-        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(currentBucket, inKey, HttpMethod.GET);
+    protected String buildPresignedUrl(String bucket, String inKey, Date expiration, String contentType,
+            String contentDisposition) throws NuxeoException {
+
+        if (urlSigner != null) {
+            Map<String, String> parameters = new HashMap<>();
+            if (StringUtils.isNotBlank(contentType)) {
+                parameters.put("response-content-type", contentType);
+            }
+            if (StringUtils.isNotBlank(contentDisposition)) {
+                parameters.put("response-content-disposition", contentDisposition);
+            }
+            try {
+                return urlSigner.presignGet(bucket, inKey, expiration, parameters);
+            } catch (IllegalArgumentException e) {
+                // Expiration too far: let the SDK report the error as usual
+                log.debug("Cannot sign the URL locally: " + e.getMessage());
+            }
+        }
+
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, inKey, HttpMethod.GET);
 
         if (StringUtils.isNotBlank(contentType)) {
             request.addRequestParameter("response-content-type", contentType);
@@ -320,9 +936,9 @@ public class S3HandlerImpl implements S3Handler {
             inBucket = currentBucket;
         }
 
-        try {
+        try (Timer.Context timer = metrics.time("existsKeyInS3", inBucket)) {
             @SuppressWarnings("unused")
-            ObjectMetadata metadata = s3.getObjectMetadata(inBucket, inKey);
+            ObjectMetadata metadata = headObject(inBucket, inKey);
             exists = true;
         } catch (AmazonClientException e) {
             if (!S3Handler.errorIsMissingKey(e)) {
@@ -334,6 +950,48 @@ public class S3HandlerImpl implements S3Handler {
         return exists;
     }
 
+    /**
+     * Sends a HEAD request for the object. If coalesceHeadRequests is true and a HEAD for the same object is already
+     * in flight, waits for it and returns its result instead of sending another request (each caller gets its own copy
+     * of the metadata). If the HEAD fails, all the waiting callers get the same exception.
+     *
+     * @param bucket
+     * @param key
+     * @return the metadata of the object
+     * @since 3.2.1
+     */
+    protected ObjectMetadata headObject(String bucket, String key) {
+
+        if (!coalesceHeadRequests) {
+            return s3.getObjectMetadata(bucket, key);
+        }
+
+        String id = bucket + "/" + key;
+        CompletableFuture<ObjectMetadata> ours = new CompletableFuture<>();
+        CompletableFuture<ObjectMetadata> inFlight = headsInFlight.putIfAbsent(id, ours);
+        if (inFlight == null) {
+            try {
+                ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+                ours.complete(metadata);
+                return metadata.clone();
+            } catch (RuntimeException e) {
+                ours.completeExceptionally(e);
+                throw e;
+            } finally {
+                headsInFlight.remove(id, ours);
+            }
+        }
+
+        try {
+            return inFlight.join().clone();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     @Override
     public boolean existsKeyInS3(String inKey) {
 
@@ -354,19 +1012,196 @@ public class S3HandlerImpl implements S3Handler {
             inBucket = currentBucket;
         }
 
-        if (keyExistsCache != null) {
-            return keyExistsCache.existsKey(inBucket, inKey);
-        } else {
-            return existsKeyInS3(inBucket, inKey);
+        try (Timer.Context timer = metrics.time("existsKey", inBucket)) {
+            if (keyExistsCache != null) {
+                return keyExistsCache.existsKey(inBucket, inKey);
+            } else {
+                return existsKeyInS3(inBucket, inKey);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsKeyAsync(String inKey) {
+
+        return existsKeyAsync(null, inKey);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsKeyAsync(String inBucket, String inKey) {
+
+        String bucket = StringUtils.isBlank(inBucket) ? currentBucket : inBucket;
+        return metrics.timeAsync("existsKeyAsync", bucket, () -> {
+            Boolean cached = keyExistsCache == null ? null : keyExistsCache.getFromCache(bucket, inKey);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            return CompletableFuture.supplyAsync(() -> existsKey(bucket, inKey), getIOExecutor());
+        });
+    }
+
+    @Override
+    public CompletableFuture<ObjectMetadata> getObjectMetadataAsync(String inKey) {
+
+        String bucket = currentBucket;
+        return metrics.timeAsync("getObjectMetadataAsync", bucket, () -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return headObject(bucket, inKey);
+            } catch (AmazonS3Exception e) {
+                throw new NuxeoException(
+                        String.format("An error occured while getting key %s in AWS bucket %s", inKey, bucket), e);
+            }
+        }, getIOExecutor()));
+    }
+
+    @Override
+    public Map<String, Boolean> existsKeys(String inBucket, Collection<String> inKeys, boolean useCache) {
+
+        String bucket = StringUtils.isBlank(inBucket) ? currentBucket : inBucket;
+        return metrics.time("existsKeys", bucket, () -> doExistsKeys(inBucket, inKeys, useCache));
+    }
+
+    protected Map<String, Boolean> doExistsKeys(String inBucket, Collection<String> inKeys, boolean useCache) {
+
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        if (inKeys == null || inKeys.isEmpty()) {
+            return result;
+        }
+
+        String bucket = StringUtils.isBlank(inBucket) ? currentBucket : inBucket;
+        Map<String, Boolean> found = new ConcurrentHashMap<>();
+        // Answered by the cache: not put back in it, which would extend their lifetime there
+        Set<String> fromCache = new HashSet<>();
+
+        // Group the keys not in the cache by "folder"
+        Map<String, TreeSet<String>> byPrefix = new HashMap<>();
+        for (String key : inKeys) {
+            if (StringUtils.isBlank(key)) {
+                continue;
+            }
+            Boolean cached = useCache && keyExistsCache != null ? keyExistsCache.getFromCache(bucket, key) : null;
+            if (cached != null) {
+                found.put(key, cached);
+                fromCache.add(key);
+            } else {
+                int idx = key.lastIndexOf('/');
+                String prefix = idx < 0 ? "" : key.substring(0, idx + 1);
+                byPrefix.computeIfAbsent(prefix, k -> new TreeSet<>(S3_KEY_ORDER)).add(key);
+            }
+        }
+
+        // Many keys in the same folder => list it. Else, or when the listing is not worth it, one HEAD per key
+        Queue<String> toHead = new ConcurrentLinkedQueue<>();
+        Semaphore slots = new Semaphore(batchConcurrency);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> entry : byPrefix.entrySet()) {
+            if (entry.getValue().size() < LIST_PREFIX_MIN_KEYS) {
+                toHead.addAll(entry.getValue());
+            } else {
+                tasks.add(runWithSlot(slots, () -> {
+                    Set<String> unresolved = listExistingKeys(bucket, entry.getKey(), entry.getValue(), found);
+                    toHead.addAll(unresolved);
+                }));
+            }
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+
+        tasks.clear();
+        for (String key : toHead) {
+            tasks.add(runWithSlot(slots, () -> found.put(key, existsKeyInS3(bucket, key))));
+        }
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+
+        for (String key : inKeys) {
+            boolean exists = found.getOrDefault(key, false);
+            result.put(key, exists);
+            if (keyExistsCache != null && StringUtils.isNotBlank(key) && !fromCache.contains(key)) {
+                keyExistsCache.putInCache(bucket, key, exists);
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Lists the objects of the prefix (not recursively) starting at the first key, and stops after the last key. The
+     * listing also stops if it needs more requests than the HEADs it replaces (a folder with a lot of other objects).
+     * Puts the result for the keys found/not found in the listed range in found, and returns the keys that were not
+     * resolved (listing stopped, or failed). keys must be sorted with S3_KEY_ORDER, the order of the listing.
+     */
+    protected Set<String> listExistingKeys(String bucket, String prefix, TreeSet<String> keys,
+            Map<String, Boolean> found) {
+
+        TreeSet<String> unresolved = new TreeSet<>(keys);
+        String first = keys.first();
+        String last = keys.last();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket)
+                                                                 .withPrefix(prefix)
+                                                                 .withDelimiter("/")
+                                                                 // A prefix of the key is sorted before it
+                                                                 .withStartAfter(first.substring(0,
+                                                                         first.offsetByCodePoints(first.length(), -1)));
+        int requests = 0;
+        try {
+            ListObjectsV2Result listing;
+            do {
+                listing = s3.listObjectsV2(request);
+                requests += 1;
+                String lastListed = null;
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    lastListed = summary.getKey();
+                    if (unresolved.remove(lastListed)) {
+                        found.put(lastListed, true);
+                    }
+                }
+                if (!listing.isTruncated() || (lastListed != null && S3_KEY_ORDER.compare(lastListed, last) >= 0)) {
+                    // Everything in the range was listed: the other keys do not exist
+                    for (String key : unresolved) {
+                        found.put(key, false);
+                    }
+                    return Collections.emptySet();
+                }
+                if (lastListed != null) {
+                    // Keys before the last listed one, not listed, do not exist
+                    for (String key : unresolved.headSet(lastListed)) {
+                        found.put(key, false);
+                    }
+                    unresolved.headSet(lastListed).clear();
+                }
+                request.setContinuationToken(listing.getNextContinuationToken());
+            } while (requests < unresolved.size());
+
+        } catch (AmazonClientException e) {
+            log.warn("Could not list the prefix <" + prefix + "> in bucket " + bucket
+                    + ", checking the keys one by one: " + e.getMessage());
+        }
+
+        return unresolved;
+    }
+
+    protected CompletableFuture<Void> runWithSlot(Semaphore slots, Runnable task) {
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while checking keys", e);
         }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } finally {
+                slots.release();
+            }
+        }, getIOExecutor());
     }
 
     @Override
     public ObjectMetadata getObjectMetadata(String inKey) {
 
         ObjectMetadata metadata;
-        try {
-            metadata = s3.getObjectMetadata(currentBucket, inKey);
+        try (Timer.Context timer = metrics.time("getObjectMetadata", currentBucket)) {
+            metadata = headObject(currentBucket, inKey);
         } catch (AmazonS3Exception e) {
             throw new NuxeoException(
                     String.format("An error occured while getting key %s in AWS bucket %s", inKey, currentBucket), e);
@@ -378,21 +1213,77 @@ public class S3HandlerImpl implements S3Handler {
     @Override
     public JsonNode getObjectMetadataJson(String inKey) throws JsonProcessingException {
 
-        ObjectMetadata metadata = getObjectMetadata(inKey);
+        try (Timer.Context timer = metrics.time("getObjectMetadataJson", currentBucket)) {
+            ObjectMetadata metadata = getObjectMetadata(inKey);
+
+            Map<String, Object> mutableMap = buildMetadataMap(currentBucket, inKey, metadata);
+
+            // Convert Map to JSON
+            ObjectMapper objectMapper = new ObjectMapper();
+            JsonNode json = objectMapper.valueToTree(mutableMap);
+
+            return json;
+        }
+    }
+
+    @Override
+    public Map<String, Object> buildMetadataMap(String bucket, String inKey, ObjectMetadata metadata) {
 
         Map<String, Object> metadataMap = metadata.getRawMetadata();
         Map<String, Object> mutableMap = new HashMap<String, Object>(metadataMap);
-        mutableMap.put("bucketName", currentBucket);
+        mutableMap.put("bucketName", bucket);
         mutableMap.put("objectKey", inKey);
 
         Map<String, String> userMetadata = metadata.getUserMetadata();
         mutableMap.put("userMetadata", userMetadata);
 
-        // Convert Map to JSON
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode json = objectMapper.valueToTree(mutableMap);
+        return mutableMap;
+    }
+
+    @Override
+    public void getObjectMetadata(Collection<String> inKeys, BiConsumer<String, ObjectMetadata> consumer) {
+
+        metrics.time("getObjectMetadataBatch", currentBucket, () -> {
+            doGetObjectMetadata(inKeys, consumer);
+            return null;
+        });
+    }
 
-        return json;
+    protected void doGetObjectMetadata(Collection<String> inKeys, BiConsumer<String, ObjectMetadata> consumer) {
+
+        String bucket = currentBucket;
+        Iterator<String> keys = inKeys.iterator();
+        Deque<Pair<String, CompletableFuture<ObjectMetadata>>> window = new ArrayDeque<>();
+        while (keys.hasNext() || !window.isEmpty()) {
+            // Keep batchConcurrency requests in flight
+            while (keys.hasNext() && window.size() < batchConcurrency) {
+                String key = keys.next();
+                window.add(Pair.of(key, CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return headObject(bucket, key);
+                    } catch (AmazonClientException e) {
+                        if (S3Handler.errorIsMissingKey(e)) {
+                            return null;
+                        }
+                        throw new NuxeoException(String.format(
+                                "An error occured while getting key %s in AWS bucket %s", key, bucket), e);
+                    }
+                }, getIOExecutor())));
+            }
+
+            // Results are consumed in order, by the calling thread
+            Pair<String, CompletableFuture<ObjectMetadata>> next = window.poll();
+            ObjectMetadata metadata;
+            try {
+                metadata = next.getValue().join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            consumer.accept(next.getKey(), metadata);
+        }
     }
 
     @Override
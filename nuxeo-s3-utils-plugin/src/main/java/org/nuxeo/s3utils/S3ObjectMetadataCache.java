@@ -0,0 +1,183 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Caches the main metadata of S3 objects (ETag, length, content type, encoding, MD5), by bucket and key, so callers
+ * (typically, the S3UtilsBlobProvider) do not send a HEAD request every time they need them.
+ * <br>
+ * Entries expire after <code>ttlMs</code> (they are removed lazily, when read), and the cache holds at most
+ * <code>maxEntries</code> entries (least recently used ones are evicted). Callers can also ask for an entry younger
+ * than a given age, see {@link #get(String, String, long)}.
+ * <br>
+ * The class is thread safe.
+ *
+ * @since 3.2.1
+ */
+public class S3ObjectMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    protected long ttlMs;
+
+    protected StripedLRUMap<String, CachedMetadata> entries;
+
+    /**
+     * If <code>maxEntries</code> is <= 0, the default value applies
+     */
+    public S3ObjectMetadataCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        entries = new StripedLRUMap<>(maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Same as <code>get(bucket, objectKey, ttl)</code>
+     */
+    public CachedMetadata get(String bucket, String objectKey) {
+        return get(bucket, objectKey, ttlMs);
+    }
+
+    /**
+     * Returns the cached metadata if it was fetched less than <code>maxAgeMs</code> ago (and is not expired), else
+     * null.
+     *
+     * @param bucket
+     * @param objectKey
+     * @param maxAgeMs
+     * @return the metadata, or null
+     * @since 3.2.1
+     */
+    public CachedMetadata get(String bucket, String objectKey, long maxAgeMs) {
+
+        String cacheKey = buildCacheKey(bucket, objectKey);
+        CachedMetadata cached = entries.get(cacheKey);
+        if (cached == null) {
+            return null;
+        }
+
+        long age = System.currentTimeMillis() - cached.fetchedAt;
+        if (age > ttlMs) {
+            entries.remove(cacheKey, cached);
+            return null;
+        }
+
+        return age <= maxAgeMs ? cached : null;
+    }
+
+    /**
+     * Stores the metadata and returns the cached version
+     *
+     * @param bucket
+     * @param objectKey
+     * @param metadata
+     * @return the cached metadata
+     * @since 3.2.1
+     */
+    public CachedMetadata put(String bucket, String objectKey, ObjectMetadata metadata) {
+
+        CachedMetadata cached = new CachedMetadata(metadata);
+        entries.put(buildCacheKey(bucket, objectKey), cached);
+        return cached;
+    }
+
+    public void invalidate(String bucket, String objectKey) {
+        entries.remove(buildCacheKey(bucket, objectKey));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    protected static String buildCacheKey(String bucket, String objectKey) {
+        // A bucket name cannot contain a "/"
+        return bucket + "/" + objectKey;
+    }
+
+    /**
+     * Immutable copy of the metadata we use
+     */
+    public static class CachedMetadata {
+
+        protected final String eTag;
+
+        protected final long contentLength;
+
+        protected final String contentType;
+
+        protected final String contentEncoding;
+
+        protected final String contentMD5;
+
+        protected final long fetchedAt;
+
+        public CachedMetadata(ObjectMetadata metadata) {
+            eTag = metadata.getETag();
+            contentLength = metadata.getContentLength();
+            contentType = metadata.getContentType();
+            contentEncoding = metadata.getContentEncoding();
+            contentMD5 = metadata.getContentMD5();
+            fetchedAt = System.currentTimeMillis();
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public String getContentMD5() {
+            return contentMD5;
+        }
+
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+
+        /**
+         * @return a new ObjectMetadata with the cached values
+         */
+        public ObjectMetadata toObjectMetadata() {
+
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setHeader("ETag", eTag);
+            metadata.setContentLength(contentLength);
+            metadata.setContentType(contentType);
+            metadata.setContentEncoding(contentEncoding);
+            metadata.setContentMD5(contentMD5);
+            return metadata;
+        }
+    }
+
+}
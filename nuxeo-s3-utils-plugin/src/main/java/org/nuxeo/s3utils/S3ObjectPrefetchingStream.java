@@ -0,0 +1,248 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Prefetching variant of {@link S3ObjectSequentialStream}. Instead of opening the ranged GETs one after the other, each
+ * one only when the previous piece is exhausted, this class keeps up to <code>prefetch</code> ranged GETs in flight
+ * ahead of the reader (using the <code>executor</code>). Each piece is fully read in memory, and the caller still gets
+ * a single, ordered, SequenceInputStream.
+ * <br>
+ * Memory is bounded: the pieces in flight, the piece being read by the caller and the previous one (still referenced
+ * by the SequenceInputStream while it gets the next piece) never exceed <code>maxMemory</code>. If needed, the piece
+ * size and/or the number of pieces in flight are reduced to fit in this budget.
+ * <br>
+ * All the ranged GETs are done with the ETag read when the stream is created, so if the object is modified while being
+ * streamed, reading fails instead of silently mixing two versions of the object.
+ * <br>
+ * Example of use:
+ *
+ * <pre>
+ * {@code
+ *     S3ObjectPrefetchingStream seqStream = new S3ObjectPrefetchingStream(s3, "my-bucket", "bigbig-file.mov", 0, 4, 0, executor);
+ *     InputStream stream = seqStream.getInputStream();
+ *     // . . . Loop on stream.read(bytes) . . .
+ *     stream.close(); // Cancels the pending GETs, if any
+ * }
+ * </pre>
+ *
+ * @since 3.2.1
+ */
+public class S3ObjectPrefetchingStream implements Enumeration<InputStream> {
+
+    protected static final Log log = LogFactory.getLog(S3ObjectPrefetchingStream.class);
+
+    public static final long DEFAULT_PREFETCH_PIECE_SIZE = 8 * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+    // A piece is read in a byte[]
+    protected static final long MAX_BUFFERED_PIECE_SIZE = Integer.MAX_VALUE - 8;
+
+    protected AmazonS3 s3;
+
+    protected String bucket;
+
+    protected String objectKey;
+
+    protected String eTag;
+
+    protected ExecutorService executor;
+
+    protected long totalSize;
+
+    protected long pieceSize = DEFAULT_PREFETCH_PIECE_SIZE;
+
+    protected int maxInFlight;
+
+    protected long nextPosition = 0;
+
+    protected Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    protected volatile boolean closed = false;
+
+    /**
+     * If <code>pieceSize</code> or <code>maxMemory</code> is <= 0, the default value applies. <code>prefetch</code> is
+     * the max. number of ranged GETs in flight (at least 1)
+     *
+     * @param s3
+     * @param bucket
+     * @param objectKey
+     * @param pieceSize
+     * @param prefetch
+     * @param maxMemory
+     * @param executor
+     */
+    public S3ObjectPrefetchingStream(AmazonS3 s3, String bucket, String objectKey, long pieceSize, int prefetch,
+            long maxMemory, ExecutorService executor) {
+
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.executor = executor;
+
+        if (pieceSize > 0) {
+            this.pieceSize = pieceSize;
+        }
+        if (maxMemory <= 0) {
+            maxMemory = DEFAULT_MAX_MEMORY;
+        }
+
+        // Two pieces are held by the caller (the previous one and the new one, while switching) when the others are
+        // fetched
+        if (this.pieceSize > MAX_BUFFERED_PIECE_SIZE) {
+            this.pieceSize = MAX_BUFFERED_PIECE_SIZE;
+        }
+        if (this.pieceSize * 3 > maxMemory) {
+            this.pieceSize = Math.max(1, maxMemory / 3);
+        }
+        long maxPieces = maxMemory / this.pieceSize;
+        maxInFlight = (int) Math.max(1, Math.min(prefetch, maxPieces - 2));
+
+        ObjectMetadata metadata = s3.getObjectMetadata(bucket, objectKey);
+        totalSize = metadata.getContentLength();
+        eTag = metadata.getETag();
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Prefetching %s (%d bytes): pieces of %d bytes, %d in flight", objectKey, totalSize,
+                    this.pieceSize, maxInFlight));
+        }
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+        return !closed && (!pending.isEmpty() || nextPosition < totalSize);
+    }
+
+    @Override
+    public InputStream nextElement() {
+
+        schedule();
+
+        Future<byte[]> next = pending.poll();
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+
+        byte[] bytes;
+        try {
+            bytes = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            cancel();
+            throw new NuxeoException("Error while prefetching " + objectKey + " in bucket " + bucket, e.getCause());
+        }
+
+        // The slot we just consumed can be used for the next piece
+        schedule();
+
+        return new ByteArrayInputStream(bytes);
+    }
+
+    protected void schedule() {
+
+        while (!closed && pending.size() < maxInFlight && nextPosition < totalSize) {
+            long start = nextPosition;
+            long end = Math.min(start + pieceSize, totalSize) - 1;
+            nextPosition = end + 1;
+            pending.add(executor.submit(() -> fetch(start, end)));
+        }
+    }
+
+    protected byte[] fetch(long start, long end) throws IOException {
+
+        GetObjectRequest gor = new GetObjectRequest(bucket, objectKey).withRange(start, end)
+                                                                      .withMatchingETagConstraint(eTag);
+        S3Object object = s3.getObject(gor);
+        if (object == null) {
+            // ETag constraint not met
+            throw new IOException("Object " + objectKey + " was modified while being streamed");
+        }
+
+        try (S3ObjectInputStream stream = object.getObjectContent()) {
+            return stream.readAllBytes();
+        }
+    }
+
+    /**
+     * Cancels the pieces in flight. Once called, the enumeration has no more elements.
+     *
+     * @since 3.2.1
+     */
+    public void cancel() {
+
+        closed = true;
+        Future<byte[]> future;
+        while ((future = pending.poll()) != null) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Closing the returned stream cancels the pending ranged GETs (a plain SequenceInputStream would consume all the
+     * remaining elements just to close them)
+     *
+     * @return the SequenceInputStream
+     * @since 3.2.1
+     */
+    public SequenceInputStream getInputStream() {
+
+        return new SequenceInputStream(this) {
+            @Override
+            public void close() throws IOException {
+                cancel();
+                super.close();
+            }
+        };
+    }
+
+    public long getPieceSize() {
+        return pieceSize;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * A read-only SeekableByteChannel on a S3 object, backed by ranged GETs. Typical use is for format parsers (EXIF, PDF,
+ * ...) that jump inside a file, and need to read its header and trailer without downloading the whole object.
+ * <br>
+ * The object is read by blocks (<code>blockSize</code>), kept in a small LRU cache (<code>maxCachedBlocks</code>).
+ * When the reads are sequential, the channel reads ahead <code>readAheadBlocks</code> blocks in the same GET. When
+ * they are random, it reads only the missing block.
+ * <br>
+ * All the ranged GETs are done with the ETag read when the channel is created, so if the object is modified while
+ * being read, reading fails instead of silently mixing two versions of the object.
+ * <br>
+ * This class is not thread safe (as for any channel with a position, the caller must synchronize the
+ * <code>position()/read()</code> calls)
+ * <br>
+ * Example of use:
+ *
+ * <pre>
+ * {@code
+ *     try (SeekableByteChannel channel = s3Handler.getSeekableChannel("my-file.pdf")) {
+ *         ByteBuffer trailer = ByteBuffer.allocate(1024);
+ *         channel.position(channel.size() - 1024);
+ *         channel.read(trailer);
+ *         // . . .
+ *     }
+ * }
+ * </pre>
+ *
+ * @since 3.2.1
+ */
+public class S3ObjectSeekableChannel implements SeekableByteChannel {
+
+    protected static final Log log = LogFactory.getLog(S3ObjectSeekableChannel.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    public static final int DEFAULT_MAX_CACHED_BLOCKS = 32;
+
+    protected AmazonS3 s3;
+
+    protected String bucket;
+
+    protected String objectKey;
+
+    protected String eTag;
+
+    protected long size;
+
+    protected long position = 0;
+
+    protected int blockSize;
+
+    protected int readAheadBlocks;
+
+    protected long lastBlockIndex = -1;
+
+    protected Map<Long, byte[]> blocks;
+
+    protected boolean open = true;
+
+    public S3ObjectSeekableChannel(AmazonS3 s3, String bucket, String objectKey) {
+        this(s3, bucket, objectKey, s3.getObjectMetadata(bucket, objectKey));
+    }
+
+    /**
+     * Use this constructor when the metadata has already been fetched, to avoid a HEAD request
+     */
+    public S3ObjectSeekableChannel(AmazonS3 s3, String bucket, String objectKey, ObjectMetadata metadata) {
+        this(s3, bucket, objectKey, metadata, DEFAULT_BLOCK_SIZE, DEFAULT_READ_AHEAD_BLOCKS, DEFAULT_MAX_CACHED_BLOCKS);
+    }
+
+    /**
+     * Values <= 0 for <code>blockSize</code> or <code>maxCachedBlocks</code> are replaced by the default values. The
+     * read ahead is limited by the cache size.
+     */
+    public S3ObjectSeekableChannel(AmazonS3 s3, String bucket, String objectKey, ObjectMetadata metadata,
+            int blockSize, int readAheadBlocks, int maxCachedBlocks) {
+
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+
+        size = metadata.getContentLength();
+        eTag = metadata.getETag();
+
+        this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        int maxBlocks = maxCachedBlocks > 0 ? maxCachedBlocks : DEFAULT_MAX_CACHED_BLOCKS;
+        this.readAheadBlocks = Math.max(0, Math.min(readAheadBlocks, maxBlocks - 1));
+
+        blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+
+        checkOpen();
+
+        if (position >= size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long blockIndex = position / blockSize;
+            byte[] block = getBlock(blockIndex);
+            int offset = (int) (position - blockIndex * blockSize);
+            int count = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, count);
+            position += count;
+            total += count;
+        }
+
+        return total;
+    }
+
+    protected byte[] getBlock(long blockIndex) throws IOException {
+
+        byte[] block = blocks.get(blockIndex);
+        if (block == null) {
+            long lastBlock = (size - 1) / blockSize;
+            long toBlock = blockIndex;
+            // Sequential read => read ahead, stopping at the first block already in the cache
+            if (blockIndex == lastBlockIndex + 1) {
+                long max = Math.min(lastBlock, blockIndex + readAheadBlocks);
+                while (toBlock < max && !blocks.containsKey(toBlock + 1)) {
+                    toBlock += 1;
+                }
+            }
+            fetchBlocks(blockIndex, toBlock);
+            block = blocks.get(blockIndex);
+        }
+        lastBlockIndex = blockIndex;
+
+        return block;
+    }
+
+    protected void fetchBlocks(long fromBlock, long toBlock) throws IOException {
+
+        long start = fromBlock * blockSize;
+        long end = Math.min((toBlock + 1) * blockSize, size) - 1;
+
+        byte[] bytes;
+        try {
+            GetObjectRequest gor = new GetObjectRequest(bucket, objectKey).withRange(start, end)
+                                                                          .withMatchingETagConstraint(eTag);
+            S3Object object = s3.getObject(gor);
+            if (object == null) {
+                // ETag constraint not met
+                throw new IOException("Object " + objectKey + " was modified while being read");
+            }
+            try (S3ObjectInputStream stream = object.getObjectContent()) {
+                bytes = stream.readAllBytes();
+            }
+        } catch (AmazonClientException e) {
+            throw new IOException(S3Handler.buildDetailedMessageFromAWSException(e), e);
+        }
+
+        if (bytes.length != end - start + 1) {
+            throw new IOException(String.format("Expected %d bytes from %s, got %d", end - start + 1, objectKey,
+                    bytes.length));
+        }
+
+        for (long i = fromBlock; i <= toBlock; i++) {
+            int from = (int) ((i - fromBlock) * blockSize);
+            int to = Math.min(from + blockSize, bytes.length);
+            byte[] block = new byte[to - from];
+            System.arraycopy(bytes, from, block, 0, block.length);
+            blocks.put(i, block);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        blocks.clear();
+    }
+
+    protected void checkOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+}
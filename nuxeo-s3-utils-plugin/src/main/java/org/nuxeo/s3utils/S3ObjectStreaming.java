@@ -1,7 +1,9 @@
 package org.nuxeo.s3utils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.channels.SeekableByteChannel;
 
 public interface S3ObjectStreaming {
 
@@ -36,4 +38,31 @@ public interface S3ObjectStreaming {
      */
     public byte[] readBytes(String key, long start, long len) throws IOException;
 
+    /**
+     * Returns a read-only SeekableByteChannel on the object, backed by ranged GETs, with a small block cache and read
+     * ahead. Useful for parsers that jump inside the file (read a header, then a trailer, ...) without downloading the
+     * whole object.
+     * <br>
+     * See S3ObjectSeekableChannel for more info.
+     *
+     * @param key
+     * @return the channel. Caller must close it.
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public SeekableByteChannel getSeekableChannel(String key) throws IOException;
+
+    /**
+     * Returns a stream on the whole object, from a single GET: no local file, and the first bytes are available as soon
+     * as S3 sends them. Best for one-shot consumers that read the object once, from start to end.
+     * <br>
+     * Closing the stream before the end aborts the HTTP connection.
+     *
+     * @param key
+     * @return the stream. Caller must close it.
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public InputStream getInputStream(String key) throws IOException;
+
 }
@@ -0,0 +1,345 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Downloads an object to a file with parallel ranged GETs.
+ * <ul>
+ * <li>Objects smaller than the threshold are downloaded with a single GET.</li>
+ * <li>Else, the file is preallocated, the object is split in ranges of <code>partSize</code> bytes, and at most
+ * <code>concurrency</code> ranges are downloaded at the same time, each one written at its position in the file.</li>
+ * <li>Every GET requires the ETag returned by the first HEAD: if the object is replaced during the download, it
+ * fails instead of mixing two versions.</li>
+ * <li>The file is checked against the ETag when it is an MD5 (not for SSE-KMS or SSE-C objects). For an object
+ * uploaded in parts (ETag "md5-N"), the ranges are aligned on the parts, and the MD5 of each part is computed while
+ * downloading. This requires parts of the same size (but the last one): the size of the first and the last parts
+ * are checked, if they do not match this layout the ETag is not checked. For other objects, the file is read again
+ * once downloaded.</li>
+ * <li>The calling thread downloads ranges too, with <code>concurrency - 1</code> workers running in the executor. If
+ * the executor is saturated (rejected task, or task run by the caller with a <code>CallerRunsPolicy</code>), the
+ * ranges are downloaded by the caller and the workers that could start.</li>
+ * <li>If anything fails, the file is deleted.</li>
+ * </ul>
+ * An instance is used for one download.
+ *
+ * @since 3.2.1
+ */
+public class S3ParallelDownload {
+
+    protected static final Log log = LogFactory.getLog(S3ParallelDownload.class);
+
+    public static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}(-\\d+)?");
+
+    protected AmazonS3 s3;
+
+    protected String bucket;
+
+    protected String objectKey;
+
+    protected long threshold;
+
+    protected long partSize;
+
+    protected int concurrency;
+
+    protected ExecutorService executor;
+
+    protected long size;
+
+    protected String eTag;
+
+    // Size of the parts of the upload, 0 if the object was not uploaded in parts or they cannot be checked
+    protected long uploadPartSize;
+
+    // MD5 of each part of the upload, null if not checked this way
+    protected byte[][] uploadPartMd5s;
+
+    protected volatile Throwable failure;
+
+    /**
+     * @param s3
+     * @param bucket
+     * @param objectKey
+     * @param threshold objects smaller than this size are downloaded with a single GET
+     * @param partSize the size of each range
+     * @param concurrency max. number of ranges downloaded at the same time
+     * @param executor runs the download of the ranges
+     */
+    public S3ParallelDownload(AmazonS3 s3, String bucket, String objectKey, long threshold, long partSize,
+            int concurrency, ExecutorService executor) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.threshold = threshold;
+        this.partSize = partSize > 0 ? partSize : DEFAULT_PART_SIZE;
+        this.concurrency = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+        this.executor = executor;
+    }
+
+    /**
+     * Downloads the object to the file, replacing its content.
+     *
+     * @param destFile
+     * @return the metadata of the object
+     * @throws IOException if the file cannot be written, the object changed during the download or the file does not
+     *             match the ETag
+     * @since 3.2.1
+     */
+    public ObjectMetadata download(File destFile) throws IOException {
+
+        ObjectMetadata metadata = s3.getObjectMetadata(bucket, objectKey);
+        size = metadata.getContentLength();
+        eTag = metadata.getETag();
+
+        if (size < threshold || size <= partSize) {
+            // The SDK checks the MD5 of a full GET when it can
+            if (s3.getObject(new GetObjectRequest(bucket, objectKey).withMatchingETagConstraint(eTag),
+                    destFile) == null) {
+                throw new IOException(objectKey + " was modified during the download");
+            }
+            return metadata;
+        }
+
+        boolean checkETag = canCheckETag(metadata);
+        long rangeSize = partSize;
+        if (checkETag && eTag.contains("-")) {
+            setupUploadParts();
+            if (uploadPartSize > 0) {
+                // Ranges aligned on the parts, as close as possible to partSize
+                rangeSize = Math.max(1, Math.round((double) partSize / uploadPartSize)) * uploadPartSize;
+            } else {
+                checkETag = false;
+            }
+        }
+
+        try {
+            downloadRanges(destFile, rangeSize);
+            if (checkETag) {
+                checkETag(destFile);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(destFile.toPath());
+            throw e;
+        }
+
+        return metadata;
+    }
+
+    protected boolean canCheckETag(ObjectMetadata metadata) {
+        return eTag != null && MD5_ETAG.matcher(eTag).matches() && metadata.getSSEAwsKmsKeyId() == null
+                && metadata.getSSECustomerAlgorithm() == null;
+    }
+
+    /*
+     * The size of the parts is the size of the first one, if it is consistent with the size of the object and of the
+     * last part (uploads with parts of different sizes cannot be checked)
+     */
+    protected void setupUploadParts() {
+
+        int partCount = Integer.parseInt(eTag.substring(eTag.indexOf('-') + 1));
+        long firstPartSize = getPartSize(1);
+        boolean uniform = partCount > 0 && firstPartSize > 0 && (partCount - 1) * firstPartSize < size
+                && size <= partCount * firstPartSize;
+        if (uniform && partCount > 1) {
+            uniform = getPartSize(partCount) == size - (partCount - 1) * firstPartSize;
+        }
+        if (uniform) {
+            uploadPartSize = firstPartSize;
+            uploadPartMd5s = new byte[partCount][];
+        } else {
+            log.debug(String.format("Parts of %s do not have the same size, its ETag is not checked", objectKey));
+        }
+    }
+
+    protected long getPartSize(int partNumber) {
+        return s3.getObjectMetadata(new GetObjectMetadataRequest(bucket, objectKey).withPartNumber(partNumber))
+                 .getContentLength();
+    }
+
+    protected void downloadRanges(File destFile, long rangeSize) throws IOException {
+
+        try (RandomAccessFile file = new RandomAccessFile(destFile, "rw")) {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+
+            int rangeCount = (int) ((size + rangeSize - 1) / rangeSize);
+            AtomicInteger nextRange = new AtomicInteger();
+            Runnable worker = () -> {
+                int range;
+                while (failure == null && (range = nextRange.getAndIncrement()) < rangeCount) {
+                    try {
+                        long start = range * rangeSize;
+                        downloadRange(channel, start, Math.min(start + rangeSize, size) - 1);
+                    } catch (IOException | RuntimeException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                        throw new CompletionException(e);
+                    }
+                }
+            };
+
+            // A worker run by the caller when submitting it (saturated executor with a CallerRunsPolicy) does nothing:
+            // it would download all the ranges before the next workers are submitted
+            Thread caller = Thread.currentThread();
+            Runnable asyncWorker = () -> {
+                if (Thread.currentThread() != caller) {
+                    worker.run();
+                }
+            };
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            for (int i = 1; i < Math.min(concurrency, rangeCount); i++) {
+                try {
+                    workers.add(CompletableFuture.runAsync(asyncWorker, executor));
+                } catch (RejectedExecutionException e) {
+                    // Saturated executor: the caller and the workers already submitted download the ranges
+                    break;
+                }
+            }
+            try {
+                worker.run();
+            } catch (CompletionException e) {
+                // failure is set
+            }
+
+            for (CompletableFuture<Void> future : workers) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    // failure is set
+                }
+            }
+        }
+
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+    }
+
+    protected void downloadRange(FileChannel channel, long start, long end) throws IOException {
+
+        S3Object object = s3.getObject(
+                new GetObjectRequest(bucket, objectKey).withRange(start, end).withMatchingETagConstraint(eTag));
+        if (object == null) {
+            throw new IOException(objectKey + " was modified during the download");
+        }
+
+        long position = start;
+        S3ObjectInputStream in = object.getObjectContent();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            MessageDigest md5 = uploadPartMd5s == null ? null : DigestUtils.getMd5Digest();
+            // Reads do not cross the end of a part, to compute its MD5
+            long partEnd = uploadPartSize > 0 ? Math.min(size, (start / uploadPartSize + 1) * uploadPartSize)
+                    : end + 1;
+            while (position <= end) {
+                if (failure != null) {
+                    // Another range failed, no need to go on
+                    return;
+                }
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, partEnd - position));
+                if (count < 0) {
+                    throw new IOException(
+                            String.format("Unexpected end of the range %d-%d of %s at %d", start, end, objectKey,
+                                    position));
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+                if (md5 != null) {
+                    md5.update(buffer, 0, count);
+                    if (position == partEnd) {
+                        uploadPartMd5s[(int) ((partEnd - 1) / uploadPartSize)] = md5.digest();
+                        partEnd = Math.min(size, partEnd + uploadPartSize);
+                    }
+                }
+            }
+        } finally {
+            if (position <= end) {
+                // Do not read the rest of the range to reuse the connection
+                in.abort();
+            } else {
+                in.close();
+            }
+        }
+    }
+
+    protected void checkETag(File destFile) throws IOException {
+
+        String expected = eTag.toLowerCase();
+        String actual;
+        if (uploadPartMd5s != null) {
+            MessageDigest md5OfMd5s = DigestUtils.getMd5Digest();
+            for (byte[] partMd5 : uploadPartMd5s) {
+                md5OfMd5s.update(partMd5);
+            }
+            actual = Hex.encodeHexString(md5OfMd5s.digest()) + "-" + uploadPartMd5s.length;
+        } else {
+            try (InputStream in = new FileInputStream(destFile)) {
+                actual = DigestUtils.md5Hex(in);
+            }
+        }
+
+        if (!expected.equals(actual)) {
+            throw new IOException(String.format("Downloaded %s does not match its ETag (expected %s, got %s)",
+                    objectKey, expected, actual));
+        }
+    }
+
+}
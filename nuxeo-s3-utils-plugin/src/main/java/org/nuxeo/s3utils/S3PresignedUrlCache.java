@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.util.function.Supplier;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+
+/**
+ * Caches presigned URLs by bucket, key, duration, content type and content disposition, so the same object signed
+ * again and again gets the same URL (which also lets browsers and CDNs cache what they get from it).
+ * <br>
+ * A cached URL is returned as long as more than <code>minRemainingPercent</code> of its lifetime remains, then a new
+ * one is built. With the default 50%, a URL requested for 20 minutes is valid for at least 10 minutes when returned.
+ * <br>
+ * A presigned URL is valid only as long as the credentials used to sign it: with temporary credentials (STS, instance
+ * profile, ...), a URL signed with an expired session token is rejected, whatever its own expiration. When a
+ * credentials provider is given, the URLs are cached with the access key and session token used to sign them, and a
+ * URL signed with other credentials than the current ones is not returned (it is replaced by a new one).
+ * <br>
+ * The cache holds at most <code>maxEntries</code> URLs (least recently used ones are evicted). The class is thread
+ * safe.
+ *
+ * @since 3.2.1
+ */
+public class S3PresignedUrlCache {
+
+    public static final int DEFAULT_MIN_REMAINING_PERCENT = 50;
+
+    protected int minRemainingPercent;
+
+    protected StripedLRUMap<String, CachedUrl> entries;
+
+    // null => hits and misses are not counted
+    protected S3UtilsMetrics metrics;
+
+    // null => the credentials are not checked
+    protected AWSCredentialsProvider credentialsProvider;
+
+    // Last credentials seen, shared by the entries signed with them
+    protected volatile String currentCredentials;
+
+    /**
+     * @param maxEntries
+     * @param minRemainingPercent if not between 0 and 100, the default value applies
+     */
+    public S3PresignedUrlCache(int maxEntries, int minRemainingPercent) {
+        this(maxEntries, minRemainingPercent, null);
+    }
+
+    /**
+     * @param maxEntries
+     * @param minRemainingPercent if not between 0 and 100, the default value applies
+     * @param metrics where the hits and misses are counted (cache <code>presignedUrl</code>), can be null
+     * @since 3.2.1
+     */
+    public S3PresignedUrlCache(int maxEntries, int minRemainingPercent, S3UtilsMetrics metrics) {
+        this(maxEntries, minRemainingPercent, metrics, null);
+    }
+
+    /**
+     * @param maxEntries
+     * @param minRemainingPercent if not between 0 and 100, the default value applies
+     * @param metrics where the hits and misses are counted (cache <code>presignedUrl</code>), can be null
+     * @param credentialsProvider the credentials signing the URLs, a cached URL is returned only if they did not
+     *            change. Can be null (not checked)
+     * @since 3.2.1
+     */
+    public S3PresignedUrlCache(int maxEntries, int minRemainingPercent, S3UtilsMetrics metrics,
+            AWSCredentialsProvider credentialsProvider) {
+        this.metrics = metrics;
+        this.credentialsProvider = credentialsProvider;
+        this.minRemainingPercent = minRemainingPercent >= 0 && minRemainingPercent <= 100 ? minRemainingPercent
+                : DEFAULT_MIN_REMAINING_PERCENT;
+        entries = new StripedLRUMap<>(maxEntries);
+    }
+
+    /**
+     * Returns the cached URL if enough of its lifetime remains and it was signed with the current credentials, else
+     * builds a new one with <code>builder</code> (which must build a URL valid <code>durationInSeconds</code> from now)
+     * and caches it.
+     *
+     * @param bucket
+     * @param objectKey
+     * @param durationInSeconds
+     * @param contentType can be null
+     * @param contentDisposition can be null
+     * @param builder
+     * @return the URL
+     * @since 3.2.1
+     */
+    public String get(String bucket, String objectKey, int durationInSeconds, String contentType,
+            String contentDisposition, Supplier<String> builder) {
+
+        String cacheKey = buildCacheKey(bucket, objectKey, durationInSeconds, contentType, contentDisposition);
+        long lifetime = durationInSeconds * 1000L;
+
+        String credentials = getCredentials();
+        long now = System.currentTimeMillis();
+        CachedUrl cached = entries.get(cacheKey);
+        boolean hit = cached != null && cached.credentials == credentials
+                && (cached.expiresAt - now) * 100 > lifetime * minRemainingPercent;
+        if (metrics != null) {
+            metrics.cacheLookup("presignedUrl", hit);
+        }
+        if (hit) {
+            return cached.url;
+        }
+
+        // Concurrent callers may both build a URL, the last one wins. Not worth a lock.
+        String url = builder.get();
+        entries.put(cacheKey, new CachedUrl(url, now + lifetime, credentials));
+        return url;
+    }
+
+    /*
+     * The access key and session token of the current credentials, null if they are not checked. The same instance is
+     * returned as long as they do not change, so the entries compare it with ==
+     */
+    protected String getCredentials() {
+
+        if (credentialsProvider == null) {
+            return null;
+        }
+        AWSCredentials awsCredentials = credentialsProvider.getCredentials();
+        String credentials = awsCredentials.getAWSAccessKeyId();
+        if (awsCredentials instanceof AWSSessionCredentials) {
+            credentials += "/" + ((AWSSessionCredentials) awsCredentials).getSessionToken();
+        }
+        String current = currentCredentials;
+        if (credentials.equals(current)) {
+            return current;
+        }
+        // New credentials: the URLs signed with the previous ones are not returned anymore
+        currentCredentials = credentials;
+        return credentials;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    protected static String buildCacheKey(String bucket, String objectKey, int durationInSeconds, String contentType,
+            String contentDisposition) {
+
+        // Values are prefixed with their length, so different parameters never give the same cache key
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(bucket).append('/').append(durationInSeconds);
+        for (String value : new String[] { objectKey, contentType, contentDisposition }) {
+            sb.append('/');
+            if (value != null) {
+                sb.append(value.length()).append(':').append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static class CachedUrl {
+
+        protected final String url;
+
+        protected final long expiresAt;
+
+        protected final String credentials;
+
+        protected CachedUrl(String url, long expiresAt, String credentials) {
+            this.url = url;
+            this.expiresAt = expiresAt;
+            this.credentials = credentials;
+        }
+    }
+
+}
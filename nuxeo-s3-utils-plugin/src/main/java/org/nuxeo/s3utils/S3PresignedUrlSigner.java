@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.BucketNameUtils;
+
+/**
+ * Builds presigned GET URLs (AWS Signature Version 4, query string) without going through
+ * <code>AmazonS3.generatePresignedUrl</code>, which builds a full request object graph and derives the signing key
+ * for every URL.
+ * <ul>
+ * <li>The signing key (the HMAC chain secret/date/region/service) is derived once per day (and per secret key, in case
+ * the credentials are rotated).</li>
+ * <li><code>Mac</code> and <code>MessageDigest</code> instances are reused, one per thread.</li>
+ * <li>The base URL of a bucket (virtual host or path style, as decided by the S3 client) is computed once per
+ * bucket.</li>
+ * </ul>
+ * The S3 client does not tell whether it uses S3 Transfer Acceleration (its <code>getUrl</code> returns the regional
+ * host anyway): it must be passed to the constructor, so that the URLs use the <code>s3-accelerate</code> host as the
+ * SDK does.
+ * The URLs are the same as the ones built by the AWS SDK (same parameters, same order, same encoding, same
+ * signature).
+ *
+ * @since 3.2.1
+ */
+public class S3PresignedUrlSigner {
+
+    public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    public static final String SERVICE = "s3";
+
+    // SigV4 limit
+    public static final long MAX_EXPIRES_SECONDS = 7 * 24 * 3600;
+
+    protected static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+                                                                                 .withZone(ZoneOffset.UTC);
+
+    protected static final String ACCELERATE_HOST = "s3-accelerate.amazonaws.com";
+
+    protected static final String ACCELERATE_DUALSTACK_HOST = "s3-accelerate.dualstack.amazonaws.com";
+
+    protected static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    protected static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    protected static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    protected static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    protected AmazonS3 s3;
+
+    protected AWSCredentialsProvider credentialsProvider;
+
+    protected String region;
+
+    // null if the client does not use S3 Transfer Acceleration
+    protected String accelerateHost;
+
+    protected volatile SigningKey signingKey;
+
+    protected final Map<String, BucketEndpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param s3 the client, used to get the URL of the buckets
+     * @param credentialsProvider
+     * @param region the signing region
+     */
+    public S3PresignedUrlSigner(AmazonS3 s3, AWSCredentialsProvider credentialsProvider, String region) {
+        this(s3, credentialsProvider, region, false, false);
+    }
+
+    /**
+     * @param s3 the client, used to get the URL of the buckets
+     * @param credentialsProvider
+     * @param region the signing region
+     * @param accelerateMode true if the client was built with <code>withAccelerateModeEnabled(true)</code>
+     * @param dualstack true if the client was built with <code>withDualstackEnabled(true)</code>
+     * @since 3.2.1
+     */
+    public S3PresignedUrlSigner(AmazonS3 s3, AWSCredentialsProvider credentialsProvider, String region,
+            boolean accelerateMode, boolean dualstack) {
+        this.s3 = s3;
+        this.credentialsProvider = credentialsProvider;
+        this.region = region;
+        if (accelerateMode) {
+            accelerateHost = dualstack ? ACCELERATE_DUALSTACK_HOST : ACCELERATE_HOST;
+        }
+    }
+
+    /**
+     * Returns a presigned GET URL to the object
+     *
+     * @param bucket
+     * @param key
+     * @param expiration
+     * @param requestParameters additional parameters (<code>response-content-type</code>, ...), can be null
+     * @return the URL
+     * @throws IllegalArgumentException if the expiration is more than 7 days away
+     * @since 3.2.1
+     */
+    public String presignGet(String bucket, String key, Date expiration, Map<String, String> requestParameters) {
+
+        long now = System.currentTimeMillis();
+        return presignGet(bucket, key, now, (expiration.getTime() - now) / 1000, requestParameters);
+    }
+
+    /*
+     * Same computation as the SDK: the expiration is sent as a number of seconds from the signing time.
+     */
+    protected String presignGet(String bucket, String key, long signingTimeMs, long expiresSeconds,
+            Map<String, String> requestParameters) {
+
+        if (expiresSeconds > MAX_EXPIRES_SECONDS) {
+            throw new IllegalArgumentException(
+                    "Requests that are pre-signed by SigV4 algorithm are valid for at most 7 days");
+        }
+
+        AWSCredentials credentials = credentialsProvider.getCredentials();
+        String accessKey = credentials.getAWSAccessKeyId().trim();
+        String secretKey = credentials.getAWSSecretKey().trim();
+        String sessionToken = null;
+        if (credentials instanceof AWSSessionCredentials) {
+            sessionToken = ((AWSSessionCredentials) credentials).getSessionToken();
+            sessionToken = sessionToken == null ? null : sessionToken.trim();
+        }
+
+        String dateTime = DATE_TIME_FORMAT.format(Instant.ofEpochMilli(signingTimeMs));
+        String date = dateTime.substring(0, 8);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+
+        BucketEndpoint endpoint = endpoints.computeIfAbsent(bucket, this::buildEndpoint);
+        String path = endpoint.path + encode(key, true);
+
+        // Query string, in the order used by the SDK: request parameters (sorted), then the signing parameters
+        StringBuilder query = new StringBuilder(512);
+        if (requestParameters != null) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(requestParameters).entrySet()) {
+                appendParameter(query, entry.getKey(), entry.getValue());
+            }
+        }
+        if (sessionToken != null) {
+            appendParameter(query, "X-Amz-Security-Token", sessionToken);
+        }
+        appendParameter(query, "X-Amz-Algorithm", ALGORITHM);
+        appendParameter(query, "X-Amz-Date", dateTime);
+        appendParameter(query, "X-Amz-SignedHeaders", "host");
+        appendParameter(query, "X-Amz-Expires", Long.toString(expiresSeconds));
+        appendParameter(query, "X-Amz-Credential", accessKey + "/" + scope);
+
+        // Canonical query string: sorted by (encoded) name
+        String[] parameters = query.toString().split("&");
+        Arrays.sort(parameters, (a, b) -> a.substring(0, a.indexOf('=')).compareTo(b.substring(0, b.indexOf('='))));
+        String canonicalQuery = String.join("&", parameters);
+
+        String canonicalRequest = "GET\n" + path + "\n" + canonicalQuery + "\nhost:" + endpoint.host
+                + "\n\nhost\nUNSIGNED-PAYLOAD";
+        String stringToSign = ALGORITHM + "\n" + dateTime + "\n" + scope + "\n"
+                + toHex(SHA256.get().digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+        byte[] signature = hmac(getSigningKey(secretKey, date), stringToSign);
+
+        query.append("&X-Amz-Signature=").append(toHex(signature));
+
+        // As the SDK does, the "//" are kept in the canonical request, but not in the URL
+        if (path.contains("//")) {
+            path = path.replaceAll("(?<=/)/", "%2F");
+        }
+
+        return endpoint.baseUrl + path + "?" + query;
+    }
+
+    protected byte[] getSigningKey(String secretKey, String date) {
+
+        SigningKey current = signingKey;
+        if (current == null || !current.date.equals(date) || !current.secretKey.equals(secretKey)) {
+            byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+            key = hmac(key, region);
+            key = hmac(key, SERVICE);
+            key = hmac(key, "aws4_request");
+            current = new SigningKey(secretKey, date, key);
+            signingKey = current;
+        }
+        return current.key;
+    }
+
+    protected BucketEndpoint buildEndpoint(String bucket) {
+
+        URL url = s3.getUrl(bucket, "");
+        if (accelerateHost != null) {
+            // Same as the SDK: virtual host when the bucket name allows it
+            if (BucketNameUtils.isDNSBucketName(bucket)) {
+                String host = bucket + "." + accelerateHost;
+                return new BucketEndpoint(url.getProtocol() + "://" + host, host, "/");
+            }
+            return new BucketEndpoint(url.getProtocol() + "://" + accelerateHost, accelerateHost,
+                    "/" + encode(bucket, false) + "/");
+        }
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+        String path = url.getPath();
+        if (!path.endsWith("/")) {
+            path += "/";
+        }
+        return new BucketEndpoint(url.getProtocol() + "://" + host, host, path);
+    }
+
+    protected static byte[] hmac(byte[] key, String data) {
+
+        Mac mac = HMAC_SHA256.get();
+        try {
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected static void appendParameter(StringBuilder query, String name, String value) {
+
+        if (query.length() > 0) {
+            query.append('&');
+        }
+        encode(query, name, false);
+        query.append('=');
+        encode(query, value, false);
+    }
+
+    protected static String encode(String value, boolean keepSlash) {
+
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        encode(sb, value, keepSlash);
+        return sb.toString();
+    }
+
+    /*
+     * RFC 3986 encoding: only the unreserved characters are kept (and "/" if keepSlash)
+     */
+    protected static void encode(StringBuilder sb, String value, boolean keepSlash) {
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || c == '.' || c == '~' || (keepSlash && c == '/')) {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(HEX_UPPER[c >> 4]).append(HEX_UPPER[c & 0xf]);
+            }
+        }
+    }
+
+    protected static String toHex(byte[] bytes) {
+
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    protected static class SigningKey {
+
+        protected final String secretKey;
+
+        protected final String date;
+
+        protected final byte[] key;
+
+        protected SigningKey(String secretKey, String date, byte[] key) {
+            this.secretKey = secretKey;
+            this.date = date;
+            this.key = key;
+        }
+    }
+
+    protected static class BucketEndpoint {
+
+        protected final String baseUrl;
+
+        protected final String host;
+
+        protected final String path;
+
+        protected BucketEndpoint(String baseUrl, String host, String path) {
+            this.baseUrl = baseUrl;
+            this.host = host;
+            this.path = path;
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Block-aligned cache for ranged reads of S3 objects, used by S3HandlerImpl#readBytes when the handler is configured
+ * for it (<code>rangeCacheSize</code> > 0).
+ * <ul>
+ * <li>Objects are read by blocks of <code>blockSize</code> bytes. A block is cached for (bucket, key, ETag, block
+ * index), in a LRU cache bounded by <code>maxSize</code> bytes.</li>
+ * <li>Blocks can be stored off-heap (direct ByteBuffers), so a big cache does not weigh on the GC.</li>
+ * <li>When a read needs several missing blocks that are next to each other, they are fetched with a single GET.</li>
+ * <li>The ETag (and size) of an object is learned from the GET responses, and trusted for
+ * <code>eTagTrustDurationMs</code>. During this time, reading cached blocks does not call S3 at all. After this
+ * duration, the next GET is sent with the known ETag as constraint: if the object changed, its blocks are dropped and
+ * it is read again.</li>
+ * </ul>
+ * The class is thread safe.
+ *
+ * @since 3.2.1
+ */
+public class S3RangeCache {
+
+    protected static final Log log = LogFactory.getLog(S3RangeCache.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    public static final long DEFAULT_ETAG_TRUST_DURATION_MS = 60000;
+
+    // Max. number of objects we remember the ETag for
+    protected static final int MAX_KNOWN_OBJECTS = 10000;
+
+    protected long maxSize;
+
+    protected int blockSize;
+
+    protected boolean offHeap;
+
+    protected long eTagTrustDurationMs;
+
+    protected long currentSize = 0;
+
+    protected LinkedHashMap<BlockKey, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+
+    protected LinkedHashMap<String, KnownObject> knownObjects = new LinkedHashMap<String, KnownObject>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KnownObject> eldest) {
+            return size() > MAX_KNOWN_OBJECTS;
+        }
+    };
+
+    /**
+     * If <code>blockSize</code> or <code>eTagTrustDurationMs</code> are <= 0, the default values apply
+     */
+    public S3RangeCache(long maxSize, int blockSize, boolean offHeap, long eTagTrustDurationMs) {
+
+        this.maxSize = maxSize;
+        this.blockSize = blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        this.offHeap = offHeap;
+        this.eTagTrustDurationMs = eTagTrustDurationMs > 0 ? eTagTrustDurationMs : DEFAULT_ETAG_TRUST_DURATION_MS;
+    }
+
+    /**
+     * Reads len bytes from start in the object, using the cached blocks when possible. As with a direct ranged GET, the
+     * returned array is shorter than <code>len</code> if the end of the object is reached.
+     *
+     * @param s3
+     * @param bucket
+     * @param objectKey
+     * @param start
+     * @param len
+     * @return the bytes
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public byte[] readBytes(AmazonS3 s3, String bucket, String objectKey, long start, long len) throws IOException {
+
+        if (len <= 0) {
+            return new byte[0];
+        }
+
+        String objectId = buildObjectId(bucket, objectKey);
+        KnownObject known = getKnownObject(objectId);
+        if (known != null && start >= known.size) {
+            // Let S3 return the error
+            return readUncached(s3, bucket, objectKey, start, len);
+        }
+
+        long firstBlock = start / blockSize;
+        long lastBlock = (start + len - 1) / blockSize;
+        if (known != null) {
+            lastBlock = Math.min(lastBlock, (known.size - 1) / blockSize);
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[(int) (lastBlock - firstBlock + 1)];
+        if (known == null || !known.isTrusted(eTagTrustDurationMs)) {
+            // Unknown object, or ETag to check again: one GET for the whole range (with the ETag constraint if any)
+            KnownObject fetched = fetchBlocks(s3, bucket, objectKey, known, firstBlock, lastBlock, buffers, firstBlock);
+            if (fetched == null) {
+                return readBytes(s3, bucket, objectKey, start, len);
+            }
+            known = fetched;
+        } else {
+            synchronized (this) {
+                for (long i = firstBlock; i <= lastBlock; i++) {
+                    buffers[(int) (i - firstBlock)] = blocks.get(new BlockKey(objectId, known.eTag, i));
+                }
+            }
+            // Fetch the missing blocks, merging the ones that are next to each other
+            long runStart = -1;
+            for (long i = firstBlock; i <= lastBlock + 1; i++) {
+                boolean missing = i <= lastBlock && buffers[(int) (i - firstBlock)] == null;
+                if (missing && runStart < 0) {
+                    runStart = i;
+                } else if (!missing && runStart >= 0) {
+                    if (fetchBlocks(s3, bucket, objectKey, known, runStart, i - 1, buffers, firstBlock) == null) {
+                        // Object was modified, the blocks we already have are not valid anymore
+                        return readBytes(s3, bucket, objectKey, start, len);
+                    }
+                    runStart = -1;
+                }
+            }
+        }
+
+        if (start >= known.size) {
+            return new byte[0];
+        }
+        long end = Math.min(start + len, known.size);
+        byte[] result = new byte[(int) (end - start)];
+        int resultPos = 0;
+        for (long i = firstBlock; i <= lastBlock && resultPos < result.length; i++) {
+            ByteBuffer buffer = buffers[(int) (i - firstBlock)].duplicate();
+            int offset = (int) Math.max(0, start - i * blockSize);
+            int count = Math.min(buffer.limit() - offset, result.length - resultPos);
+            buffer.position(offset);
+            buffer.get(result, resultPos, count);
+            resultPos += count;
+        }
+
+        return result;
+    }
+
+    /*
+     * Fetches [fromBlock, toBlock] in a single GET, stores the blocks in the cache and in buffers. If known is not
+     * null, its ETag is used as a constraint. Returns the KnownObject for the object, or null if the object was
+     * modified (then it is invalidated and buffers are not filled)
+     */
+    protected KnownObject fetchBlocks(AmazonS3 s3, String bucket, String objectKey, KnownObject known, long fromBlock,
+            long toBlock, ByteBuffer[] buffers, long firstBlock) throws IOException {
+
+        String objectId = buildObjectId(bucket, objectKey);
+        long start = fromBlock * blockSize;
+        long end = (toBlock + 1) * blockSize - 1;
+        if (known != null) {
+            end = Math.min(end, known.size - 1);
+        }
+
+        GetObjectRequest gor = new GetObjectRequest(bucket, objectKey).withRange(start, end);
+        if (known != null) {
+            gor.withMatchingETagConstraint(known.eTag);
+        }
+        S3Object object = s3.getObject(gor);
+        if (object == null) {
+            // ETag constraint not met: the object was modified
+            invalidate(bucket, objectKey);
+            return null;
+        }
+
+        try (S3ObjectInputStream stream = object.getObjectContent()) {
+            ObjectMetadata metadata = object.getObjectMetadata();
+            long size = metadata.getInstanceLength();
+            KnownObject result = known;
+            if (result == null) {
+                result = new KnownObject(metadata.getETag(), size);
+            } else {
+                result.since = System.currentTimeMillis();
+            }
+            end = Math.min(end, size - 1);
+
+            for (long i = fromBlock; i <= toBlock && i * blockSize <= end; i++) {
+                int blockLength = (int) (Math.min((i + 1) * blockSize - 1, end) - i * blockSize + 1);
+                ByteBuffer buffer = readBlock(stream, blockLength);
+                buffers[(int) (i - firstBlock)] = buffer;
+                put(new BlockKey(objectId, result.eTag, i), buffer);
+            }
+
+            synchronized (this) {
+                knownObjects.put(objectId, result);
+            }
+            return result;
+        }
+    }
+
+    protected ByteBuffer readBlock(InputStream stream, int length) throws IOException {
+
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(length);
+            ReadableByteChannel channel = Channels.newChannel(stream);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading
+            }
+        } else {
+            byte[] bytes = new byte[length];
+            buffer = ByteBuffer.wrap(bytes, 0, length);
+            buffer.position(stream.readNBytes(bytes, 0, length));
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException(String.format("Expected %d bytes, got %d", length, buffer.position()));
+        }
+        buffer.flip();
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    protected byte[] readUncached(AmazonS3 s3, String bucket, String objectKey, long start, long len)
+            throws IOException {
+
+        GetObjectRequest gor = new GetObjectRequest(bucket, objectKey).withRange(start, start + len - 1);
+        try (S3ObjectInputStream stream = s3.getObject(gor).getObjectContent()) {
+            return stream.readAllBytes();
+        }
+    }
+
+    protected synchronized void put(BlockKey key, ByteBuffer buffer) {
+
+        ByteBuffer previous = blocks.put(key, buffer);
+        if (previous != null) {
+            currentSize -= previous.capacity();
+        }
+        currentSize += buffer.capacity();
+
+        Iterator<ByteBuffer> it = blocks.values().iterator();
+        while (currentSize > maxSize && it.hasNext()) {
+            currentSize -= it.next().capacity();
+            it.remove();
+        }
+    }
+
+    protected synchronized KnownObject getKnownObject(String objectId) {
+        return knownObjects.get(objectId);
+    }
+
+    /**
+     * Removes all the blocks of the object from the cache
+     *
+     * @param bucket
+     * @param objectKey
+     * @since 3.2.1
+     */
+    public synchronized void invalidate(String bucket, String objectKey) {
+
+        String objectId = buildObjectId(bucket, objectKey);
+        if (knownObjects.remove(objectId) != null) {
+            Iterator<Map.Entry<BlockKey, ByteBuffer>> it = blocks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<BlockKey, ByteBuffer> entry = it.next();
+                if (entry.getKey().objectId.equals(objectId)) {
+                    currentSize -= entry.getValue().capacity();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        knownObjects.clear();
+        currentSize = 0;
+    }
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    protected static String buildObjectId(String bucket, String objectKey) {
+        return bucket + "/" + objectKey;
+    }
+
+    protected static class KnownObject {
+
+        protected final String eTag;
+
+        protected final long size;
+
+        protected volatile long since;
+
+        protected KnownObject(String eTag, long size) {
+            this.eTag = eTag;
+            this.size = size;
+            since = System.currentTimeMillis();
+        }
+
+        protected boolean isTrusted(long trustDurationMs) {
+            return System.currentTimeMillis() - since <= trustDurationMs;
+        }
+    }
+
+    protected static class BlockKey {
+
+        protected final String objectId;
+
+        protected final String eTag;
+
+        protected final long blockIndex;
+
+        protected BlockKey(String objectId, String eTag, long blockIndex) {
+            this.objectId = objectId;
+            this.eTag = eTag;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(objectId, eTag, blockIndex);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) obj;
+            return blockIndex == other.blockIndex && objectId.equals(other.objectId) && eTag.equals(other.eTag);
+        }
+    }
+
+}
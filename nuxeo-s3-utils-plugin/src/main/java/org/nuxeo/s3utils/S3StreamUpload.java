@@ -0,0 +1,288 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Uploads an InputStream to S3 without copying it to a local file first.
+ * <ul>
+ * <li>If the length is known and below the multipart threshold, the stream is sent with a single PUT.</li>
+ * <li>Else, the stream is read part after part in memory buffers, and each part is uploaded in the executor while the
+ * next one is read. At most <code>maxBuffers</code> buffers are allocated for an upload: when they are all in use,
+ * reading waits until a part is uploaded. So the memory used is bounded by <code>maxBuffers * partSize</code>.</li>
+ * <li>If the stream is shorter than a part, it is sent with a single PUT.</li>
+ * <li>If anything fails, the multipart upload is aborted (no orphan parts are left in the bucket).</li>
+ * </ul>
+ * An instance is used for one upload.
+ *
+ * @since 3.2.1
+ */
+public class S3StreamUpload {
+
+    protected static final Log log = LogFactory.getLog(S3StreamUpload.class);
+
+    // S3 limits
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    public static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+
+    public static final int MAX_PARTS = 10000;
+
+    public static final int DEFAULT_MAX_BUFFERS = 4;
+
+    protected AmazonS3 s3;
+
+    protected String bucket;
+
+    protected String objectKey;
+
+    protected long partSize;
+
+    protected long singlePutThreshold;
+
+    protected int maxBuffers;
+
+    protected ExecutorService executor;
+
+    protected BlockingQueue<byte[]> freeBuffers;
+
+    protected int allocatedBuffers = 0;
+
+    protected volatile Throwable failure;
+
+    /**
+     * @param s3
+     * @param bucket
+     * @param objectKey
+     * @param partSize the size of each part, at least 5MB (the S3 minimum)
+     * @param singlePutThreshold streams of known length up to this size are sent with a single PUT
+     * @param maxBuffers max. number of parts in memory, read or being uploaded
+     * @param executor runs the upload of the parts
+     */
+    public S3StreamUpload(AmazonS3 s3, String bucket, String objectKey, long partSize, long singlePutThreshold,
+            int maxBuffers, ExecutorService executor) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.partSize = Math.min(Math.max(partSize, MIN_PART_SIZE), Integer.MAX_VALUE - 8);
+        this.singlePutThreshold = singlePutThreshold;
+        this.maxBuffers = maxBuffers > 0 ? maxBuffers : DEFAULT_MAX_BUFFERS;
+        this.executor = executor;
+        freeBuffers = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    /**
+     * Uploads the stream. The caller is responsible for closing it.
+     *
+     * @param in
+     * @param length the length of the stream, -1 if unknown
+     * @param contentType can be null
+     * @return the ETag of the new object
+     * @throws IOException if the stream cannot be read, or its length is not the expected one
+     * @since 3.2.1
+     */
+    public String upload(InputStream in, long length, String contentType) throws IOException {
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (StringUtils.isNotBlank(contentType)) {
+            metadata.setContentType(contentType);
+        }
+
+        if (length >= 0 && length <= singlePutThreshold) {
+            metadata.setContentLength(length);
+            return s3.putObject(new PutObjectRequest(bucket, objectKey, in, metadata)).getETag();
+        }
+
+        if (length > 0) {
+            // Not more than MAX_PARTS parts
+            long minSize = (length + MAX_PARTS - 1) / MAX_PARTS;
+            if (minSize > partSize) {
+                if (minSize > MAX_PART_SIZE || minSize > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Object too big for a multipart upload: " + length + " bytes");
+                }
+                partSize = minSize;
+            }
+        }
+
+        byte[] buffer = takeBuffer();
+        int count = readFully(in, buffer);
+        if (count < buffer.length) {
+            // Less than one part
+            checkLength(length, count);
+            metadata.setContentLength(count);
+            return s3.putObject(
+                    new PutObjectRequest(bucket, objectKey, new ByteArrayInputStream(buffer, 0, count), metadata))
+                     .getETag();
+        }
+
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, objectKey, metadata))
+                            .getUploadId();
+        List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+        try {
+            long total = 0;
+            int partNumber = 1;
+            while (count > 0) {
+                if (partNumber > MAX_PARTS) {
+                    throw new IOException("Stream too big for a multipart upload of parts of " + partSize + " bytes");
+                }
+                total += count;
+                parts.add(uploadPart(uploadId, partNumber, buffer, count));
+                partNumber += 1;
+                if (count < buffer.length) {
+                    break;
+                }
+                buffer = takeBuffer();
+                count = readFully(in, buffer);
+                if (count == 0) {
+                    freeBuffers.offer(buffer);
+                }
+            }
+            checkLength(length, total);
+
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (CompletableFuture<PartETag> part : parts) {
+                partETags.add(part.join());
+            }
+            return s3.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucket, objectKey, uploadId, partETags)).getETag();
+
+        } catch (IOException | RuntimeException e) {
+            abort(uploadId, parts);
+            if (e instanceof CompletionException && e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    protected CompletableFuture<PartETag> uploadPart(String uploadId, int partNumber, byte[] buffer, int count) {
+
+        UploadPartRequest request = new UploadPartRequest().withBucketName(bucket)
+                                                           .withKey(objectKey)
+                                                           .withUploadId(uploadId)
+                                                           .withPartNumber(partNumber)
+                                                           .withInputStream(new ByteArrayInputStream(buffer, 0, count))
+                                                           .withPartSize(count);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (failure != null) {
+                    // Another part failed, no need to upload this one
+                    throw new CompletionException(failure);
+                }
+                return s3.uploadPart(request).getPartETag();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                throw e;
+            } finally {
+                freeBuffers.offer(buffer);
+            }
+        }, executor);
+    }
+
+    /*
+     * Returns a free buffer, allocates a new one if less than maxBuffers were allocated, else waits for an upload to
+     * release one. Fails fast if an upload failed.
+     */
+    protected byte[] takeBuffer() throws IOException {
+
+        if (failure != null) {
+            throw new IOException("Failed to upload a part of " + objectKey, failure);
+        }
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            if (allocatedBuffers < maxBuffers) {
+                allocatedBuffers += 1;
+                return new byte[(int) partSize];
+            }
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + objectKey);
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Failed to upload a part of " + objectKey, failure);
+        }
+        return buffer;
+    }
+
+    protected void abort(String uploadId, List<CompletableFuture<PartETag>> parts) {
+
+        for (CompletableFuture<PartETag> part : parts) {
+            try {
+                part.join();
+            } catch (RuntimeException e) {
+                // Already failed, or it is the failure we are handling
+            }
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, objectKey, uploadId));
+        } catch (RuntimeException e) {
+            log.warn("Could not abort the multipart upload of " + objectKey + " (upload id " + uploadId + ")", e);
+        }
+    }
+
+    protected void checkLength(long expected, long actual) throws IOException {
+        if (expected >= 0 && expected != actual) {
+            throw new IOException(
+                    String.format("Expected %d bytes for %s, the stream had %d", expected, objectKey, actual));
+        }
+    }
+
+    protected static int readFully(InputStream in, byte[] buffer) throws IOException {
+
+        int total = 0;
+        while (total < buffer.length) {
+            int count = in.read(buffer, total, buffer.length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+}
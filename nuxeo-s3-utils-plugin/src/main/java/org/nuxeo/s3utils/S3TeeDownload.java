@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.file.FileCache;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Downloads an object into a temp. file of a FileCache while readers read the bytes as soon as they are written
+ * ("tee"). Used by the S3UtilsBlobProvider when <code>getStreamMode</code> is <code>tee</code>.
+ * <ul>
+ * <li>The download runs in the background (see {@link #start(ExecutorService)}), with the ETag as constraint.</li>
+ * <li>Each reader ({@link #newReader()}) has its own position in the file, and waits for the download when it reads
+ * faster than S3 sends the bytes.</li>
+ * <li>When the download completes (and has the expected length), the file is committed in the FileCache under the
+ * ETag. If it fails, the temp. file is deleted, and the readers get an IOException.</li>
+ * <li>If all the readers close their stream before the end, the download is cancelled and nothing is committed.</li>
+ * </ul>
+ * Readers keep reading the file after it is committed (it is moved in the cache directory, and the file is still open).
+ *
+ * @since 3.2.1
+ */
+public class S3TeeDownload {
+
+    protected static final Log log = LogFactory.getLog(S3TeeDownload.class);
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected AmazonS3 s3;
+
+    protected String bucket;
+
+    protected String objectKey;
+
+    protected String eTag;
+
+    protected long length;
+
+    protected File tmp;
+
+    protected FileCache fileCache;
+
+    protected Runnable onEnd;
+
+    // All the fields below are guarded by this
+    protected long written = 0;
+
+    protected int readers = 0;
+
+    protected boolean done = false;
+
+    protected boolean committed = false;
+
+    protected boolean cancelled = false;
+
+    protected Throwable failure;
+
+    protected S3ObjectInputStream s3Stream;
+
+    /**
+     * @param s3
+     * @param bucket
+     * @param objectKey
+     * @param eTag the expected ETag, also the key in the file cache
+     * @param length the expected length
+     * @param tmp a temp file of the file cache
+     * @param fileCache
+     * @param onEnd called when the download ends (committed, failed or cancelled), can be null
+     */
+    public S3TeeDownload(AmazonS3 s3, String bucket, String objectKey, String eTag, long length, File tmp,
+            FileCache fileCache, Runnable onEnd) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.objectKey = objectKey;
+        this.eTag = eTag;
+        this.length = length;
+        this.tmp = tmp;
+        this.fileCache = fileCache;
+        this.onEnd = onEnd;
+    }
+
+    public S3TeeDownload start(ExecutorService executor) {
+        executor.execute(this::download);
+        return this;
+    }
+
+    protected void download() {
+
+        Throwable error = null;
+        boolean complete = false;
+        try {
+            GetObjectRequest gor = new GetObjectRequest(bucket, objectKey).withMatchingETagConstraint(eTag);
+            S3Object object = s3.getObject(gor);
+            if (object == null) {
+                // ETag constraint not met
+                throw new IOException("Object " + objectKey + " was modified, expected ETag " + eTag);
+            }
+
+            try (S3ObjectInputStream in = object.getObjectContent(); OutputStream out = new FileOutputStream(tmp)) {
+                synchronized (this) {
+                    s3Stream = in;
+                    if (cancelled) {
+                        in.abort();
+                        return;
+                    }
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                    synchronized (this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        written += count;
+                        notifyAll();
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (written != length) {
+                    throw new IOException(String.format("Expected %d bytes from %s, got %d", length, objectKey,
+                            written));
+                }
+                complete = true;
+                try {
+                    fileCache.putFile(eTag, tmp);
+                    committed = true;
+                } catch (IOException e) {
+                    // Current readers can still read the file they opened
+                    log.warn("Could not add " + objectKey + " to the file cache", e);
+                }
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            synchronized (this) {
+                if (!committed) {
+                    if (!complete && !cancelled) {
+                        failure = error != null ? error : new IOException("Download of " + objectKey + " failed");
+                        log.warn("Failed to download " + objectKey + " in bucket " + bucket, failure);
+                    }
+                    tmp.delete();
+                }
+                done = true;
+                notifyAll();
+            }
+            if (onEnd != null) {
+                onEnd.run();
+            }
+        }
+    }
+
+    /**
+     * Returns a new stream reading the object from the start, or null if the download is not in progress anymore
+     * (committed, failed or cancelled): the caller must then use the file cache, or start a new download.
+     *
+     * @return the stream, or null
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public synchronized InputStream newReader() throws IOException {
+
+        if (done || cancelled) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.READ);
+        readers += 1;
+        return new TeeInputStream(channel);
+    }
+
+    /*
+     * Waits until bytes are available at position. Returns the number of available bytes, 0 if the end of the object
+     * is reached.
+     */
+    protected synchronized long awaitAvailable(long position) throws IOException {
+
+        while (written <= position && !done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + objectKey);
+            }
+        }
+        if (failure != null) {
+            throw new IOException("Failed to download " + objectKey, failure);
+        }
+        if (cancelled) {
+            throw new IOException("Download of " + objectKey + " was cancelled");
+        }
+        return written - position;
+    }
+
+    protected synchronized void readerClosed() {
+
+        readers -= 1;
+        if (readers == 0 && !done) {
+            // Nobody reads the object anymore
+            cancelled = true;
+            if (s3Stream != null) {
+                s3Stream.abort();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the end of the download (without reading it)
+     *
+     * @return true if the file was committed in the file cache
+     * @throws InterruptedIOException
+     * @since 3.2.1
+     */
+    public synchronized boolean awaitCommitted() throws InterruptedIOException {
+
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + objectKey);
+            }
+        }
+        return committed;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized boolean isCommitted() {
+        return committed;
+    }
+
+    protected class TeeInputStream extends InputStream {
+
+        protected FileChannel channel;
+
+        protected long position = 0;
+
+        protected boolean closed = false;
+
+        protected TeeInputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int count = read(b, 0, 1);
+            return count < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            long available = awaitAvailable(position);
+            if (available <= 0) {
+                return -1;
+            }
+            int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            if (!closed) {
+                closed = true;
+                try {
+                    channel.close();
+                } finally {
+                    readerClosed();
+                }
+            }
+        }
+    }
+
+}
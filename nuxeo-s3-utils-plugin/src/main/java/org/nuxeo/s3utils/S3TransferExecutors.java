@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Builds the executors used by the TransferManager of the S3Handlers, and keeps the executors shared by several
+ * handlers (see the <code>transferPoolShared</code> configuration), with a reference count, so a shared executor is
+ * shut down when the last handler using it is cleaned up.
+ * <br>
+ * Also builds the executor of the background I/O of a handler (see {@link #newIOExecutor(String, int)}).
+ *
+ * @since 3.2.1
+ */
+public class S3TransferExecutors {
+
+    protected static final Log log = LogFactory.getLog(S3TransferExecutors.class);
+
+    // Same as the AWS SDK default
+    public static final int DEFAULT_POOL_SIZE = 10;
+
+    protected static final long KEEP_ALIVE_SECONDS = 60;
+
+    protected static final Map<String, SharedExecutor> SHARED_EXECUTORS = new HashMap<>();
+
+    protected S3TransferExecutors() {
+        // Static methods only
+    }
+
+    /**
+     * Builds a new executor
+     * <ul>
+     * <li>If <code>virtualThreads</code> is true and the JVM supports virtual threads (Java 21+), one virtual thread per
+     * task, the sizes are ignored (the concurrency is then bounded by the max. connections of the S3 client)</li>
+     * <li>Else, a ThreadPoolExecutor with daemon threads. <code>queueSize</code> <= 0 means unbounded. When the queue
+     * is full and the max. number of threads is reached, the task runs in the caller thread (so the callers are slowed
+     * down instead of failing).</li>
+     * </ul>
+     * A ThreadPoolExecutor starts threads above the core size only when its queue is full: with an unbounded queue,
+     * <code>maxSize</code> is ignored (a warning is logged if it is greater than <code>coreSize</code>).
+     *
+     * @param name used to name the threads
+     * @param coreSize
+     * @param maxSize
+     * @param queueSize
+     * @param virtualThreads
+     * @return the executor
+     * @since 3.2.1
+     */
+    public static ExecutorService newExecutor(String name, int coreSize, int maxSize, int queueSize,
+            boolean virtualThreads) {
+
+        if (virtualThreads) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            if (executor != null) {
+                return executor;
+            }
+            log.warn("Virtual threads are not available in this JVM, using a thread pool for " + name);
+        }
+
+        int core = coreSize > 0 ? coreSize : DEFAULT_POOL_SIZE;
+        int max = Math.max(core, maxSize);
+        if (queueSize <= 0 && max > core) {
+            log.warn(String.format(
+                    "Transfer pool %s: the max. size (%d) is ignored with an unbounded queue, only %d threads are used."
+                            + " Set a queue size to use up to %d threads",
+                    name, max, core, max));
+            max = core;
+        }
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize)
+                : new LinkedBlockingQueue<>();
+
+        return newThreadPool("s3utils-" + name + "-transfer-%d", core, max, queue);
+    }
+
+    /**
+     * Builds the executor of the blocking calls a handler runs in the background (async HEAD requests, batches,
+     * prefetching, ...). Each of them holds an HTTP connection, so there is no point in having more threads than
+     * connections: at most <code>size</code> threads and <code>size</code> waiting tasks, then the task runs in the
+     * caller thread.
+     *
+     * @param name used to name the threads
+     * @param size the max. number of threads, typically the max. number of connections of the S3 client
+     * @return the executor
+     * @since 3.2.1
+     */
+    public static ExecutorService newIOExecutor(String name, int size) {
+
+        int max = size > 0 ? size : DEFAULT_POOL_SIZE;
+        return newThreadPool("s3utils-" + name + "-io-%d", max, max, new ArrayBlockingQueue<>(max));
+    }
+
+    /*
+     * Daemon threads, stopped when idle, the task runs in the caller thread when the pool is saturated
+     */
+    protected static ThreadPoolExecutor newThreadPool(String namingPattern, int coreSize, int maxSize,
+            BlockingQueue<Runnable> queue) {
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(coreSize, maxSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, new BasicThreadFactory.Builder().namingPattern(namingPattern).daemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor() is Java 21+
+     */
+    protected static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the executor shared under this name, creating it with the factory if needed. Each call must be balanced
+     * by a call to {@link #release(String)}
+     *
+     * @param name
+     * @param factory
+     * @return the shared executor
+     * @since 3.2.1
+     */
+    public static synchronized ExecutorService acquire(String name, Supplier<ExecutorService> factory) {
+
+        SharedExecutor shared = SHARED_EXECUTORS.get(name);
+        if (shared == null) {
+            shared = new SharedExecutor(factory.get());
+            SHARED_EXECUTORS.put(name, shared);
+        }
+        shared.references += 1;
+
+        return shared.executor;
+    }
+
+    /**
+     * Releases a shared executor, shutting it down if it is not used anymore
+     *
+     * @param name
+     * @since 3.2.1
+     */
+    public static synchronized void release(String name) {
+
+        SharedExecutor shared = SHARED_EXECUTORS.get(name);
+        if (shared != null) {
+            shared.references -= 1;
+            if (shared.references <= 0) {
+                SHARED_EXECUTORS.remove(name);
+                shared.executor.shutdownNow();
+            }
+        }
+    }
+
+    protected static class SharedExecutor {
+
+        protected final ExecutorService executor;
+
+        protected int references = 0;
+
+        protected SharedExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+    }
+
+}
@@ -23,18 +23,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.SequenceInputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileCleaningTracker;
+import org.apache.commons.io.FileDeleteStrategy;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.common.file.FileCache;
@@ -54,6 +65,7 @@ import org.nuxeo.ecm.platform.convert.ConvertHelper;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.ecm.platform.mimetype.service.MimetypeRegistryService;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.s3utils.S3ObjectMetadataCache.CachedMetadata;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
 
@@ -78,6 +90,7 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
  * S3UtilsBlobProvider#getInputStream
  * - It is also possible get a byte range directly from the S3 object (no need to download it all), see
  * S3UtilsBlobProvider#getBytes
+ * - Or to get a SeekableByteChannel on the S3 object, for random access, see S3UtilsBlobProvider#getSeekableChannel
  * <p>
  * </p>
  * <b>noDefaultDownloadAbove</b>:
@@ -90,6 +103,29 @@ import com.amazonaws.services.s3.model.ObjectMetadata;
  * - You can still download the file by using the forceDownload() method
  * - So, for example, to avoid Nuxeo downloading files above 1GB:<br>
  * <property name="noDefaultDownloadAbove">1073741824</property>
+ * <p>
+ * </p>
+ * <b>Metadata cache</b>:
+ * - Reading a blob, or getting its file/stream, needs the metadata of the S3 object (ETag, length, ...). By default,
+ * each of these calls sends a HEAD request.
+ * - <code>metadataCacheTTL</code> (seconds, default 0 => no cache) caches this metadata, up to
+ * <code>metadataCacheMaxEntries</code> objects (default 10000).
+ * - <code>metadataCacheTrustDuration</code> (seconds, default 0): during this time after the metadata was fetched, the
+ * cached ETag is also used to find the file in the file cache, so a warm read is served from the local disk without
+ * any call to S3. The ETag cannot be trusted for longer than the TTL. If the object is modified on S3 during this
+ * time, the previous version is returned.
+ * <p>
+ * </p>
+ * <b>getStreamMode</b>:
+ * - <code>cache</code> (default): getStream() downloads the object to the file cache, then returns a stream on the
+ * file.
+ * - <code>stream</code>: for objects bigger than <code>streamAbove</code> (bytes, default 0), getStream() returns a
+ * stream directly from S3 (see S3Handler#getInputStream), the object is not written on disk. If the object is already
+ * in the file cache, the cached file is used. noDefaultDownloadAbove has precedence: above it, the place holder is
+ * returned.
+ * - <code>tee</code>: same as <code>stream</code>, but the bytes are also written in the file cache while the caller
+ * reads them (see S3TeeDownload). Once the download is complete, the file is in the cache for the next readers. Other
+ * readers of the same object during the download read the same temp. file, instead of starting their own download.
  * 
  * @since 2.1.1
  */
@@ -108,14 +144,56 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
 
     public static final String S3_HANDLER_ATTACHED_PROPERTY = "s3Handler";
 
+    public static final String METADATA_CACHE_TTL_PROPERTY = "metadataCacheTTL";
+
+    public static final String METADATA_CACHE_MAX_ENTRIES_PROPERTY = "metadataCacheMaxEntries";
+
+    public static final String METADATA_CACHE_TRUST_DURATION_PROPERTY = "metadataCacheTrustDuration";
+
+    public static final String GET_STREAM_MODE_PROPERTY = "getStreamMode";
+
+    public static final String GET_STREAM_MODE_CACHE = "cache";
+
+    public static final String GET_STREAM_MODE_STREAM = "stream";
+
+    public static final String GET_STREAM_MODE_TEE = "tee";
+
+    public static final String STREAM_ABOVE_PROPERTY = "streamAbove";
+
     protected S3Handler s3Handler;
 
     protected File cachedir;
 
+    // Files returned by getFile
+    protected File linksdir;
+
+    // Deletes the directory of a file returned by getFile once the File is garbage collected
+    protected final FileCleaningTracker linksTracker = new FileCleaningTracker();
+
     public FileCache fileCache;
 
     protected long maxForDefaultDownload;
 
+    // null => no metadata cache
+    protected S3ObjectMetadataCache metadataCache;
+
+    protected long metadataTrustDurationMs;
+
+    protected String getStreamMode;
+
+    protected long streamAbove;
+
+    // Tee downloads in progress, by ETag
+    protected final Map<String, S3TeeDownload> teeDownloads = new ConcurrentHashMap<>();
+
+    // Downloads to the file cache in progress, by ETag
+    protected final Map<String, CompletableFuture<File>> downloads = new ConcurrentHashMap<>();
+
+    // Background downloads. Created on first use
+    protected ExecutorService executor;
+
+    protected S3UtilsMetrics metrics;
+
     @Override
     public void initialize(String blobProviderId, Map<String, String> properties) throws IOException {
 
@@ -128,6 +206,7 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
             throw new NuxeoException("Cannot initialize the S3UtilsBlobProvider because the related S3Handler named '"
                     + s3HandlerAttached + "' was not found.");
         }
+        metrics = new S3UtilsMetrics(s3HandlerAttached);
 
         String cacheSizeStr = properties.getOrDefault(CACHE_SIZE_PROPERTY, "100 mb");
         String cacheCountStr = properties.getOrDefault(CACHE_COUNT_PROPERTY, "10000");
@@ -138,17 +217,52 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
 
         String maxForDefaultDownloadStr = properties.getOrDefault(NO_DEFAULT_DOWNLOAD_ABOVE_PROPERTY, "0");
         maxForDefaultDownload = Long.parseLong(maxForDefaultDownloadStr);
+
+        long metadataTTL = Long.parseLong(properties.getOrDefault(METADATA_CACHE_TTL_PROPERTY, "0"));
+        if (metadataTTL > 0) {
+            int maxEntries = Integer.parseInt(properties.getOrDefault(METADATA_CACHE_MAX_ENTRIES_PROPERTY,
+                    "" + S3ObjectMetadataCache.DEFAULT_MAX_ENTRIES));
+            metadataCache = new S3ObjectMetadataCache(metadataTTL * 1000, maxEntries);
+            metadataTrustDurationMs = Long.parseLong(
+                    properties.getOrDefault(METADATA_CACHE_TRUST_DURATION_PROPERTY, "0")) * 1000;
+        }
+
+        getStreamMode = properties.getOrDefault(GET_STREAM_MODE_PROPERTY, GET_STREAM_MODE_CACHE).trim().toLowerCase();
+        switch (getStreamMode) {
+        case GET_STREAM_MODE_CACHE:
+        case GET_STREAM_MODE_STREAM:
+        case GET_STREAM_MODE_TEE:
+            break;
+
+        default:
+            throw new NuxeoException(
+                    "Invalid " + GET_STREAM_MODE_PROPERTY + " for blob provider " + blobProviderId + ": " + getStreamMode);
+        }
+        streamAbove = SizeUtils.parseSizeInBytes(properties.getOrDefault(STREAM_ABOVE_PROPERTY, "0"));
     }
 
     @Override
     public void close() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        if (metadataCache != null) {
+            metadataCache.clear();
+        }
         fileCache.clear();
-        if (cachedir != null) {
-            try {
+        linksTracker.exitWhenFinished();
+        try {
+            if (cachedir != null) {
                 FileUtils.deleteDirectory(cachedir);
-            } catch (IOException e) {
-                throw new NuxeoException(e);
             }
+            if (linksdir != null) {
+                FileUtils.deleteDirectory(linksdir);
+            }
+        } catch (IOException e) {
+            throw new NuxeoException(e);
         }
     }
 
@@ -175,31 +289,140 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
     @Override
     public InputStream getStream(ManagedBlob blob) throws IOException {
 
+        if (!GET_STREAM_MODE_CACHE.equals(getStreamMode)) {
+            BlobKey blobKey = new BlobKey(blobProviderId, blob.getKey(), s3Handler.getBucket());
+            String objectKey = blobKey.getObjectKey();
+
+            CachedMetadata metadata = getObjectMetadata(objectKey, metadataTrustDurationMs);
+            if (shouldStream(metadata)) {
+                File cachedFile = getCachedFile(metadata.getETag());
+                if (cachedFile != null) {
+                    return new FileInputStream(cachedFile);
+                }
+                if (GET_STREAM_MODE_TEE.equals(getStreamMode)) {
+                    return getTeeStream(objectKey, metadata);
+                }
+                return s3Handler.getInputStream(objectKey);
+            }
+        }
+
         File cachedFile = getFileFromCache(blob);
         return new FileInputStream(cachedFile);
     }
 
+    /**
+     * Returns a stream on the object while it is downloaded to the file cache. If a download of the same ETag is
+     * already in progress, the stream reads it, else a new download is started.
+     *
+     * @param objectKey
+     * @param metadata
+     * @return the stream
+     * @throws IOException
+     * @since 3.2.1
+     */
+    protected InputStream getTeeStream(String objectKey, CachedMetadata metadata) throws IOException {
+
+        String etag = metadata.getETag();
+        // Already being downloaded to the cache (by getFile)? Do not start another download
+        CompletableFuture<File> inProgress = downloads.get(etag);
+        if (inProgress != null) {
+            return new FileInputStream(awaitDownload(objectKey, inProgress));
+        }
+
+        // Retry once, if the download we found ended before we could read it
+        for (int i = 0; i < 2; i++) {
+            S3TeeDownload download = teeDownloads.computeIfAbsent(etag, k -> startTeeDownload(objectKey, metadata));
+            InputStream stream = download.newReader();
+            if (stream != null) {
+                return stream;
+            }
+            teeDownloads.remove(etag, download);
+            File cachedFile = fileCache.getFile(etag);
+            if (cachedFile != null) {
+                return new FileInputStream(cachedFile);
+            }
+        }
+
+        throw new IOException("Could not download " + objectKey);
+    }
+
+    protected S3TeeDownload startTeeDownload(String objectKey, CachedMetadata metadata) {
+
+        String etag = metadata.getETag();
+        File tmp;
+        try {
+            tmp = fileCache.getTempFile();
+        } catch (IOException e) {
+            throw new NuxeoException(e);
+        }
+        S3TeeDownload download = new S3TeeDownload(s3Handler.getS3(), s3Handler.getBucket(), objectKey, etag,
+                metadata.getContentLength(), tmp, fileCache, null);
+        download.onEnd = () -> teeDownloads.remove(etag, download);
+
+        return download.start(getExecutor());
+    }
+
+    /**
+     * Returns the executor used for background downloads. Threads are daemon threads, created on demand.
+     *
+     * @return the executor
+     * @since 3.2.1
+     */
+    protected synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new BasicThreadFactory.Builder().namingPattern(
+                    "s3utils-blobprovider-" + blobProviderId + "-%d").daemon(true).build());
+        }
+        return executor;
+    }
+
+    /*
+     * noDefaultDownloadAbove has precedence: above it, we return the place holder
+     */
+    protected boolean shouldStream(CachedMetadata metadata) {
+
+        long length = metadata.getContentLength();
+        if (maxForDefaultDownload > 0 && length > maxForDefaultDownload) {
+            return false;
+        }
+        return length > streamAbove;
+    }
+
+    /**
+     * Returns a file named after the blob. The file cached under the ETag stays in place (so next calls do not download
+     * the object again): the returned file is a hard link to it, in its own directory, or a copy if the file system
+     * does not support hard links. The file and its directory are deleted when the returned File is garbage
+     * collected, or when the provider is closed. Until then, a hard link keeps the content on disk even if the entry
+     * is evicted from the file cache.
+     */
     @Override
     public File getFile(ManagedBlob blob) {
 
-        File f = null;
         try {
-            f = getFileFromCache(blob);
-            // Files in the cache have their name set as the ETag, we must
-            // change this.
-            String path = FilenameUtils.getPath(f.getAbsolutePath());
-            if (path.lastIndexOf("/") < 0) {
-                path += "/";
+            File cachedFile = getFileFromCache(blob);
+
+            // The file name comes from the user: no path, it must stay in its directory
+            String fileName = FilenameUtils.getName(blob.getFilename());
+            if (StringUtils.isBlank(fileName) || ".".equals(fileName) || "..".equals(fileName)) {
+                fileName = cachedFile.getName();
+            }
+            Path dir = Files.createTempDirectory(linksdir.toPath(), "file-");
+            Path target = dir.resolve(fileName);
+            try {
+                Files.createLink(target, cachedFile.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(cachedFile.toPath(), target);
             }
-            Path source = Paths.get(f.getAbsolutePath());
-            Path result = Files.move(source, source.resolveSibling(blob.getFilename()),
-                    StandardCopyOption.REPLACE_EXISTING);
-            f = new File(result.toString());
+
+            File f = target.toFile();
+            // The directory is deleted with the link (Framework.trackFile does not delete a non-empty directory)
+            linksTracker.track(dir.toFile(), f, FileDeleteStrategy.FORCE);
+            return f;
 
         } catch (IOException e) {
             throw new NuxeoException("Erreur getting a file for blob key " + blob.getKey(), e);
         }
-        return f;
     }
 
     public SequenceInputStream getSequenceInputStream(ManagedBlob blob) throws IOException {
@@ -221,6 +444,31 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
 
     }
 
+    /**
+     * Returns a read-only channel on the object. If the object is already in the local file cache, the channel reads
+     * the cached file, else it reads the S3 object with ranged GETs (see S3ObjectSeekableChannel): The object is not
+     * downloaded, not added to the file cache.
+     *
+     * @param blob
+     * @return the channel. Caller must close it.
+     * @throws IOException
+     * @since 3.2.1
+     */
+    public SeekableByteChannel getSeekableChannel(ManagedBlob blob) throws IOException {
+
+        BlobKey blobKey = new BlobKey(blobProviderId, blob.getKey(), s3Handler.getBucket());
+        String objectKey = blobKey.getObjectKey();
+
+        CachedMetadata metadata = getObjectMetadata(objectKey, metadataTrustDurationMs);
+        File cachedFile = getCachedFile(metadata.getETag());
+        if (cachedFile != null) {
+            return FileChannel.open(cachedFile.toPath(), StandardOpenOption.READ);
+        }
+
+        return new S3ObjectSeekableChannel(s3Handler.getS3(), s3Handler.getBucket(), objectKey,
+                metadata.toObjectMetadata());
+    }
+
     @Override
     public String writeBlob(Blob blob) throws IOException {
         throw new UnsupportedOperationException("Write not supported");
@@ -244,33 +492,146 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
         cachedir.delete();
         cachedir.mkdir();
         fileCache = new LRUFileCache(cachedir, maxSize, maxCount, minAge);
+
+        // Hard links must be on the same file system as the cache
+        linksdir = new File(cachedir.getParentFile(), cachedir.getName() + "-files");
+        linksdir.mkdir();
     }
 
     /*
-     * 
+     * Returns the file cached under the ETag of the object, downloading it if needed. There is only one download per
+     * ETag at a time: concurrent callers (including the getFile callers joining a tee download) wait for it.
      */
     protected File getFileFromCache(ManagedBlob blob) throws IOException {
 
         BlobKey blobKey = new BlobKey(blobProviderId, blob.getKey(), s3Handler.getBucket());
         String objectKey = blobKey.getObjectKey();
 
-        ObjectMetadata metadata = s3Handler.getObjectMetadata(objectKey);
+        CachedMetadata metadata = getObjectMetadata(objectKey, metadataTrustDurationMs);
         String etag = metadata.getETag();
-        File cachedFile = fileCache.getFile(etag);
-        if (cachedFile == null) {
-            File tmp = fileCache.getTempFile();
-            if (maxForDefaultDownload <= 0 || metadata.getContentLength() <= maxForDefaultDownload) {
-                /* Blob downloadedBlob = */s3Handler.downloadFile(objectKey, tmp);
-            } else {
-                buildFileWithObjectInfo(objectKey, metadata, tmp);
+        File cachedFile = getCachedFile(etag);
+        if (cachedFile != null) {
+            return cachedFile;
+        }
+
+        // Being downloaded by a tee stream?
+        S3TeeDownload teeDownload = teeDownloads.get(etag);
+        if (teeDownload != null && teeDownload.awaitCommitted()) {
+            cachedFile = fileCache.getFile(etag);
+            if (cachedFile != null) {
+                return cachedFile;
             }
-            fileCache.putFile(etag, tmp);
+        }
+
+        // Only one download per ETag, other callers wait for it
+        CompletableFuture<File> ours = new CompletableFuture<>();
+        CompletableFuture<File> inProgress = downloads.putIfAbsent(etag, ours);
+        if (inProgress != null) {
+            return awaitDownload(objectKey, inProgress);
+        }
+
+        try {
+            // Could have been downloaded just before we registered ours
             cachedFile = fileCache.getFile(etag);
+            if (cachedFile == null) {
+                cachedFile = downloadToCache(objectKey, metadata);
+            }
+            ours.complete(cachedFile);
+            return cachedFile;
+        } catch (IOException | RuntimeException e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            downloads.remove(etag, ours);
         }
+    }
 
+    protected File downloadToCache(String objectKey, CachedMetadata metadata) throws IOException {
+
+        String etag = metadata.getETag();
+        File tmp = fileCache.getTempFile();
+        if (maxForDefaultDownload <= 0 || metadata.getContentLength() <= maxForDefaultDownload) {
+            Blob downloadedBlob = s3Handler.downloadFile(objectKey, tmp);
+            // The metadata may come from the cache, the object could have been modified since then
+            if (downloadedBlob.getDigest() != null && !downloadedBlob.getDigest().equals(etag)) {
+                etag = downloadedBlob.getDigest();
+                if (metadataCache != null) {
+                    metadataCache.invalidate(s3Handler.getBucket(), objectKey);
+                }
+            }
+        } else {
+            buildFileWithObjectInfo(objectKey, metadata.toObjectMetadata(), tmp);
+        }
+        fileCache.putFile(etag, tmp);
+
+        return fileCache.getFile(etag);
+    }
+
+    /*
+     * First lookup of a file in the cache, counted in the metrics (not the checks done again while waiting for a
+     * download)
+     */
+    protected File getCachedFile(String etag) {
+
+        File cachedFile = fileCache.getFile(etag);
+        metrics.cacheLookup(blobProviderId + ".file", cachedFile != null);
         return cachedFile;
     }
 
+    protected File awaitDownload(String objectKey, CompletableFuture<File> download) throws IOException {
+
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the download of " + objectKey);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the metadata of the object, from the metadata cache if it is enabled and the cached value is younger than
+     * <code>maxAgeMs</code>, else from S3 (and then the cache is updated)
+     *
+     * @param objectKey
+     * @param maxAgeMs
+     * @return the metadata
+     * @since 3.2.1
+     */
+    protected CachedMetadata getObjectMetadata(String objectKey, long maxAgeMs) {
+
+        String bucket = s3Handler.getBucket();
+        if (metadataCache != null) {
+            CachedMetadata cached = metadataCache.get(bucket, objectKey, maxAgeMs);
+            metrics.cacheLookup(blobProviderId + ".metadata", cached != null);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        ObjectMetadata metadata = s3Handler.getObjectMetadata(objectKey);
+        if (metadataCache != null) {
+            return metadataCache.put(bucket, objectKey, metadata);
+        }
+        return new CachedMetadata(metadata);
+    }
+
+    /**
+     * @return the metadata cache, null if not enabled
+     * @since 3.2.1
+     */
+    public S3ObjectMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
     public S3Handler getS3Handler() {
         return s3Handler;
     }
@@ -303,7 +664,7 @@ public class S3UtilsBlobProvider extends AbstractBlobProvider {
 
         BlobInfo info = new BlobInfo();
 
-        ObjectMetadata metadata = s3Handler.getObjectMetadata(objectKey);
+        CachedMetadata metadata = getObjectMetadata(objectKey, Long.MAX_VALUE);
         info.key = BlobKey.buildFullKey(blobProviderId, s3Handler.getBucket(), objectKey);
         info.length = metadata.getContentLength();
         info.digest = metadata.getContentMD5();
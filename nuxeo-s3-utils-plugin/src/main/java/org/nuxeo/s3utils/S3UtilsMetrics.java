@@ -0,0 +1,305 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpMethodName;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.Meter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.RatioGauge;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Publishes the metrics of an S3Handler in the Nuxeo metrics registry, all tagged with the name of the handler:
+ * <ul>
+ * <li><code>nuxeo.s3utils.calls</code>: timer of the calls to the handler (<code>sendFile</code>,
+ * <code>existsKeys</code>, ...), tagged with the bucket and the method (<code>operation</code> tag)</li>
+ * <li><code>nuxeo.s3utils.requests</code>: timer of the requests sent to S3, tagged with the bucket and the S3
+ * operation (<code>HeadObject</code>, <code>GetObject</code>, <code>PutObject</code>, <code>DeleteObjects</code>,
+ * ...). <code>nuxeo.s3utils.requests.errors</code> counts the failed ones, tagged with the HTTP status (a HEAD
+ * request for a missing key, as sent by <code>existsKeyInS3</code>, fails with a 404)</li>
+ * <li><code>nuxeo.s3utils.bytes</code>: meter of the bytes sent to (<code>direction</code> = <code>upload</code>) and
+ * received from (<code>download</code>) S3, tagged with the bucket</li>
+ * <li><code>nuxeo.s3utils.cache.hits</code> and <code>nuxeo.s3utils.cache.misses</code>: counters, tagged with the
+ * cache (<code>keyExists</code>, <code>presignedUrl</code>, and <code>&lt;blobProviderId&gt;.file</code> and
+ * <code>&lt;blobProviderId&gt;.metadata</code> for the caches of an S3UtilsBlobProvider), and
+ * <code>nuxeo.s3utils.cache.hit.ratio</code>, the ratio of hits</li>
+ * </ul>
+ * The requests to S3 are measured by the {@link RequestHandler2} returned by {@link #newRequestHandler()}, to be set
+ * on the S3 client. The metric objects are looked up in the registry once, then kept.
+ *
+ * @since 3.2.1
+ */
+public class S3UtilsMetrics {
+
+    public static final String PREFIX = "nuxeo.s3utils";
+
+    public static final String UPLOAD = "upload";
+
+    public static final String DOWNLOAD = "download";
+
+    protected static final String DECODED_CONTENT_LENGTH = "x-amz-decoded-content-length";
+
+    protected static final HandlerContextKey<Long> START_TIME = new HandlerContextKey<>(
+            S3UtilsMetrics.class.getName() + ".startTime");
+
+    // getBucketName() of the S3 request classes, null if the class has none
+    protected static final ClassValue<Method> GET_BUCKET_NAME = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            try {
+                return type.getMethod("getBucketName");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    protected final String handlerName;
+
+    protected final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    protected final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    protected final Map<String, Meter> meters = new ConcurrentHashMap<>();
+
+    public S3UtilsMetrics(String handlerName) {
+        this.handlerName = handlerName;
+    }
+
+    /**
+     * Starts timing a call to the handler. Typical use is <code>try (Timer.Context ignored = metrics.time(...))</code>
+     *
+     * @param operation
+     * @param bucket
+     * @return the context to close when the call is done
+     * @since 3.2.1
+     */
+    public Timer.Context time(String operation, String bucket) {
+        return timer("calls", StringUtils.defaultString(bucket, "none"), operation).time();
+    }
+
+    /**
+     * Times a call to the handler, when wrapping the whole method in a <code>try</code> is not worth it
+     *
+     * @param operation
+     * @param bucket
+     * @param call
+     * @return the result of the call
+     * @since 3.2.1
+     */
+    public <T, E extends Exception> T time(String operation, String bucket, Call<T, E> call) throws E {
+        try (Timer.Context timer = time(operation, bucket)) {
+            return call.call();
+        }
+    }
+
+    /**
+     * Times an asynchronous call to the handler, until its future is completed
+     *
+     * @param operation
+     * @param bucket
+     * @param call
+     * @return the future returned by the call, completed after the timer is stopped
+     * @since 3.2.1
+     */
+    public <T> CompletableFuture<T> timeAsync(String operation, String bucket, Supplier<CompletableFuture<T>> call) {
+        Timer.Context timer = time(operation, bucket);
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            timer.stop();
+            throw e;
+        }
+        return future.whenComplete((result, e) -> timer.stop());
+    }
+
+    /**
+     * @param direction {@link #UPLOAD} or {@link #DOWNLOAD}
+     * @param bucket
+     * @param bytes
+     * @since 3.2.1
+     */
+    public void markBytes(String direction, String bucket, long bytes) {
+        if (bytes > 0) {
+            meters.computeIfAbsent(direction + "/" + bucket,
+                    k -> registry.meter(name("bytes").tagged("bucket", bucket, "direction", direction)))
+                  .mark(bytes);
+        }
+    }
+
+    /**
+     * @param cache the name of the cache
+     * @param hit
+     * @since 3.2.1
+     */
+    public void cacheLookup(String cache, boolean hit) {
+        Counter counter = counters.computeIfAbsent("cache/" + cache + "/" + hit, k -> {
+            registerHitRatio(cache);
+            return registry.counter(name(hit ? "cache.hits" : "cache.misses").tagged("cache", cache));
+        });
+        counter.inc();
+    }
+
+    /**
+     * @return a handler measuring the requests sent by the S3 client it is set on
+     * @since 3.2.1
+     */
+    public RequestHandler2 newRequestHandler() {
+
+        return new RequestHandler2() {
+
+            @Override
+            public void beforeRequest(Request<?> request) {
+                request.addHandlerContext(START_TIME, System.nanoTime());
+            }
+
+            @Override
+            public void afterResponse(Request<?> request, Response<?> response) {
+
+                String bucket = getBucket(request.getOriginalRequest());
+                requestDone(request, bucket);
+
+                if (request.getHttpMethod() == HttpMethodName.GET && response != null
+                        && response.getHttpResponse() != null) {
+                    markBytes(DOWNLOAD, bucket,
+                            parseLength(response.getHttpResponse().getHeaders(), "Content-Length"));
+                } else if (request.getHttpMethod() == HttpMethodName.PUT
+                        || request.getHttpMethod() == HttpMethodName.POST) {
+                    // With chunked signing (plain http), the body also contains the signatures of the chunks
+                    Map<String, String> headers = request.getHeaders();
+                    markBytes(UPLOAD, bucket, headers.containsKey(DECODED_CONTENT_LENGTH)
+                            ? parseLength(headers, DECODED_CONTENT_LENGTH)
+                            : parseLength(headers, "Content-Length"));
+                }
+            }
+
+            @Override
+            public void afterError(Request<?> request, Response<?> response, Exception e) {
+
+                String bucket = getBucket(request.getOriginalRequest());
+                requestDone(request, bucket);
+                String operation = StringUtils.defaultString(
+                        request.getHandlerContext(HandlerContextKey.OPERATION_NAME), "unknown");
+                String status = e instanceof AmazonServiceException
+                        ? String.valueOf(((AmazonServiceException) e).getStatusCode())
+                        : "none";
+                counters.computeIfAbsent("errors/" + bucket + "/" + operation + "/" + status,
+                        k -> registry.counter(name("requests.errors").tagged("bucket", bucket, "operation",
+                                operation, "status", status)))
+                        .inc();
+            }
+        };
+    }
+
+    protected void requestDone(Request<?> request, String bucket) {
+
+        Long start = request.getHandlerContext(START_TIME);
+        if (start != null) {
+            String operation = request.getHandlerContext(HandlerContextKey.OPERATION_NAME);
+            timer("requests", bucket, StringUtils.defaultString(operation, "unknown")).update(
+                    System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    protected Timer timer(String metric, String bucket, String operation) {
+        return timers.computeIfAbsent(metric + "/" + bucket + "/" + operation,
+                k -> registry.timer(name(metric).tagged("bucket", bucket, "operation", operation)));
+    }
+
+    protected void registerHitRatio(String cache) {
+
+        MetricName hits = name("cache.hits").tagged("cache", cache);
+        MetricName misses = name("cache.misses").tagged("cache", cache);
+        registry.<RatioGauge> gauge(name("cache.hit.ratio").tagged("cache", cache), () -> new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long hitCount = registry.counter(hits).getCount();
+                return Ratio.of(hitCount, hitCount + registry.counter(misses).getCount());
+            }
+        });
+    }
+
+    protected MetricName name(String metric) {
+        return MetricName.build(PREFIX + "." + metric).tagged("handler", handlerName);
+    }
+
+    protected static String getBucket(AmazonWebServiceRequest request) {
+
+        Method getBucketName = request == null ? null : GET_BUCKET_NAME.get(request.getClass());
+        if (getBucketName != null) {
+            try {
+                Object bucket = getBucketName.invoke(request);
+                if (bucket != null) {
+                    return bucket.toString();
+                }
+            } catch (ReflectiveOperationException e) {
+                // Not tagged then
+            }
+        }
+        return "none";
+    }
+
+    protected static long parseLength(Map<String, String> headers, String header) {
+
+        String length = headers == null ? null : headers.get(header);
+        if (length != null) {
+            try {
+                return Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                // Ignore
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A call timed by {@link S3UtilsMetrics#time(String, String, Call)}
+     *
+     * @since 3.2.1
+     */
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+
+        T call() throws E;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A thread safe, bounded, LRU map. The map is split in segments (stripes), each one being an access-ordered
+ * LinkedHashMap with its own lock, so threads working on different keys rarely wait for each other, and get/put/remove
+ * are O(1).
+ * <br>
+ * The LRU eviction is done per segment: each segment holds at most <code>maxSize / segments</code> entries (rounded up).
+ * With a reasonably distributed hashCode(), this is close to a global LRU.
+ * <br>
+ * Null keys and null values are not supported.
+ *
+ * @since 3.2.1
+ */
+public class StripedLRUMap<K, V> {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    protected final Segment<K, V>[] segments;
+
+    protected final int segmentMask;
+
+    /**
+     * Same as <code>StripedLRUMap(maxSize, DEFAULT_SEGMENTS)</code>
+     */
+    public StripedLRUMap(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * The number of segments is rounded up to a power of 2, and reduced so each segment can hold at least one entry
+     *
+     * @param maxSize
+     * @param segmentCount
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLRUMap(int maxSize, int segmentCount) {
+
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+
+        int count = 1;
+        while (count < segmentCount && count * 2 <= maxSize) {
+            count *= 2;
+        }
+        segmentMask = count - 1;
+
+        segments = new Segment[count];
+        int maxPerSegment = perSegment(maxSize, count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(maxPerSegment);
+        }
+    }
+
+    protected static int perSegment(int maxSize, int segmentCount) {
+        return Math.max(1, (maxSize + segmentCount - 1) / segmentCount);
+    }
+
+    protected Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        // Spread the bits, as HashMap does, so the low bits depend on the whole hash
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public V put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public V remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes the entry only if it is still mapped to <code>value</code> (typically, an expired entry that was replaced
+     * by a fresh one in the meantime must not be removed)
+     */
+    public boolean remove(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key, value);
+        }
+    }
+
+    /**
+     * Removes all the entries matching the predicate. Segments are locked one after the other, so this is not an
+     * atomic operation on the whole map.
+     */
+    public void removeIf(BiPredicate<K, V> predicate) {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.entrySet().removeIf(entry -> predicate.test(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Sum of the size of each segment, which may change while it is calculated
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Changes the max. number of entries. When reduced, the extra entries are evicted on the next put in each segment.
+     */
+    public void setMaxSize(int maxSize) {
+
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+        int maxPerSegment = perSegment(maxSize, segments.length);
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.maxSize = maxPerSegment;
+            }
+        }
+    }
+
+    protected static class Segment<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        protected int maxSize;
+
+        protected Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            // Loop, to also handle a reduced maxSize. We modify the map ourselves, so we must return false
+            while (size() > maxSize) {
+                remove(keySet().iterator().next());
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.operations;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.s3utils.S3Handler;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Gets the metadata of several objects, using S3Handler <code>handlerName</code> (if empty, uses the default handler).
+ * See {@link S3Handler#getObjectMetadata(java.util.Collection, java.util.function.BiConsumer)}.
+ * <p>
+ * The keys are either passed in the <code>keys</code> parameter, or as input, in a text blob (one key per line).
+ * <p>
+ * Returns a JSON blob, an array with one object per key, in the same order. Each object is the same as the one
+ * returned by {@link S3GetObjectMetadataOp}. If a key is not found, the object only has the "bucketName" and
+ * "objectKey" properties, plus <code>"error": "NotFound"</code>.
+ * <p>
+ * The JSON is written in a file as the results arrive, it is never fully built in memory.
+ *
+ * @since 3.2.1
+ */
+@Operation(id = S3BatchGetObjectMetadataOp.ID, category = Constants.CAT_BLOB, label = "S3 Utils: Batch Get Object Metadata", description = ""
+        + "Returns a JSON blob with the metadata of several objects, using S3Handler <code>handlerName</code> "
+        + "(if empty, uses the default handler). Uses the bucket set in the handler configuration. "
+        + "The keys are passed in the keys parameter, or as input in a text blob (one key per line). "
+        + "The result is an array, with one object per key (in the same order), as returned by S3Utils.GetObjectMetadata. "
+        + "If a key is not found, its object only has 'bucketName', 'objectKey' and \"error\": \"NotFound\"")
+public class S3BatchGetObjectMetadataOp {
+
+    public static final String ID = "S3Utils.BatchGetObjectMetadata";
+
+    public static final String NOT_FOUND = "NotFound";
+
+    @Param(name = "handlerName", required = false, values = { org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME })
+    protected String handlerName;
+
+    @Param(name = "keys", required = false)
+    protected StringList keys;
+
+    @OperationMethod
+    public Blob run() throws NuxeoException, IOException {
+
+        return getMetadata(S3OperationUtils.getKeys(keys, null));
+    }
+
+    @OperationMethod
+    public Blob run(Blob input) throws NuxeoException, IOException {
+
+        return getMetadata(S3OperationUtils.getKeys(keys, input));
+    }
+
+    protected Blob getMetadata(List<String> allKeys) throws IOException {
+
+        if (StringUtils.isBlank(handlerName)) {
+            handlerName = org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME;
+        }
+        S3Handler s3Handler = S3Handler.getS3Handler(handlerName);
+        String bucket = s3Handler.getBucket();
+
+        Blob result = Blobs.createBlobWithExtension(".json");
+        ObjectMapper mapper = new ObjectMapper();
+        try (OutputStream out = new FileOutputStream(result.getFile());
+                JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            try {
+                s3Handler.getObjectMetadata(allKeys, (key, metadata) -> {
+                    try {
+                        if (metadata == null) {
+                            generator.writeStartObject();
+                            generator.writeStringField("bucketName", bucket);
+                            generator.writeStringField("objectKey", key);
+                            generator.writeStringField("error", NOT_FOUND);
+                            generator.writeEndObject();
+                        } else {
+                            generator.writeObject(s3Handler.buildMetadataMap(bucket, key, metadata));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            generator.writeEndArray();
+        }
+
+        result.setMimeType("application/json");
+        result.setEncoding("UTF-8");
+        result.setFilename("metadata.json");
+
+        return result;
+    }
+
+}
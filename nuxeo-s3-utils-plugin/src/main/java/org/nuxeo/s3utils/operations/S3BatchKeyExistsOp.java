@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.operations;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.s3utils.S3Handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Checks the existence of several keys, using S3Handler <code>handlerName</code> (if empty, uses the default handler).
+ * See {@link S3Handler#existsKeys(String, java.util.Collection, boolean)}.
+ * <p>
+ * The keys are either passed in the <code>keys</code> parameter, or as input, in a text blob (one key per line).
+ * <p>
+ * Returns a JSON blob, a map of key to exists: <code>{"the/key": true, "the/other/key": false, ...}</code>
+ * <p>
+ * As for {@link S3KeyExistsOp}, the cache is not used by default. Set <code>useCache</code> to true to use it (if the
+ * S3Handler configuration allows for it).
+ *
+ * @since 3.2.1
+ */
+@Operation(id = S3BatchKeyExistsOp.ID, category = Constants.CAT_BLOB, label = "S3 Utils: Batch Key Exists", description = ""
+        + "Checks the existence of several keys, using S3Handler <code>handlerName</code> (if empty, uses the default handler). "
+        + "The keys are passed in the keys parameter, or as input in a text blob (one key per line). "
+        + "Returns a JSON blob, a map of key to exists: {\"the/key\": true, \"the/other/key\": false, ...}. "
+        + "Set useCache to true to use the cache if the S3Handler configuration allows for it.")
+public class S3BatchKeyExistsOp {
+
+    public static final String ID = "S3Utils.BatchKeyExists";
+
+    @Param(name = "handlerName", required = false, values = { org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME })
+    protected String handlerName;
+
+    @Param(name = "bucket", required = false)
+    protected String bucket;
+
+    @Param(name = "keys", required = false)
+    protected StringList keys;
+
+    @Param(name = "useCache", required = false)
+    protected Boolean useCache = false;
+
+    @OperationMethod
+    public Blob run() throws NuxeoException, IOException {
+
+        return existsKeys(S3OperationUtils.getKeys(keys, null));
+    }
+
+    @OperationMethod
+    public Blob run(Blob input) throws NuxeoException, IOException {
+
+        return existsKeys(S3OperationUtils.getKeys(keys, input));
+    }
+
+    protected Blob existsKeys(List<String> allKeys) throws IOException {
+
+        if (StringUtils.isBlank(handlerName)) {
+            handlerName = org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME;
+        }
+        S3Handler s3Handler = S3Handler.getS3Handler(handlerName);
+
+        Map<String, Boolean> result = s3Handler.existsKeys(bucket, allKeys, Boolean.TRUE.equals(useCache));
+
+        return Blobs.createJSONBlob(new ObjectMapper().writeValueAsString(result));
+    }
+
+}
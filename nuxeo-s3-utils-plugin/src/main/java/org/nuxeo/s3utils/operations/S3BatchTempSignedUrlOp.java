@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.operations;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.s3utils.S3Handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Returns temporary signed urls to several objects, in a JSON blob: <code>{"the/key": "https://...", ...}</code>.<br>
+ * <br>
+ * handler name, bucket and durationInSeconds can be empty, default values or values set in the configuration will
+ * apply. All the URLs have the same expiration, except the ones found in the presigned URL cache (if used).<br>
+ * <br>
+ * contentType and contentDisposition are optional, and apply to all the URLs.
+ *
+ * @since 3.2.1
+ */
+@Operation(id = S3BatchTempSignedUrlOp.ID, category = Constants.CAT_BLOB, label = "S3 Utils: Batch Temp Signed URL", description = ""
+        + "Returns a JSON blob, a map of key to temporary signed URL: {\"the/key\": \"https://...\", ...}. "
+        + "handler, bucket and duration are optional: If not passed, the default values apply (as set in the handler configuration). "
+        + "contentType and contentDisposition are optional and apply to all the URLs.")
+public class S3BatchTempSignedUrlOp {
+
+    public static final String ID = "S3Utils.BatchTempSignedUrl";
+
+    @Param(name = "keys", required = true)
+    protected StringList keys;
+
+    @Param(name = "handlerName", required = false, values = { org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME })
+    protected String handlerName;
+
+    @Param(name = "bucket", required = false)
+    protected String bucket;
+
+    @Param(name = "durationInSeconds", required = false)
+    protected Integer durationInSeconds;
+
+    @Param(name = "contentType", required = false)
+    protected String contentType;
+
+    @Param(name = "contentDisposition", required = false)
+    protected String contentDisposition;
+
+    @OperationMethod
+    public Blob run() throws NuxeoException, IOException {
+
+        if (StringUtils.isBlank(handlerName)) {
+            handlerName = org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME;
+        }
+
+        S3Handler s3Handler = S3Handler.getS3Handler(handlerName);
+
+        if (durationInSeconds == null || durationInSeconds < 1) {
+            durationInSeconds = s3Handler.getSignedUrlDuration();
+        }
+
+        List<String> allKeys = S3OperationUtils.getKeys(keys, null);
+
+        Map<String, String> urls = s3Handler.buildPresignedUrls(bucket, allKeys, durationInSeconds, contentType,
+                contentDisposition);
+
+        return Blobs.createJSONBlob(new ObjectMapper().writeValueAsString(urls));
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.operations;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.s3utils.S3BulkDeleteResult;
+import org.nuxeo.s3utils.S3Handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Deletes several files from S3, using S3Handler <code>handlerName</code> (if empty, uses the default handler), with
+ * as few requests as possible (see {@link S3Handler#deleteFiles(java.util.Collection)}).
+ * <p>
+ * The keys are either passed in the <code>keys</code> parameter, or as input, in a text blob (one key per line).
+ * <p>
+ * If <code>bucket</code> is empty, uses the bucket set in the handler configuration
+ * <p>
+ * Returns a JSON blob: <code>{"deleted": 1234, "failed": 2, "errors": {"the/key": "AccessDenied: Access Denied",
+ * ...}}</code>
+ *
+ * @since 3.2.1
+ */
+@Operation(id = S3BulkDeleteOp.ID, category = Constants.CAT_BLOB, label = "S3 Utils: Bulk Delete", description = ""
+        + "Deletes the files from S3, using S3Handler <code>handlerName</code> (if empty, uses the default handler). "
+        + "The keys are passed in the keys parameter, or as input in a text blob (one key per line). "
+        + "If <code>bucket</code> is empty, uses the bucket set in the handler configuration. "
+        + "Returns a JSON blob with the number of deleted keys, and the keys that could not be deleted, with the error: "
+        + "{\"deleted\": 1234, \"failed\": 2, \"errors\": {\"the/key\": \"AccessDenied: Access Denied\", ...}}")
+public class S3BulkDeleteOp {
+
+    public static final String ID = "S3Utils.BulkDelete";
+
+    @Param(name = "handlerName", required = false, values = { org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME })
+    protected String handlerName;
+
+    @Param(name = "bucket", required = false)
+    protected String bucket;
+
+    @Param(name = "keys", required = false)
+    protected StringList keys;
+
+    @OperationMethod
+    public Blob run() throws NuxeoException, IOException {
+
+        return deleteFiles(S3OperationUtils.getKeys(keys, null));
+    }
+
+    @OperationMethod
+    public Blob run(Blob input) throws NuxeoException, IOException {
+
+        return deleteFiles(S3OperationUtils.getKeys(keys, input));
+    }
+
+    protected Blob deleteFiles(List<String> allKeys) throws IOException {
+
+        if (StringUtils.isBlank(handlerName)) {
+            handlerName = org.nuxeo.s3utils.Constants.DEFAULT_HANDLER_NAME;
+        }
+        S3Handler s3Handler = S3Handler.getS3Handler(handlerName);
+        if (StringUtils.isNotBlank(bucket)) {
+            s3Handler.setBucket(bucket);
+        }
+
+        S3BulkDeleteResult result = s3Handler.deleteFiles(allKeys);
+
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode json = mapper.createObjectNode();
+        json.put("deleted", result.getDeletedCount());
+        json.put("failed", result.getErrors().size());
+        json.set("errors", mapper.valueToTree(result.getErrors()));
+
+        return Blobs.createJSONBlob(json.toString());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.operations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Utilities shared by the batch operations
+ *
+ * @since 3.2.1
+ */
+public class S3OperationUtils {
+
+    private S3OperationUtils() {
+        // Static methods only
+    }
+
+    /**
+     * Returns the keys passed in the <code>keys</code> parameter followed by the ones of the <code>input</code> text
+     * blob (one key per line). Blank keys are ignored.
+     *
+     * @param keys the keys parameter, can be null
+     * @param input a text blob, can be null
+     * @return the list of keys, never null
+     * @throws IOException
+     */
+    public static List<String> getKeys(StringList keys, Blob input) throws IOException {
+
+        List<String> allKeys = new ArrayList<>();
+        if (keys != null) {
+            allKeys.addAll(keys);
+        }
+        if (input != null) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(input.getStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    allKeys.add(line);
+                }
+            }
+        }
+        allKeys.removeIf(StringUtils::isBlank);
+
+        return allKeys;
+    }
+
+}
@@ -18,8 +18,8 @@
  */
 package org.nuxeo.s3utils.operations;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ecm.automation.core.Constants;
@@ -30,6 +30,7 @@ import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.s3utils.S3Handler;
 import org.nuxeo.s3utils.S3HandlerServiceImpl;
 
@@ -93,10 +94,16 @@ public class S3UploadOp {
 
             setup();
 
-            File f = blob.getFile();
-            if (f != null) {
+            if (blob instanceof FileBlob) {
                 @SuppressWarnings("unused")
                 boolean ignore = s3Handler.sendFile(key, blob.getFile());
+            } else {
+                // Not a local file (binary manager blob, generated blob, ...): stream it. Calling getFile() could
+                // download the whole binary to the local disk first
+                try (InputStream in = blob.getStream()) {
+                    @SuppressWarnings("unused")
+                    boolean ignore = s3Handler.sendStream(key, in, blob.getLength(), blob.getMimeType());
+                }
             }
         }
 
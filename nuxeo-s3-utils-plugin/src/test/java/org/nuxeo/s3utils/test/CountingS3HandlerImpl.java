@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.s3utils.CacheForKeyExists;
+import org.nuxeo.s3utils.S3HandlerImpl;
+
+/**
+ * A S3HandlerImpl counting the downloads, to check the callers do not download the same object several times
+ *
+ * @since 3.2.1
+ */
+public class CountingS3HandlerImpl extends S3HandlerImpl {
+
+    public static final AtomicInteger DOWNLOADS = new AtomicInteger();
+
+    @Override
+    public Blob downloadFile(String inKey, File inDestFile) {
+        DOWNLOADS.incrementAndGet();
+        return super.downloadFile(inKey, inDestFile);
+    }
+
+    public CacheForKeyExists getKeyExistsCache() {
+        return keyExistsCache;
+    }
+
+}
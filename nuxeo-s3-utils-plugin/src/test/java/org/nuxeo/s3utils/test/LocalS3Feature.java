@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import java.util.Properties;
+
+import org.junit.runners.model.FrameworkMethod;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.RunnerFeature;
+
+/**
+ * Starts a {@link LocalS3Server} and deploys the "local" S3Handler (see test-local-s3handler.xml), pointing at it. No
+ * AWS account, no network: the tests using this feature always run.
+ * <br>
+ * The server is emptied and its faults are removed before each test.
+ *
+ * @since 3.2.1
+ */
+@Deploy("org.nuxeo.runtime.aws")
+@Deploy("nuxeo-s3-utils")
+@Deploy("nuxeo-s3-utils:test-local-s3handler.xml")
+public class LocalS3Feature implements RunnerFeature {
+
+    public static final String HANDLER_NAME = "local";
+
+    public static final String BUCKET = "local-test-bucket";
+
+    public static final String CONF_KEY_NAME_ENDPOINT = "nuxeo.aws.s3utils.test.local.endpoint";
+
+    // The requests are signed even if the server does not check the signature
+    protected static final String ACCESS_KEY_ID_PROPERTY = "aws.accessKeyId";
+
+    protected static final String SECRET_KEY_PROPERTY = "aws.secretKey";
+
+    protected static LocalS3Server server;
+
+    protected boolean credentialsSet;
+
+    public static LocalS3Server getServer() {
+        return server;
+    }
+
+    @Override
+    public void initialize(FeaturesRunner runner) throws Exception {
+
+        server = new LocalS3Server();
+
+        Properties systemProps = System.getProperties();
+        systemProps.setProperty(CONF_KEY_NAME_ENDPOINT, server.getEndpoint());
+        if (systemProps.getProperty(ACCESS_KEY_ID_PROPERTY) == null) {
+            systemProps.setProperty(ACCESS_KEY_ID_PROPERTY, "local");
+            systemProps.setProperty(SECRET_KEY_PROPERTY, "local");
+            credentialsSet = true;
+        }
+    }
+
+    @Override
+    public void beforeSetup(FeaturesRunner runner, FrameworkMethod method, Object test) throws Exception {
+        server.reset();
+    }
+
+    @Override
+    public void stop(FeaturesRunner runner) throws Exception {
+
+        Properties p = System.getProperties();
+        p.remove(CONF_KEY_NAME_ENDPOINT);
+        if (credentialsSet) {
+            p.remove(ACCESS_KEY_ID_PROPERTY);
+            p.remove(SECRET_KEY_PROPERTY);
+            credentialsSet = false;
+        }
+
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+    }
+
+}
@@ -0,0 +1,997 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory S3-compatible HTTP endpoint, running in the JVM, for offline tests and benchmarks. Path-style requests
+ * only (see the <code>endpoint</code> and <code>pathStyleAccess</code> parameters of the S3Handler, and
+ * {@link LocalS3Feature}). Requests are not authenticated, buckets exist as soon as they are used.
+ * <br>
+ * Supported: HeadObject, GetObject (with <code>Range</code>, <code>partNumber</code> and <code>If-Match</code>),
+ * PutObject (also with <code>aws-chunked</code> payloads, as sent by the AWS SDK over http), CreateMultipartUpload,
+ * UploadPart, CompleteMultipartUpload, AbortMultipartUpload, ListParts, DeleteObject, DeleteObjects and ListObjectsV2
+ * (with prefix, delimiter, start-after and pagination).
+ * <br>
+ * To test the behavior of the callers on a slow or busy S3, the server can:
+ * <ul>
+ * <li>Wait before handling each request ({@link #setLatency(long)})</li>
+ * <li>Reply <code>503 SlowDown</code> to the next requests ({@link #throttleNextRequests(int)}) or to the requests
+ * above a rate ({@link #setMaxRequestsPerSecond(int)})</li>
+ * <li>Limit the bandwidth of each request/response body ({@link #setBandwidth(long)})</li>
+ * <li>Corrupt the content returned by the next GETs ({@link #corruptNextResponses(int)})</li>
+ * </ul>
+ * The requests received are counted by S3 operation, see {@link #getRequestCount(String)}.
+ *
+ * @since 3.2.1
+ */
+public class LocalS3Server implements Closeable {
+
+    public static final String HEAD_OBJECT = "HeadObject";
+
+    public static final String GET_OBJECT = "GetObject";
+
+    public static final String PUT_OBJECT = "PutObject";
+
+    public static final String DELETE_OBJECT = "DeleteObject";
+
+    public static final String DELETE_OBJECTS = "DeleteObjects";
+
+    public static final String LIST_OBJECTS_V2 = "ListObjectsV2";
+
+    public static final String CREATE_MULTIPART_UPLOAD = "CreateMultipartUpload";
+
+    public static final String UPLOAD_PART = "UploadPart";
+
+    public static final String COMPLETE_MULTIPART_UPLOAD = "CompleteMultipartUpload";
+
+    public static final String ABORT_MULTIPART_UPLOAD = "AbortMultipartUpload";
+
+    public static final String LIST_PARTS = "ListParts";
+
+    protected static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    protected static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    protected static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    protected static final Pattern XML_ENTITY = Pattern.compile("&(#x[0-9a-fA-F]+|#\\d+|amp|lt|gt|quot|apos);");
+
+    protected static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+                                                                         .withZone(ZoneOffset.UTC);
+
+    protected static final int IO_CHUNK = 16 * 1024;
+
+    // As S3, keys are sorted by UTF-8 bytes, i.e. by code points
+    protected static final Comparator<String> KEY_ORDER = (a, b) -> {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    };
+
+    protected final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+
+    protected final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+
+    protected final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+
+    protected final HttpServer server;
+
+    protected final ExecutorService executor;
+
+    protected volatile long latencyMs;
+
+    protected volatile long bytesPerSecond;
+
+    protected final AtomicInteger throttledRequests = new AtomicInteger();
+
+    protected final AtomicInteger corruptedResponses = new AtomicInteger();
+
+    protected volatile int maxRequestsPerSecond;
+
+    // Requests received during the current second, for maxRequestsPerSecond
+    protected long currentSecond;
+
+    protected int requestsInCurrentSecond;
+
+    public LocalS3Server() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "local-s3-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the URL to use as the endpoint of the S3 client (with path-style access)
+     */
+    public String getEndpoint() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Removes all the objects and pending multipart uploads, resets the faults and the counters.
+     */
+    public void reset() {
+        buckets.clear();
+        uploads.clear();
+        requestCounts.clear();
+        latencyMs = 0;
+        bytesPerSecond = 0;
+        throttledRequests.set(0);
+        corruptedResponses.set(0);
+        maxRequestsPerSecond = 0;
+    }
+
+    // ==================== Faults
+    /**
+     * @param latencyMs time to wait before handling each request. 0 => no wait
+     */
+    public void setLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param bytesPerSecond max. speed of each request and response body. 0 => no limit
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * The next <code>count</code> requests get a <code>503 SlowDown</code> error
+     *
+     * @param count
+     */
+    public void throttleNextRequests(int count) {
+        throttledRequests.set(count);
+    }
+
+    /**
+     * The next <code>count</code> GetObject responses have their first byte changed (the headers, ETag included, are
+     * not)
+     *
+     * @param count
+     */
+    public void corruptNextResponses(int count) {
+        corruptedResponses.set(count);
+    }
+
+    /**
+     * @param maxRequestsPerSecond requests above this rate get a <code>503 SlowDown</code> error. 0 => no limit
+     */
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    // ==================== Counters
+    /**
+     * @param operation the S3 operation ({@link #GET_OBJECT}, ...)
+     * @return the number of requests received for this operation, including the throttled ones
+     */
+    public int getRequestCount(String operation) {
+        AtomicInteger count = requestCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    // ==================== Direct access to the objects, bypassing HTTP
+    public void putObject(String bucket, String key, byte[] content, String contentType) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        getBucket(bucket).put(key, new StoredObject(content, headers, null));
+    }
+
+    /**
+     * Stores the object as if it was uploaded in parts of the given sizes (their sum is the size of the content): same
+     * ETag, same answers to <code>partNumber</code> requests.
+     */
+    public void putMultipartObject(String bucket, String key, byte[] content, String contentType, long... partSizes) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (contentType != null) {
+            headers.put("Content-Type", contentType);
+        }
+        MessageDigest md5OfMd5s = md5();
+        int offset = 0;
+        for (long partSize : partSizes) {
+            MessageDigest partMd5 = md5();
+            partMd5.update(content, offset, (int) partSize);
+            md5OfMd5s.update(partMd5.digest());
+            offset += partSize;
+        }
+        if (offset != content.length) {
+            throw new IllegalArgumentException("The size of the parts is not the size of the content");
+        }
+        String eTag = Hex.encodeHexString(md5OfMd5s.digest()) + "-" + partSizes.length;
+        getBucket(bucket).put(key, new StoredObject(content, headers, partSizes.clone(), eTag));
+    }
+
+    /**
+     * @return the content of the object, null if it does not exist
+     */
+    public byte[] getObject(String bucket, String key) {
+        StoredObject object = getBucket(bucket).get(key);
+        return object == null ? null : object.content;
+    }
+
+    public boolean exists(String bucket, String key) {
+        return getBucket(bucket).containsKey(key);
+    }
+
+    public int getObjectCount(String bucket) {
+        return getBucket(bucket).size();
+    }
+
+    /**
+     * @return the number of multipart uploads neither completed nor aborted
+     */
+    public int getPendingUploadCount() {
+        return uploads.size();
+    }
+
+    protected NavigableMap<String, StoredObject> getBucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, k -> new ConcurrentSkipListMap<>(KEY_ORDER));
+    }
+
+    // ==================== Requests
+    protected void handle(HttpExchange exchange) throws IOException {
+
+        try (exchange) {
+            Request request = new Request(exchange);
+            requestCounts.computeIfAbsent(request.operation, k -> new AtomicInteger()).incrementAndGet();
+
+            if (latencyMs > 0) {
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (isThrottled()) {
+                sendError(request, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+
+            switch (request.operation) {
+            case HEAD_OBJECT:
+            case GET_OBJECT:
+                getObject(request);
+                break;
+            case PUT_OBJECT:
+                putObject(request);
+                break;
+            case DELETE_OBJECT:
+                getBucket(request.bucket).remove(request.key);
+                exchange.sendResponseHeaders(204, -1);
+                break;
+            case DELETE_OBJECTS:
+                deleteObjects(request);
+                break;
+            case LIST_OBJECTS_V2:
+                listObjectsV2(request);
+                break;
+            case CREATE_MULTIPART_UPLOAD:
+                createMultipartUpload(request);
+                break;
+            case UPLOAD_PART:
+                uploadPart(request);
+                break;
+            case COMPLETE_MULTIPART_UPLOAD:
+                completeMultipartUpload(request);
+                break;
+            case LIST_PARTS:
+                listParts(request);
+                break;
+            case ABORT_MULTIPART_UPLOAD:
+                uploads.remove(request.query.get("uploadId"));
+                exchange.sendResponseHeaders(204, -1);
+                break;
+            case "HeadBucket":
+            case "CreateBucket":
+                getBucket(request.bucket);
+                exchange.sendResponseHeaders(200, -1);
+                break;
+            default:
+                sendError(request, 501, "NotImplemented", request.operation + " is not implemented");
+            }
+        } catch (IllegalArgumentException e) {
+            // Bad request, the exchange is closed
+        }
+    }
+
+    protected boolean isThrottled() {
+
+        if (throttledRequests.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+            return true;
+        }
+        int max = maxRequestsPerSecond;
+        if (max > 0) {
+            long second = System.currentTimeMillis() / 1000;
+            synchronized (this) {
+                if (second != currentSecond) {
+                    currentSecond = second;
+                    requestsInCurrentSecond = 0;
+                }
+                requestsInCurrentSecond += 1;
+                return requestsInCurrentSecond > max;
+            }
+        }
+        return false;
+    }
+
+    protected void getObject(Request request) throws IOException {
+
+        StoredObject object = getBucket(request.bucket).get(request.key);
+        if (object == null) {
+            sendError(request, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+
+        String ifMatch = request.exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.replace("\"", "").equals(object.eTag)) {
+            sendError(request, 412, "PreconditionFailed",
+                    "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+
+        Headers headers = request.exchange.getResponseHeaders();
+        object.headers.forEach(headers::set);
+        headers.set("ETag", "\"" + object.eTag + "\"");
+        headers.set("Last-Modified",
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(object.lastModified.atZone(ZoneOffset.UTC)));
+        headers.set("Accept-Ranges", "bytes");
+
+        long size = object.content.length;
+        long start = 0;
+        long end = size - 1;
+        int status = 200;
+        String partNumber = request.query.get("partNumber");
+        String range = request.exchange.getRequestHeaders().getFirst("Range");
+        if (partNumber != null) {
+            int part = Integer.parseInt(partNumber);
+            int partCount = object.partSizes == null ? 1 : object.partSizes.length;
+            if (part < 1 || part > partCount) {
+                sendError(request, 416, "InvalidPartNumber", "The requested partnumber is not satisfiable");
+                return;
+            }
+            if (object.partSizes != null) {
+                for (int i = 0; i < part - 1; i++) {
+                    start += object.partSizes[i];
+                }
+                end = start + object.partSizes[part - 1] - 1;
+                headers.set("x-amz-mp-parts-count", String.valueOf(partCount));
+            }
+            status = 206;
+        } else if (range != null) {
+            Matcher m = RANGE.matcher(range);
+            if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+                sendError(request, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            if (m.group(1).isEmpty()) {
+                // Suffix: the last n bytes
+                start = Math.max(0, size - Long.parseLong(m.group(2)));
+            } else {
+                start = Long.parseLong(m.group(1));
+                if (!m.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(m.group(2)));
+                }
+            }
+            if (start >= size || start > end) {
+                sendError(request, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            status = 206;
+        }
+        if (status == 206) {
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+        long length = Math.max(0, end - start + 1);
+        if (HEAD_OBJECT.equals(request.operation) || length == 0) {
+            headers.set("Content-Length", String.valueOf(length));
+            request.exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] content = object.content;
+        if (corruptedResponses.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+            content = content.clone();
+            content[(int) start] ^= 0x01;
+        }
+        request.exchange.sendResponseHeaders(status, length);
+        try (OutputStream out = request.exchange.getResponseBody()) {
+            write(out, content, (int) start, (int) length);
+        }
+    }
+
+    protected void putObject(Request request) throws IOException {
+
+        if (request.exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            sendError(request, 501, "NotImplemented", "CopyObject is not implemented");
+            return;
+        }
+        byte[] content = readBody(request.exchange);
+        StoredObject object = new StoredObject(content, getStoredHeaders(request.exchange.getRequestHeaders()),
+                null);
+        getBucket(request.bucket).put(request.key, object);
+
+        request.exchange.getResponseHeaders().set("ETag", "\"" + object.eTag + "\"");
+        request.exchange.sendResponseHeaders(200, -1);
+    }
+
+    protected void createMultipartUpload(Request request) throws IOException {
+
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new MultipartUpload(request.bucket, request.key,
+                getStoredHeaders(request.exchange.getRequestHeaders())));
+        sendXml(request, 200,
+                "<InitiateMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Bucket>"
+                        + xml(request.bucket) + "</Bucket><Key>" + xml(request.key) + "</Key><UploadId>" + uploadId
+                        + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    protected void uploadPart(Request request) throws IOException {
+
+        MultipartUpload upload = uploads.get(request.query.get("uploadId"));
+        if (upload == null) {
+            sendError(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        byte[] content = readBody(request.exchange);
+        upload.parts.put(Integer.parseInt(request.query.get("partNumber")), content);
+
+        request.exchange.getResponseHeaders().set("ETag", "\"" + DigestUtils.md5Hex(content) + "\"");
+        request.exchange.sendResponseHeaders(200, -1);
+    }
+
+    protected void completeMultipartUpload(Request request) throws IOException {
+
+        String body = new String(readBody(request.exchange), StandardCharsets.UTF_8);
+        MultipartUpload upload = uploads.get(request.query.get("uploadId"));
+        if (upload == null) {
+            sendError(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        List<byte[]> parts = new ArrayList<>();
+        Matcher m = PART_NUMBER.matcher(body);
+        while (m.find()) {
+            byte[] part = upload.parts.get(Integer.parseInt(m.group(1)));
+            if (part == null) {
+                sendError(request, 400, "InvalidPart", "One or more of the specified parts could not be found.");
+                return;
+            }
+            parts.add(part);
+        }
+        if (parts.isEmpty()) {
+            sendError(request, 400, "MalformedXML", "No part in the request");
+            return;
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        MessageDigest md5OfMd5s = md5();
+        long[] partSizes = new long[parts.size()];
+        for (int i = 0; i < partSizes.length; i++) {
+            byte[] part = parts.get(i);
+            content.write(part);
+            md5OfMd5s.update(DigestUtils.md5(part));
+            partSizes[i] = part.length;
+        }
+        String eTag = Hex.encodeHexString(md5OfMd5s.digest()) + "-" + partSizes.length;
+        getBucket(upload.bucket).put(upload.key,
+                new StoredObject(content.toByteArray(), upload.headers, partSizes, eTag));
+        uploads.remove(request.query.get("uploadId"));
+
+        sendXml(request, 200,
+                "<CompleteMultipartUploadResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Location>"
+                        + xml(getEndpoint() + "/" + upload.bucket + "/" + upload.key) + "</Location><Bucket>"
+                        + xml(upload.bucket) + "</Bucket><Key>" + xml(upload.key) + "</Key><ETag>&quot;" + eTag
+                        + "&quot;</ETag></CompleteMultipartUploadResult>");
+    }
+
+    protected void listParts(Request request) throws IOException {
+
+        MultipartUpload upload = uploads.get(request.query.get("uploadId"));
+        if (upload == null) {
+            sendError(request, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+
+        StringBuilder xml = new StringBuilder("<ListPartsResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Bucket>").append(xml(upload.bucket)).append("</Bucket>");
+        xml.append("<Key>").append(xml(upload.key)).append("</Key>");
+        xml.append("<UploadId>").append(request.query.get("uploadId")).append("</UploadId>");
+        xml.append("<MaxParts>10000</MaxParts><IsTruncated>false</IsTruncated>");
+        new TreeMap<>(upload.parts).forEach((number, part) -> xml.append("<Part><PartNumber>")
+                                                                 .append(number)
+                                                                 .append("</PartNumber><ETag>&quot;")
+                                                                 .append(DigestUtils.md5Hex(part))
+                                                                 .append("&quot;</ETag><Size>")
+                                                                 .append(part.length)
+                                                                 .append("</Size></Part>"));
+        xml.append("</ListPartsResult>");
+        sendXml(request, 200, xml.toString());
+    }
+
+    protected void deleteObjects(Request request) throws IOException {
+
+        String body = new String(readBody(request.exchange), StandardCharsets.UTF_8);
+        boolean quiet = body.contains("<Quiet>true</Quiet>");
+        NavigableMap<String, StoredObject> bucket = getBucket(request.bucket);
+
+        StringBuilder xml = new StringBuilder(
+                "<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        Matcher m = KEY.matcher(body);
+        while (m.find()) {
+            String key = unescapeXml(m.group(1));
+            // As S3: deleting a missing key is not an error
+            bucket.remove(key);
+            if (!quiet) {
+                xml.append("<Deleted><Key>").append(xml(key)).append("</Key></Deleted>");
+            }
+        }
+        xml.append("</DeleteResult>");
+        sendXml(request, 200, xml.toString());
+    }
+
+    protected void listObjectsV2(Request request) throws IOException {
+
+        String prefix = request.query.getOrDefault("prefix", "");
+        String delimiter = request.query.get("delimiter");
+        String startAfter = request.query.get("start-after");
+        String token = request.query.get("continuation-token");
+        int maxKeys = Math.min(1000, Integer.parseInt(request.query.getOrDefault("max-keys", "1000")));
+        boolean urlEncode = "url".equals(request.query.get("encoding-type"));
+
+        // The continuation token is the last key or common prefix returned
+        String from = startAfter == null ? "" : startAfter;
+        if (token != null) {
+            String last = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            if (KEY_ORDER.compare(last, from) > 0) {
+                from = last;
+            }
+        }
+        String lastCommonPrefix = delimiter != null && from.startsWith(prefix) && from.endsWith(delimiter) ? from
+                : null;
+
+        StringBuilder contents = new StringBuilder();
+        StringBuilder commonPrefixes = new StringBuilder();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        NavigableMap<String, StoredObject> bucket = getBucket(request.bucket);
+        NavigableMap<String, StoredObject> keys = KEY_ORDER.compare(prefix, from) > 0 ? bucket.tailMap(prefix, true)
+                : bucket.tailMap(from, false);
+        for (Map.Entry<String, StoredObject> entry : keys.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (lastCommonPrefix != null && key.startsWith(lastCommonPrefix)) {
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            int idx = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (idx >= 0) {
+                lastCommonPrefix = key.substring(0, idx + delimiter.length());
+                commonPrefixes.append("<CommonPrefixes><Prefix>")
+                              .append(encode(lastCommonPrefix, urlEncode))
+                              .append("</Prefix></CommonPrefixes>");
+                last = lastCommonPrefix;
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents><Key>")
+                        .append(encode(key, urlEncode))
+                        .append("</Key><LastModified>")
+                        .append(ISO_DATE.format(object.lastModified))
+                        .append("</LastModified><ETag>&quot;")
+                        .append(object.eTag)
+                        .append("&quot;</ETag><Size>")
+                        .append(object.content.length)
+                        .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                last = key;
+            }
+            count += 1;
+        }
+
+        StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        xml.append("<Name>").append(xml(request.bucket)).append("</Name>");
+        xml.append("<Prefix>").append(encode(prefix, urlEncode)).append("</Prefix>");
+        if (startAfter != null) {
+            xml.append("<StartAfter>").append(encode(startAfter, urlEncode)).append("</StartAfter>");
+        }
+        if (token != null) {
+            xml.append("<ContinuationToken>").append(xml(token)).append("</ContinuationToken>");
+        }
+        xml.append("<KeyCount>").append(count).append("</KeyCount>");
+        xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(encode(delimiter, urlEncode)).append("</Delimiter>");
+        }
+        if (urlEncode) {
+            xml.append("<EncodingType>url</EncodingType>");
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>")
+               .append(Base64.getUrlEncoder().encodeToString(last.getBytes(StandardCharsets.UTF_8)))
+               .append("</NextContinuationToken>");
+        }
+        xml.append(contents).append(commonPrefixes).append("</ListBucketResult>");
+        sendXml(request, 200, xml.toString());
+    }
+
+    // ==================== Utilities
+    /*
+     * Reads the body, decoding aws-chunked payloads: "<hex size>;chunk-signature=<signature>\r\n<data>\r\n", until a
+     * chunk of size 0
+     */
+    protected byte[] readBody(HttpExchange exchange) throws IOException {
+
+        InputStream in = exchange.getRequestBody();
+        String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (sha256 == null || !sha256.startsWith("STREAMING-")) {
+            return read(in);
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            String header = readLine(in);
+            int semicolon = header.indexOf(';');
+            int size = Integer.parseInt(semicolon < 0 ? header.trim() : header.substring(0, semicolon), 16);
+            if (size == 0) {
+                break;
+            }
+            content.write(in.readNBytes(size));
+            readLine(in);
+            throttle(size);
+        }
+        return content.toByteArray();
+    }
+
+    protected byte[] read(InputStream in) throws IOException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[IO_CHUNK];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            content.write(buffer, 0, count);
+            throttle(count);
+        }
+        return content.toByteArray();
+    }
+
+    protected String readLine(InputStream in) throws IOException {
+
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            throw new IllegalArgumentException("Unexpected end of the aws-chunked payload");
+        }
+        return line.toString();
+    }
+
+    protected void write(OutputStream out, byte[] content, int offset, int length) throws IOException {
+
+        int end = offset + length;
+        for (int pos = offset; pos < end; pos += IO_CHUNK) {
+            int count = Math.min(IO_CHUNK, end - pos);
+            out.write(content, pos, count);
+            throttle(count);
+        }
+    }
+
+    // Simple bandwidth limit: each chunk takes the time it would take at bytesPerSecond
+    protected void throttle(int count) throws IOException {
+
+        long bps = bytesPerSecond;
+        if (bps > 0) {
+            try {
+                long nanos = count * 1_000_000_000L / bps;
+                Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
+    // Headers returned by HEAD/GET as they were received when the object was created
+    protected Map<String, String> getStoredHeaders(Headers requestHeaders) {
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        requestHeaders.forEach((name, values) -> {
+            String lowerCase = name.toLowerCase();
+            if (lowerCase.startsWith("x-amz-meta-") || lowerCase.equals("content-type")
+                    || lowerCase.equals("content-disposition") || lowerCase.equals("cache-control")
+                    || (lowerCase.equals("content-encoding") && !values.get(0).equals("aws-chunked"))) {
+                headers.put(lowerCase.startsWith("x-amz-meta-") ? lowerCase : name, values.get(0));
+            }
+        });
+        return headers;
+    }
+
+    protected void sendXml(Request request, int status, String xml) throws IOException {
+
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        request.exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        request.exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = request.exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    protected void sendError(Request request, int status, String code, String message) throws IOException {
+
+        String requestId = Long.toHexString(System.nanoTime()).toUpperCase();
+        request.exchange.getResponseHeaders().set("x-amz-request-id", requestId);
+        if (HEAD_OBJECT.equals(request.operation) || "HeadBucket".equals(request.operation)) {
+            request.exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        sendXml(request, status,
+                "<Error><Code>" + code + "</Code><Message>" + xml(message) + "</Message><Resource>"
+                        + xml(request.exchange.getRequestURI().getRawPath()) + "</Resource><RequestId>" + requestId
+                        + "</RequestId></Error>");
+    }
+
+    protected static String encode(String value, boolean urlEncode) {
+        return urlEncode ? URLEncoder.encode(value, StandardCharsets.UTF_8) : xml(value);
+    }
+
+    protected static String xml(String value) {
+        return value.replace("&", "&amp;")
+                    .replace("<", "&lt;")
+                    .replace(">", "&gt;")
+                    .replace("\"", "&quot;")
+                    .replace("'", "&apos;")
+                    .replace("\r", "&#13;")
+                    .replace("\n", "&#10;");
+    }
+
+    protected static String unescapeXml(String value) {
+
+        Matcher m = XML_ENTITY.matcher(value);
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            String entity = m.group(1);
+            String replacement;
+            switch (entity) {
+            case "amp":
+                replacement = "&";
+                break;
+            case "lt":
+                replacement = "<";
+                break;
+            case "gt":
+                replacement = ">";
+                break;
+            case "quot":
+                replacement = "\"";
+                break;
+            case "apos":
+                replacement = "'";
+                break;
+            default:
+                int codePoint = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                        : Integer.parseInt(entity.substring(1));
+                replacement = new String(Character.toChars(codePoint));
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    protected static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * The bucket, key, query parameters and S3 operation of a request
+     */
+    protected static class Request {
+
+        protected final HttpExchange exchange;
+
+        protected final String bucket;
+
+        protected final String key;
+
+        protected final Map<String, String> query = new HashMap<>();
+
+        protected final String operation;
+
+        protected Request(HttpExchange exchange) {
+
+            this.exchange = exchange;
+
+            // "/bucket/key", decoded ("+" is not a space in a path)
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            key = slash < 0 || slash == path.length() - 1 ? null : path.substring(slash + 1);
+
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            if (rawQuery != null) {
+                for (String param : rawQuery.split("&")) {
+                    int eq = param.indexOf('=');
+                    String name = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), StandardCharsets.UTF_8);
+                    String value = eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+                    query.put(name, value);
+                }
+            }
+
+            operation = getOperation(exchange.getRequestMethod());
+        }
+
+        protected String getOperation(String method) {
+
+            if (key == null) {
+                switch (method) {
+                case "HEAD":
+                    return "HeadBucket";
+                case "PUT":
+                    return "CreateBucket";
+                case "GET":
+                    return query.containsKey("list-type") ? LIST_OBJECTS_V2 : "GetBucket";
+                case "POST":
+                    return query.containsKey("delete") ? DELETE_OBJECTS : "PostBucket";
+                default:
+                    return method + "Bucket";
+                }
+            }
+            switch (method) {
+            case "HEAD":
+                return HEAD_OBJECT;
+            case "GET":
+                return query.containsKey("uploadId") ? LIST_PARTS : GET_OBJECT;
+            case "PUT":
+                return query.containsKey("uploadId") ? UPLOAD_PART : PUT_OBJECT;
+            case "POST":
+                return query.containsKey("uploads") ? CREATE_MULTIPART_UPLOAD
+                        : query.containsKey("uploadId") ? COMPLETE_MULTIPART_UPLOAD : "PostObject";
+            case "DELETE":
+                return query.containsKey("uploadId") ? ABORT_MULTIPART_UPLOAD : DELETE_OBJECT;
+            default:
+                return method + "Object";
+            }
+        }
+    }
+
+    protected static class StoredObject {
+
+        protected final byte[] content;
+
+        protected final Map<String, String> headers;
+
+        // null => not uploaded in parts
+        protected final long[] partSizes;
+
+        protected final String eTag;
+
+        protected final Instant lastModified = Instant.now();
+
+        protected StoredObject(byte[] content, Map<String, String> headers, long[] partSizes) {
+            this(content, headers, partSizes, DigestUtils.md5Hex(content));
+        }
+
+        protected StoredObject(byte[] content, Map<String, String> headers, long[] partSizes, String eTag) {
+            this.content = content;
+            this.headers = headers;
+            this.partSizes = partSizes;
+            this.eTag = eTag;
+            headers.putIfAbsent("Content-Type", "binary/octet-stream");
+        }
+    }
+
+    protected static class MultipartUpload {
+
+        protected final String bucket;
+
+        protected final String key;
+
+        protected final Map<String, String> headers;
+
+        protected final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+
+        protected MultipartUpload(String bucket, String key, Map<String, String> headers) {
+            this.bucket = bucket;
+            this.key = key;
+            this.headers = headers;
+        }
+    }
+
+}
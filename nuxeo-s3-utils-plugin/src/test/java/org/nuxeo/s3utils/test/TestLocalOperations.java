@@ -0,0 +1,122 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.operations.S3UploadOp;
+
+import com.google.inject.Inject;
+
+/**
+ * Tests the operations against the {@link LocalS3Server} (see {@link LocalS3Feature}): no AWS configuration is needed.
+ *
+ * @since 3.2.1
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class, LocalS3Feature.class })
+public class TestLocalOperations {
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    protected S3Handler s3Handler;
+
+    protected LocalS3Server server;
+
+    @Before
+    public void setup() {
+        s3Handler = S3Handler.getS3Handler(LocalS3Feature.HANDLER_NAME);
+        server = LocalS3Feature.getServer();
+    }
+
+    protected byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    protected Blob upload(Blob blob, String key) throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(blob);
+        OperationChain chain = new OperationChain("testUpload");
+        chain.add(S3UploadOp.ID).set("handlerName", LocalS3Feature.HANDLER_NAME).set("key", key);
+        return (Blob) automationService.run(ctx, chain);
+    }
+
+    @Test
+    public void testUploadFileBlob() throws Exception {
+
+        byte[] content = randomBytes(100 * 1024);
+        File file = Files.createTempFile("test-local-operations", ".bin").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+
+        Blob blob = new FileBlob(file);
+        assertSame(blob, upload(blob, "upload/file.bin"));
+        assertArrayEquals(content, server.getObject(LocalS3Feature.BUCKET, "upload/file.bin"));
+    }
+
+    @Test
+    public void testUploadBlobWithoutFileIsStreamed() throws Exception {
+
+        // Above the multipart threshold of the handler (5MB)
+        byte[] content = randomBytes(6 * 1024 * 1024);
+        // Like a blob of a binary manager: getFile() would download the whole binary to the local disk
+        Blob blob = new ByteArrayBlob(content, "application/pdf") {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public File getFile() {
+                throw new AssertionError("The blob is not a local file, it must be streamed");
+            }
+        };
+
+        assertSame(blob, upload(blob, "upload/stream.pdf"));
+        assertArrayEquals(content, server.getObject(LocalS3Feature.BUCKET, "upload/stream.pdf"));
+        assertEquals("application/pdf", s3Handler.getObjectMetadata("upload/stream.pdf").getContentType());
+        assertEquals(2, server.getRequestCount(LocalS3Server.UPLOAD_PART));
+    }
+
+}
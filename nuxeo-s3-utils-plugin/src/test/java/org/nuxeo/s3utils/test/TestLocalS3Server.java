@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.s3utils.S3BulkDeleteResult;
+import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.S3HandlerImpl;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Tests the "local" S3Handler against the {@link LocalS3Server} (see {@link LocalS3Feature}): no AWS configuration is
+ * needed.
+ *
+ * @since 3.2.1
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, LocalS3Feature.class })
+public class TestLocalS3Server {
+
+    protected S3Handler s3Handler;
+
+    protected LocalS3Server server;
+
+    @Before
+    public void setup() {
+        s3Handler = S3Handler.getS3Handler(LocalS3Feature.HANDLER_NAME);
+        server = LocalS3Feature.getServer();
+    }
+
+    protected byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    protected File createFile(byte[] content) throws Exception {
+        File file = Files.createTempFile("test-local-s3", ".bin").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void testSendAndDownloadFile() throws Exception {
+
+        byte[] content = randomBytes(100 * 1024);
+        assertTrue(s3Handler.sendFile("folder/file.bin", createFile(content)));
+        assertArrayEquals(content, server.getObject(LocalS3Feature.BUCKET, "folder/file.bin"));
+
+        assertTrue(s3Handler.existsKeyInS3("folder/file.bin"));
+        assertFalse(s3Handler.existsKeyInS3("folder/not-here.bin"));
+
+        ObjectMetadata metadata = s3Handler.getObjectMetadata("folder/file.bin");
+        assertNotNull(metadata);
+        assertEquals(content.length, metadata.getContentLength());
+
+        Blob blob = s3Handler.downloadFile("folder/file.bin", "file.bin");
+        assertNotNull(blob);
+        assertArrayEquals(content, blob.getByteArray());
+    }
+
+    @Test
+    public void testReadBytes() throws Exception {
+
+        byte[] content = randomBytes(1024 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "range.bin", content, "application/octet-stream");
+
+        byte[] bytes = s3Handler.readBytes("range.bin", 500000, 1000);
+        byte[] expected = new byte[1000];
+        System.arraycopy(content, 500000, expected, 0, 1000);
+        assertArrayEquals(expected, bytes);
+        assertEquals(1, server.getRequestCount(LocalS3Server.GET_OBJECT));
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+
+        // 12MB with 5MB parts (see test-local-s3handler.xml) => 3 parts
+        byte[] content = randomBytes(12 * 1024 * 1024);
+        assertTrue(s3Handler.sendFile("big.bin", createFile(content)));
+
+        assertEquals(1, server.getRequestCount(LocalS3Server.CREATE_MULTIPART_UPLOAD));
+        assertEquals(3, server.getRequestCount(LocalS3Server.UPLOAD_PART));
+        assertEquals(1, server.getRequestCount(LocalS3Server.COMPLETE_MULTIPART_UPLOAD));
+        assertEquals(0, server.getPendingUploadCount());
+        assertArrayEquals(content, server.getObject(LocalS3Feature.BUCKET, "big.bin"));
+
+        Blob blob = s3Handler.downloadFile("big.bin", "big.bin");
+        assertArrayEquals(content, blob.getByteArray());
+    }
+
+    @Test
+    public void testDeleteFilesAndList() throws Exception {
+
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String key = "to-delete/file-" + i + ".txt";
+            server.putObject(LocalS3Feature.BUCKET, key, ("file " + i).getBytes(), "text/plain");
+            keys.add(key);
+        }
+        server.putObject(LocalS3Feature.BUCKET, "to-delete/sub/kept.txt", "kept".getBytes(), "text/plain");
+
+        ListObjectsV2Result result = s3Handler.getS3()
+                                              .listObjectsV2(new ListObjectsV2Request().withBucketName(
+                                                      LocalS3Feature.BUCKET)
+                                                                                       .withPrefix("to-delete/")
+                                                                                       .withDelimiter("/")
+                                                                                       .withMaxKeys(4));
+        assertEquals(4, result.getObjectSummaries().size());
+        assertTrue(result.isTruncated());
+
+        S3BulkDeleteResult deleteResult = s3Handler.deleteFiles(keys);
+        assertFalse(deleteResult.hasErrors());
+        assertEquals(10, deleteResult.getDeletedCount());
+        assertTrue(server.getRequestCount(LocalS3Server.DELETE_OBJECTS) > 0);
+        assertEquals(1, server.getObjectCount(LocalS3Feature.BUCKET));
+
+        result = s3Handler.getS3()
+                          .listObjectsV2(new ListObjectsV2Request().withBucketName(LocalS3Feature.BUCKET)
+                                                                   .withPrefix("to-delete/")
+                                                                   .withDelimiter("/"));
+        assertEquals(0, result.getObjectSummaries().size());
+        assertEquals(1, result.getCommonPrefixes().size());
+        assertEquals("to-delete/sub/", result.getCommonPrefixes().get(0));
+    }
+
+    @Test
+    public void testExistsKeysDoesNotExtendCachedEntries() throws Exception {
+
+        CountingS3HandlerImpl handler = (CountingS3HandlerImpl) S3Handler.getS3Handler("local-cached");
+        handler.getKeyExistsCache().setDurationInCache(500);
+        String key = "cached/" + UUID.randomUUID() + ".txt";
+        server.putObject(LocalS3Feature.BUCKET, key, "hello".getBytes(), "text/plain");
+        assertTrue(handler.existsKey(key));
+
+        // Deleted by "another node": the cached answer is wrong until it expires
+        handler.getS3().deleteObject(LocalS3Feature.BUCKET, key);
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end) {
+            handler.existsKeys(null, List.of(key), true);
+            Thread.sleep(50);
+        }
+        // Reading the cache did not restart the lifetime of the entry
+        assertFalse(handler.existsKeys(null, List.of(key), true).get(key));
+        assertFalse(handler.existsKey(key));
+    }
+
+    @Test
+    public void testExistsKeysWithListingInS3Order() throws Exception {
+
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < S3HandlerImpl.LIST_PREFIX_MIN_KEYS; i++) {
+            String key = String.format("utf8/k-%02d", i);
+            server.putObject(LocalS3Feature.BUCKET, key, "k".getBytes(), "text/plain");
+            keys.add(key);
+        }
+        // U+1F600 is after U+FFFD in UTF-8 (the order of the listing), before it in UTF-16 (String.compareTo)
+        String supplementary = "utf8/z-\uD83D\uDE00";
+        server.putObject(LocalS3Feature.BUCKET, supplementary, "z".getBytes(), "text/plain");
+        keys.add(supplementary);
+        // Enough keys between them for the listing to need a second page
+        for (int i = 0; i < 1000; i++) {
+            server.putObject(LocalS3Feature.BUCKET, String.format("utf8/z-\uFFFD-%04d", i), "f".getBytes(),
+                    "text/plain");
+        }
+
+        Map<String, Boolean> result = s3Handler.existsKeys(null, keys, false);
+        for (String key : keys) {
+            assertTrue(key, result.get(key));
+        }
+        assertTrue(server.getRequestCount(LocalS3Server.LIST_OBJECTS_V2) > 0);
+    }
+
+    @Test
+    public void testConcurrentHeadRequestsAreCoalesced() throws Exception {
+
+        server.putObject(LocalS3Feature.BUCKET, "coalesced.txt", "hello".getBytes(), "text/plain");
+        // Slow enough for all the callers to ask while the first HEAD is in flight
+        server.setLatency(500);
+
+        int callers = 20;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            boolean metadata = i % 2 == 0;
+            tasks.add(() -> {
+                start.await();
+                if (metadata) {
+                    return s3Handler.getObjectMetadata("coalesced.txt").getContentLength() == 5;
+                }
+                return s3Handler.existsKeyInS3("coalesced.txt");
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (Callable<Boolean> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+            for (Future<Boolean> future : futures) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int heads = server.getRequestCount(LocalS3Server.HEAD_OBJECT);
+        assertTrue("HEAD requests sent: " + heads, heads > 0 && heads < callers);
+    }
+
+    @Test
+    public void testThrottledRequestsAreRetried() throws Exception {
+
+        server.putObject(LocalS3Feature.BUCKET, "throttled.txt", "hello".getBytes(), "text/plain");
+        server.throttleNextRequests(2);
+
+        // maxErrorRetry is 3 in test-local-s3handler.xml
+        assertTrue(s3Handler.existsKeyInS3("throttled.txt"));
+        assertEquals(3, server.getRequestCount(LocalS3Server.HEAD_OBJECT));
+    }
+
+    @Test
+    public void testLatencyAndBandwidth() throws Exception {
+
+        server.putObject(LocalS3Feature.BUCKET, "slow.bin", randomBytes(64 * 1024), "application/octet-stream");
+
+        server.setLatency(200);
+        long start = System.currentTimeMillis();
+        assertTrue(s3Handler.existsKeyInS3("slow.bin"));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+
+        server.setLatency(0);
+        // 64KB at 128KB/s => at least 500ms
+        server.setBandwidth(128 * 1024);
+        start = System.currentTimeMillis();
+        assertEquals(64 * 1024, s3Handler.readBytes("slow.bin", 0, 64 * 1024).length);
+        assertTrue(System.currentTimeMillis() - start >= 500);
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.s3utils.S3UtilsBlobProvider;
+
+/**
+ * Tests the S3UtilsBlobProvider file cache against the {@link LocalS3Server}, with the "local-cached" handler
+ * ({@link CountingS3HandlerImpl}, see test-local-s3handler.xml)
+ *
+ * @since 3.2.1
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, LocalS3Feature.class })
+public class TestLocalS3UtilsBlobProvider {
+
+    protected LocalS3Server server;
+
+    @Before
+    public void setup() {
+        server = LocalS3Feature.getServer();
+        CountingS3HandlerImpl.DOWNLOADS.set(0);
+    }
+
+    protected byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /*
+     * A new provider has an empty file cache. Files can be evicted as soon as they are cached
+     */
+    protected S3UtilsBlobProvider newProvider(String id, Map<String, String> properties) throws IOException {
+
+        S3UtilsBlobProvider blobProvider = new S3UtilsBlobProvider();
+        properties.put(S3UtilsBlobProvider.S3_HANDLER_ATTACHED_PROPERTY, "local-cached");
+        properties.put(S3UtilsBlobProvider.CACHE_MIN_AGE_PROPERTY, "0");
+        blobProvider.initialize(id, properties);
+        return blobProvider;
+    }
+
+    /*
+     * The metadata cached when the blob is created is used by the next calls: getFile goes straight to the download
+     */
+    protected S3UtilsBlobProvider newProviderWithMetadataCache(String id) throws IOException {
+
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.METADATA_CACHE_TTL_PROPERTY, "600");
+        properties.put(S3UtilsBlobProvider.METADATA_CACHE_TRUST_DURATION_PROPERTY, "600");
+        return newProvider(id, properties);
+    }
+
+    /*
+     * Runs the calls at the same time, returns their results (or the exceptions they threw)
+     */
+    protected List<Object> runConcurrently(List<Callable<Object>> calls) throws Exception {
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(calls.size());
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (Callable<Object> call : calls) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return call.call();
+                }));
+            }
+            start.countDown();
+            List<Object> results = new ArrayList<>();
+            for (Future<Object> future : futures) {
+                try {
+                    results.add(future.get(30, TimeUnit.SECONDS));
+                } catch (ExecutionException e) {
+                    results.add(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * The returned File is not referenced anymore when this method returns
+     */
+    protected File getFileAndReturnLinksDir(S3UtilsBlobProvider blobProvider, String objectKey) throws IOException {
+
+        File f = blobProvider.getFile(blobProvider.createBlobFromObjectKey(objectKey));
+        assertTrue(f.exists());
+        return f.getParentFile().getParentFile();
+    }
+
+    @Test
+    public void testGetFileLinksAreDeletedAndTheCacheStaysBounded() throws Exception {
+
+        // Each new object evicts the previous one from the cache
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.CACHE_SIZE_PROPERTY, "1 mb");
+        S3UtilsBlobProvider blobProvider = newProvider("TestS3Provider-local-getfile", properties);
+        try {
+            File linksDir = null;
+            for (int i = 0; i < 4; i++) {
+                String key = "getfile/object-" + i + ".bin";
+                server.putObject(LocalS3Feature.BUCKET, key, randomBytes(768 * 1024), "application/octet-stream");
+                linksDir = getFileAndReturnLinksDir(blobProvider, key);
+            }
+            assertEquals(4, CountingS3HandlerImpl.DOWNLOADS.get());
+            File cacheDir = new File(linksDir.getParentFile(), StringUtils.removeEnd(linksDir.getName(), "-files"));
+
+            // The returned files are garbage collected => their links and directories are deleted
+            for (int i = 0; i < 100 && linksDir.list().length > 0; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            assertEquals(0, linksDir.list().length);
+            // The links do not keep the evicted files on disk
+            assertTrue(FileUtils.sizeOfDirectory(cacheDir) <= 1024 * 1024);
+        } finally {
+            blobProvider.close();
+        }
+    }
+
+    @Test
+    public void testGetFileJoinsTheTeeDownloadOfTheSameETag() throws Exception {
+
+        byte[] content = randomBytes(1024 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "dedup/tee.bin", content, "application/octet-stream");
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.GET_STREAM_MODE_PROPERTY, S3UtilsBlobProvider.GET_STREAM_MODE_TEE);
+        S3UtilsBlobProvider blobProvider = newProvider("TestS3Provider-local-tee", properties);
+        try {
+            ManagedBlob blob = blobProvider.createBlobFromObjectKey("dedup/tee.bin");
+            // 1MB at 2MB/s: the getFile call happens while the tee download is in progress
+            server.setBandwidth(2 * 1024 * 1024);
+
+            try (InputStream stream = blobProvider.getStream(blob)) {
+                File file = blobProvider.getFile(blob);
+                assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+                assertArrayEquals(content, stream.readAllBytes());
+            }
+            // The getFile caller waited for the tee download instead of downloading the object
+            assertEquals(0, CountingS3HandlerImpl.DOWNLOADS.get());
+            assertEquals(1, server.getRequestCount(LocalS3Server.GET_OBJECT));
+        } finally {
+            blobProvider.close();
+        }
+    }
+
+    @Test
+    public void testFailedDownloadReleasesTheWaitingCallers() throws Exception {
+
+        server.putObject(LocalS3Feature.BUCKET, "dedup/deleted.bin", randomBytes(1024), "application/octet-stream");
+        S3UtilsBlobProvider blobProvider = newProviderWithMetadataCache("TestS3Provider-local-failed");
+        try {
+            ManagedBlob blob = blobProvider.createBlobFromObjectKey("dedup/deleted.bin");
+            // The metadata is cached, the object is not there anymore: the download fails (slowly)
+            blobProvider.getS3Handler().getS3().deleteObject(LocalS3Feature.BUCKET, "dedup/deleted.bin");
+            server.setLatency(500);
+
+            List<Callable<Object>> calls = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                calls.add(() -> blobProvider.getFile(blob));
+            }
+            for (Object result : runConcurrently(calls)) {
+                assertTrue(String.valueOf(result), result instanceof NuxeoException);
+            }
+            assertEquals(1, CountingS3HandlerImpl.DOWNLOADS.get());
+
+            // Nothing left behind: the next call downloads the object again
+            server.setLatency(0);
+            byte[] content = randomBytes(2048);
+            server.putObject(LocalS3Feature.BUCKET, "dedup/deleted.bin", content, "application/octet-stream");
+            blobProvider.getMetadataCache().clear();
+            assertArrayEquals(content, Files.readAllBytes(blobProvider.getFile(blob).toPath()));
+            assertEquals(2, CountingS3HandlerImpl.DOWNLOADS.get());
+        } finally {
+            blobProvider.close();
+        }
+    }
+
+    @Test
+    public void testDifferentETagsAreDownloadedInParallel() throws Exception {
+
+        int count = 4;
+        S3UtilsBlobProvider blobProvider = newProviderWithMetadataCache("TestS3Provider-local-parallel");
+        try {
+            List<ManagedBlob> blobs = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String key = "dedup/parallel-" + i + ".bin";
+                server.putObject(LocalS3Feature.BUCKET, key, randomBytes(1024 + i), "application/octet-stream");
+                blobs.add(blobProvider.createBlobFromObjectKey(key));
+            }
+            server.setLatency(500);
+
+            List<Callable<Object>> calls = new ArrayList<>();
+            for (ManagedBlob blob : blobs) {
+                calls.add(() -> blobProvider.getFile(blob));
+            }
+            long start = System.currentTimeMillis();
+            for (Object result : runConcurrently(calls)) {
+                assertTrue(String.valueOf(result), result instanceof File);
+            }
+            long duration = System.currentTimeMillis() - start;
+
+            assertEquals(count, CountingS3HandlerImpl.DOWNLOADS.get());
+            // One download at a time would take at least count * 500ms
+            assertTrue("Took " + duration + "ms", duration < count * 500);
+        } finally {
+            blobProvider.close();
+        }
+    }
+
+}
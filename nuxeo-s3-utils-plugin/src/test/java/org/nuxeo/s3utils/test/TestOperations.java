@@ -21,10 +21,15 @@ package org.nuxeo.s3utils.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Assert;
@@ -37,8 +42,10 @@ import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.StringList;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.blob.ManagedBlob;
@@ -48,7 +55,11 @@ import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.s3utils.BlobKey;
 import org.nuxeo.s3utils.Constants;
 import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.operations.S3BatchGetObjectMetadataOp;
+import org.nuxeo.s3utils.operations.S3BatchKeyExistsOp;
+import org.nuxeo.s3utils.operations.S3BatchTempSignedUrlOp;
 import org.nuxeo.s3utils.operations.S3BlobProviderCreateBlobForObjectKeyOp;
+import org.nuxeo.s3utils.operations.S3BulkDeleteOp;
 import org.nuxeo.s3utils.operations.S3DownloadOp;
 import org.nuxeo.s3utils.operations.S3GetObjectMetadataOp;
 import org.nuxeo.s3utils.operations.S3KeyExistsOp;
@@ -220,6 +231,39 @@ public class TestOperations {
 
     }
 
+    @Test
+    public void testBulkDelete() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        File file = FileUtils.getResourceFileFromContext(FILE_TO_UPLOAD);
+        String prefix = UPLOAD_KEY + "-bulk-" + UUID.randomUUID().toString() + "-";
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(prefix + i);
+            s3Handler.sendFile(prefix + i, file);
+        }
+        // Deleting a key that does not exist is not an error on S3
+        keys.add(prefix + "missing");
+
+        OperationChain chain;
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(Blobs.createBlob(String.join("\n", keys.subList(0, 3))));
+        chain = new OperationChain("testBulkDelete");
+        chain.add(S3BulkDeleteOp.ID).set("keys", new StringList(keys.subList(3, keys.size())));
+        Blob result = (Blob) automationService.run(ctx, chain);
+        Assert.assertNotNull(result);
+
+        JSONObject json = new JSONObject(result.getString());
+        assertEquals(6, json.getInt("deleted"));
+        assertEquals(0, json.getInt("failed"));
+
+        for (int i = 0; i < 5; i++) {
+            assertFalse(s3Handler.existsKeyInS3(prefix + i));
+        }
+    }
+
     @Test
     public void testKeyExists() throws Exception {
 
@@ -236,6 +280,37 @@ public class TestOperations {
 
     }
 
+    @Test
+    public void testBatchKeyExists() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        // Enough keys in the same "folder" to list it
+        String folder = FilenameUtils.getPath(TEST_FILE_KEY);
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            missing.add(folder + UUID.randomUUID().toString() + ".pdf");
+        }
+        // And one key alone in another folder, checked with a HEAD
+        missing.add(UUID.randomUUID().toString() + "/" + UUID.randomUUID().toString() + ".pdf");
+
+        OperationChain chain;
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(Blobs.createBlob(String.join("\n", missing)));
+        chain = new OperationChain("testBatchKeyExists");
+        chain.add(S3BatchKeyExistsOp.ID).set("keys", new StringList(new String[] { TEST_FILE_KEY }));
+        Blob result = (Blob) automationService.run(ctx, chain);
+        Assert.assertNotNull(result);
+
+        JSONObject json = new JSONObject(result.getString());
+        assertEquals(missing.size() + 1, json.length());
+        assertTrue(json.getBoolean(TEST_FILE_KEY));
+        for (String key : missing) {
+            assertFalse(json.getBoolean(key));
+        }
+    }
+
     @Test
     public void testKeyDoesNotExist() throws Exception {
 
@@ -333,6 +408,110 @@ public class TestOperations {
 
     }
 
+    @Test
+    public void testBatchGetObjectMetadata() throws Exception {
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        String missing = UUID.randomUUID().toString();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(i == 10 ? missing : TEST_FILE_KEY);
+        }
+
+        OperationChain chain;
+        OperationContext ctx = new OperationContext(coreSession);
+        chain = new OperationChain("testBatchGetObjectMetadata");
+        chain.add(S3BatchGetObjectMetadataOp.ID).set("keys", new StringList(keys));
+
+        Blob result = (Blob) automationService.run(ctx, chain);
+        assertNotNull(result);
+        assertNotNull(result.getFile());
+        assertEquals("application/json", result.getMimeType());
+
+        JSONArray array = new JSONArray(result.getString());
+        assertEquals(keys.size(), array.length());
+        for (int i = 0; i < keys.size(); i++) {
+            JSONObject obj = array.getJSONObject(i);
+            assertEquals(keys.get(i), obj.getString("objectKey"));
+            if (i == 10) {
+                assertEquals(S3BatchGetObjectMetadataOp.NOT_FOUND, obj.getString("error"));
+            } else {
+                assertEquals(TEST_FILE_SIZE, obj.getLong("Content-Length"));
+            }
+        }
+    }
+
+    /*
+     * Duration of a presigned URL, in seconds: X-Amz-Expires with SigV4, Expires (an epoch) with SigV2
+     */
+    protected long getExpiresInSeconds(String url) {
+
+        Matcher m = Pattern.compile("[?&]X-Amz-Expires=(\\d+)").matcher(url);
+        if (m.find()) {
+            return Long.parseLong(m.group(1));
+        }
+        m = Pattern.compile("[?&]Expires=(\\d+)").matcher(url);
+        assertTrue("No expiration in " + url, m.find());
+        return Long.parseLong(m.group(1)) - System.currentTimeMillis() / 1000;
+    }
+
+    @Test
+    public void testBatchTempSignedUrl() throws Exception {
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        String other = UUID.randomUUID().toString() + ".pdf";
+        List<String> keys = new ArrayList<>();
+        keys.add(TEST_FILE_KEY);
+        keys.add("");
+        keys.add("   ");
+        keys.add(other);
+
+        // No durationInSeconds => the duration of the handler
+        OperationChain chain;
+        OperationContext ctx = new OperationContext(coreSession);
+        chain = new OperationChain("testBatchTempSignedUrl-1");
+        chain.add(S3BatchTempSignedUrlOp.ID).set("keys", new StringList(keys));
+
+        Blob result = (Blob) automationService.run(ctx, chain);
+        assertNotNull(result);
+        assertEquals("application/json", result.getMimeType());
+
+        // Blank keys are dropped
+        JSONObject json = new JSONObject(result.getString());
+        assertEquals(2, json.length());
+        assertFalse(json.has(""));
+        assertFalse(json.has("   "));
+
+        String url = json.getString(TEST_FILE_KEY);
+        assertTrue(StringUtils.isNotBlank(url));
+        assertTrue(StringUtils.isNotBlank(json.getString(other)));
+        long expires = getExpiresInSeconds(url);
+        long expected = s3Handler.getSignedUrlDuration();
+        assertTrue("Expires in " + expires + "s instead of " + expected,
+                expires <= expected && expires >= expected - 60);
+
+        // We must be able to download the file without authentication
+        File f = TestUtils.downloadFile(url);
+        assertNotNull(f);
+        long size = f.length();
+        // Cleanup now
+        f.delete();
+        assertEquals(TEST_FILE_SIZE, size);
+
+        // Explicit duration
+        ctx = new OperationContext(coreSession);
+        chain = new OperationChain("testBatchTempSignedUrl-2");
+        chain.add(S3BatchTempSignedUrlOp.ID).set("keys", new StringList(keys)).set("durationInSeconds", 120);
+
+        result = (Blob) automationService.run(ctx, chain);
+        json = new JSONObject(result.getString());
+        assertEquals(2, json.length());
+        expires = getExpiresInSeconds(json.getString(TEST_FILE_KEY));
+        assertTrue("Expires in " + expires + "s instead of 120", expires <= 120 && expires >= 60);
+    }
+
     @Test
     public void testGetObjectMetadataShouldNotFindKey() throws Exception {
         Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
@@ -21,11 +21,29 @@ package org.nuxeo.s3utils.test;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Assume;
 import org.junit.Before;
@@ -33,16 +51,26 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.metrics.MetricsService;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.s3utils.CacheForKeyExists;
 import org.nuxeo.s3utils.Constants;
 import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.S3RangeCache;
+import org.nuxeo.s3utils.S3UtilsMetrics;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+
 /**
  * See {@link SimpleFeatureCustom} for explanation about the local configuration file used for testing.
  *
@@ -139,6 +167,80 @@ public class TestS3Handler {
 
     }
     
+    @Test
+    public void testSendStream() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        String uploadKey = SimpleFeatureCustom.getLocalProperty(SimpleFeatureCustom.TEST_CONF_KEY_NAME_UPLOAD_FILE_KEY);
+        Assume.assumeTrue("No parameter for upload/delet test => no test", StringUtils.isNotBlank(uploadKey));
+
+        // Small stream, known length => single PUT
+        File file = FileUtils.getResourceFileFromContext(FILE_TO_UPLOAD);
+        try (InputStream in = new FileInputStream(file)) {
+            assertTrue(s3Handler.sendStream(uploadKey, in, file.length(), "application/pdf"));
+        }
+        ObjectMetadata metadata = s3Handler.getObjectMetadata(uploadKey);
+        assertEquals(file.length(), metadata.getContentLength());
+        assertEquals("application/pdf", metadata.getContentType());
+
+        // Unknown length, several parts (the minimum part size is 5MB)
+        byte[] bytes = new byte[12 * 1024 * 1024 + 123];
+        new Random().nextBytes(bytes);
+        try (InputStream in = new ByteArrayInputStream(bytes)) {
+            assertTrue(s3Handler.sendStream(uploadKey, in, -1, null));
+        }
+        metadata = s3Handler.getObjectMetadata(uploadKey);
+        assertEquals(bytes.length, metadata.getContentLength());
+        // ETag of a multipart upload is "md5-of-md5s-partCount"
+        assertTrue(metadata.getETag().contains("-"));
+        assertArrayEquals(Arrays.copyOfRange(bytes, bytes.length - 1000, bytes.length),
+                s3Handler.readBytes(uploadKey, bytes.length - 1000, 1000));
+
+        s3Handler.deleteFile(uploadKey);
+    }
+
+    @Test
+    public void testAsyncCalls() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        String uploadKey = SimpleFeatureCustom.getLocalProperty(SimpleFeatureCustom.TEST_CONF_KEY_NAME_UPLOAD_FILE_KEY);
+        Assume.assumeTrue("No parameter for upload/delet test => no test", StringUtils.isNotBlank(uploadKey));
+
+        // Start all the calls, then wait
+        CompletableFuture<Blob> download = s3Handler.downloadFileAsync(TEST_FILE_KEY, (String) null);
+        CompletableFuture<ObjectMetadata> metadata = s3Handler.getObjectMetadataAsync(TEST_FILE_KEY);
+        CompletableFuture<Boolean> exists = s3Handler.existsKeyAsync(TEST_FILE_KEY);
+        CompletableFuture<Boolean> notExists = s3Handler.existsKeyAsync(UUID.randomUUID().toString());
+
+        File file = FileUtils.getResourceFileFromContext(FILE_TO_UPLOAD);
+        CompletableFuture<Boolean> upload = s3Handler.sendFileAsync(uploadKey, file);
+
+        Blob blob = download.get(60, TimeUnit.SECONDS);
+        assertEquals(TEST_FILE_NAME, blob.getFilename());
+        assertEquals(TEST_FILE_SIZE, blob.getLength());
+
+        assertEquals(TEST_FILE_SIZE, metadata.get(60, TimeUnit.SECONDS).getContentLength());
+        assertTrue(exists.get(60, TimeUnit.SECONDS));
+        assertFalse(notExists.get(60, TimeUnit.SECONDS));
+
+        assertTrue(upload.get(60, TimeUnit.SECONDS));
+        assertTrue(s3Handler.existsKeyInS3(uploadKey));
+        s3Handler.deleteFile(uploadKey);
+
+        // Errors complete the future exceptionally
+        CompletableFuture<ObjectMetadata> missing = s3Handler.getObjectMetadataAsync(UUID.randomUUID().toString());
+        try {
+            missing.get(60, TimeUnit.SECONDS);
+            fail("Should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NuxeoException);
+        }
+    }
+
     @Test
     public void testObjectMetadata() throws Exception {
         
@@ -253,6 +355,39 @@ public class TestS3Handler {
                 
     }
     
+    @Test
+    public void testBigObjectStreamWithPrefetch() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        SimpleFeatureCustom.BigObjectInfo boi = new SimpleFeatureCustom.BigObjectInfo();
+        Assume.assumeTrue("No big object info in the configuration file", boi.ok);
+
+        String expectedDigest;
+        try (SequenceInputStream stream = s3Handler.getSequenceInputStream(boi.key, boi.pieceSize, 0)) {
+            expectedDigest = DigestUtils.md5Hex(stream);
+        }
+
+        // Several pieces in flight, must still be read in order
+        long size;
+        String digest;
+        try (SequenceInputStream stream = s3Handler.getSequenceInputStream(boi.key, boi.pieceSize, 4);
+                CountingInputStream counting = new CountingInputStream(stream)) {
+            digest = DigestUtils.md5Hex(counting);
+            size = counting.getByteCount();
+        }
+        assertEquals(boi.size, size);
+        assertEquals(expectedDigest, digest);
+
+        // Closing before the end must not read the whole object
+        SequenceInputStream stream = s3Handler.getSequenceInputStream(boi.key, boi.pieceSize, 4);
+        byte[] bytes = stream.readNBytes(10);
+        assertEquals(10, bytes.length);
+        stream.close();
+
+    }
+
     /*
      * Check your aws-test-conf file, all is configured there
      */
@@ -274,4 +409,151 @@ public class TestS3Handler {
         
     }
 
+    @Test
+    public void testSeekableChannel() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        SimpleFeatureCustom.BigObjectInfo boi = new SimpleFeatureCustom.BigObjectInfo();
+        Assume.assumeTrue("No big object info in the configuration file", boi.ok);
+
+        try (SeekableByteChannel channel = s3Handler.getSeekableChannel(boi.key)) {
+            assertEquals(boi.size, channel.size());
+
+            // Jump to the value
+            ByteBuffer buffer = ByteBuffer.allocate((int) boi.readBytesLen);
+            channel.position(boi.readBytesStart);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // Loop
+            }
+            assertEquals(boi.readBytesValue, new String(buffer.array()));
+            assertEquals(boi.readBytesStart + boi.readBytesLen, channel.position());
+
+            // Jump to the end
+            buffer = ByteBuffer.allocate(100);
+            channel.position(boi.size - 10);
+            assertEquals(10, channel.read(buffer));
+            assertEquals(-1, channel.read(buffer));
+
+            // Back to the value, must be the same
+            buffer = ByteBuffer.allocate((int) boi.readBytesLen);
+            channel.position(boi.readBytesStart);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // Loop
+            }
+            assertEquals(boi.readBytesValue, new String(buffer.array()));
+        }
+
+    }
+
+    @Test
+    public void testRangeCache() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        SimpleFeatureCustom.BigObjectInfo boi = new SimpleFeatureCustom.BigObjectInfo();
+        Assume.assumeTrue("No big object info in the configuration file", boi.ok);
+
+        // Small blocks, so the value is likely to be on several blocks
+        S3RangeCache cache = new S3RangeCache(1024 * 1024, 16, false, 60000);
+
+        byte[] bytes = cache.readBytes(s3Handler.getS3(), s3Handler.getBucket(), boi.key, boi.readBytesStart,
+                boi.readBytesLen);
+        assertEquals(boi.readBytesValue, new String(bytes));
+        int blockCount = cache.getBlockCount();
+        assertTrue(blockCount > 0);
+
+        // Read again => from the cache
+        bytes = cache.readBytes(s3Handler.getS3(), s3Handler.getBucket(), boi.key, boi.readBytesStart,
+                boi.readBytesLen);
+        assertEquals(boi.readBytesValue, new String(bytes));
+        assertEquals(blockCount, cache.getBlockCount());
+
+        // Past the end of the object => shorter result
+        bytes = cache.readBytes(s3Handler.getS3(), s3Handler.getBucket(), boi.key, boi.size - 10, 100);
+        assertEquals(10, bytes.length);
+
+        // Same, off-heap
+        cache = new S3RangeCache(1024 * 1024, 16, true, 60000);
+        bytes = cache.readBytes(s3Handler.getS3(), s3Handler.getBucket(), boi.key, boi.readBytesStart,
+                boi.readBytesLen);
+        assertEquals(boi.readBytesValue, new String(bytes));
+
+        cache.invalidate(s3Handler.getBucket(), boi.key);
+        assertEquals(0, cache.getBlockCount());
+        assertEquals(0, cache.getCurrentSize());
+    }
+
+    @Test
+    public void testConcurrentHeadRequests() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        MetricName heads = MetricName.build(S3UtilsMetrics.PREFIX + ".requests")
+                                     .tagged("handler", Constants.DEFAULT_HANDLER_NAME, "bucket",
+                                             s3Handler.getBucket(), "operation", "HeadObject");
+        long headCount = registry.timer(heads).getCount();
+
+        String missingKey = UUID.randomUUID().toString();
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(() -> s3Handler.existsKeyInS3(TEST_FILE_KEY));
+            tasks.add(() -> !s3Handler.existsKeyInS3(missingKey));
+            tasks.add(() -> {
+                // Each caller gets its own copy of the metadata
+                ObjectMetadata metadata = s3Handler.getObjectMetadata(TEST_FILE_KEY);
+                metadata.setContentType("modified/by-caller");
+                return metadata.getETag() != null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            for (Future<Boolean> future : executor.invokeAll(tasks)) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // coalesceHeadRequests is true by default: callers asking for the same key at the same time share a HEAD
+        long sent = registry.timer(heads).getCount() - headCount;
+        assertTrue("HEAD requests sent: " + sent, sent < tasks.size());
+
+        assertNotEquals("modified/by-caller", s3Handler.getObjectMetadata(TEST_FILE_KEY).getContentType());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        String bucket = s3Handler.getBucket();
+        MetricName calls = MetricName.build(S3UtilsMetrics.PREFIX + ".calls")
+                                     .tagged("handler", Constants.DEFAULT_HANDLER_NAME, "bucket", bucket, "operation",
+                                             "existsKeyInS3");
+        MetricName heads = MetricName.build(S3UtilsMetrics.PREFIX + ".requests")
+                                     .tagged("handler", Constants.DEFAULT_HANDLER_NAME, "bucket", bucket, "operation",
+                                             "HeadObject");
+        MetricName downloaded = MetricName.build(S3UtilsMetrics.PREFIX + ".bytes")
+                                          .tagged("handler", Constants.DEFAULT_HANDLER_NAME, "bucket", bucket,
+                                                  "direction", S3UtilsMetrics.DOWNLOAD);
+        long callCount = registry.timer(calls).getCount();
+        long headCount = registry.timer(heads).getCount();
+        long bytes = registry.meter(downloaded).getCount();
+
+        assertTrue(s3Handler.existsKeyInS3(TEST_FILE_KEY));
+        s3Handler.readBytes(TEST_FILE_KEY, 0, 100);
+
+        assertEquals(callCount + 1, registry.timer(calls).getCount());
+        // At least: coalesceHeadRequests can share a HEAD with another caller
+        assertTrue(registry.timer(heads).getCount() >= headCount + 1);
+        assertTrue(registry.meter(downloaded).getCount() >= bytes + 100);
+    }
+
 }
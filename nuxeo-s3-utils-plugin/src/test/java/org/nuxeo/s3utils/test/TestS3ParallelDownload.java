@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.S3ParallelDownload;
+
+/**
+ * The "local-parallel" handler (see test-local-s3handler.xml) downloads objects of 2MB and more with ranges of 1MB.
+ *
+ * @since 3.2.1
+ */
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, LocalS3Feature.class })
+public class TestS3ParallelDownload {
+
+    protected S3Handler s3Handler;
+
+    protected LocalS3Server server;
+
+    @Before
+    public void setup() {
+        s3Handler = S3Handler.getS3Handler("local-parallel");
+        server = LocalS3Feature.getServer();
+    }
+
+    protected byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSmallObjectIsDownloadedWithOneGet() throws Exception {
+
+        byte[] content = randomBytes(1024 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "small.bin", content, "application/octet-stream");
+
+        Blob blob = s3Handler.downloadFile("small.bin", "small.bin");
+        assertArrayEquals(content, blob.getByteArray());
+        assertEquals(1, server.getRequestCount(LocalS3Server.GET_OBJECT));
+    }
+
+    @Test
+    public void testSinglePartObject() throws Exception {
+
+        // 5.5MB => 6 ranges of 1MB, the file is checked against the MD5 ETag
+        byte[] content = randomBytes(5 * 1024 * 1024 + 512 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "single-part.bin", content, "application/octet-stream");
+
+        Blob blob = s3Handler.downloadFile("single-part.bin", "single-part.bin");
+        assertArrayEquals(content, blob.getByteArray());
+        assertEquals(DigestUtils.md5Hex(content), blob.getDigest().replace("\"", ""));
+        assertEquals(6, server.getRequestCount(LocalS3Server.GET_OBJECT));
+    }
+
+    @Test
+    public void testMultipartObject() throws Exception {
+
+        // Uploaded in parts of 5MB (5 + 5 + 2) => ranges aligned on the parts, 3 GETs
+        byte[] content = randomBytes(12 * 1024 * 1024);
+        File file = Files.createTempFile("test-parallel-download", ".bin").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        assertTrue(s3Handler.sendFile("multipart.bin", file));
+        assertEquals(3, server.getRequestCount(LocalS3Server.UPLOAD_PART));
+        server.resetRequestCounts();
+
+        Blob blob = s3Handler.downloadFileAsync("multipart.bin", "multipart.bin").get();
+        assertArrayEquals(content, blob.getByteArray());
+        assertEquals(3, server.getRequestCount(LocalS3Server.GET_OBJECT));
+    }
+
+    @Test
+    public void testUnevenPartsAreDownloadedWithoutETagCheck() throws Exception {
+
+        // The first part and the size are consistent with 3 parts of 5MB, the last part is not
+        byte[] content = randomBytes(15 * 1024 * 1024);
+        server.putMultipartObject(LocalS3Feature.BUCKET, "uneven.bin", content, "application/octet-stream",
+                5 * 1024 * 1024, 7 * 1024 * 1024, 3 * 1024 * 1024);
+
+        Blob blob = s3Handler.downloadFile("uneven.bin", "uneven.bin");
+        assertArrayEquals(content, blob.getByteArray());
+        // The object, its first part and its last part
+        assertEquals(3, server.getRequestCount(LocalS3Server.HEAD_OBJECT));
+    }
+
+    @Test
+    public void testCorruptedContentFailsAndDeletesTheFile() throws Exception {
+
+        byte[] content = randomBytes(5 * 1024 * 1024 + 512 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "corrupted.bin", content, "application/octet-stream");
+        server.putMultipartObject(LocalS3Feature.BUCKET, "corrupted-parts.bin", content, "application/octet-stream",
+                2 * 1024 * 1024, 2 * 1024 * 1024, 1024 * 1024 + 512 * 1024);
+
+        for (String key : new String[] { "corrupted.bin", "corrupted-parts.bin" }) {
+            File file = Files.createTempFile("test-parallel-download", ".bin").toFile();
+            file.deleteOnExit();
+            server.corruptNextResponses(1);
+            S3ParallelDownload download = new S3ParallelDownload(s3Handler.getS3(), LocalS3Feature.BUCKET, key, 0,
+                    1024 * 1024, 2, ForkJoinPool.commonPool());
+            try {
+                download.download(file);
+                fail(key + " is corrupted, the download should fail");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("does not match its ETag"));
+            }
+            assertFalse(file.exists());
+        }
+    }
+
+    @Test
+    public void testSaturatedExecutorRunsInTheCaller() throws Exception {
+
+        byte[] content = randomBytes(5 * 1024 * 1024 + 512 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "saturated.bin", content, "application/octet-stream");
+        File file = Files.createTempFile("test-parallel-download", ".bin").toFile();
+        file.deleteOnExit();
+
+        // The only thread of the executor is busy, and it has no queue
+        CountDownLatch busy = new CountDownLatch(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            executor.execute(() -> {
+                try {
+                    busy.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            new S3ParallelDownload(s3Handler.getS3(), LocalS3Feature.BUCKET, "saturated.bin", 0, 1024 * 1024, 4,
+                    executor).download(file);
+        } finally {
+            busy.countDown();
+            executor.shutdown();
+        }
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        assertEquals(6, server.getRequestCount(LocalS3Server.GET_OBJECT));
+    }
+
+    @Test
+    public void testModifiedObjectFailsAndDeletesTheFile() throws Exception {
+
+        byte[] content = randomBytes(4 * 1024 * 1024);
+        server.putObject(LocalS3Feature.BUCKET, "modified.bin", content, "application/octet-stream");
+        File file = Files.createTempFile("test-parallel-download", ".bin").toFile();
+        file.deleteOnExit();
+
+        // Replaced between the HEAD and the ranged GETs
+        S3ParallelDownload download = new S3ParallelDownload(s3Handler.getS3(), LocalS3Feature.BUCKET,
+                "modified.bin", 0, 1024 * 1024, 2, ForkJoinPool.commonPool()) {
+            @Override
+            protected void downloadRanges(File destFile, long rangeSize) throws IOException {
+                server.putObject(LocalS3Feature.BUCKET, "modified.bin", randomBytes(4 * 1024 * 1024 + 1), null);
+                super.downloadRanges(destFile, rangeSize);
+            }
+        };
+        try {
+            download.download(file);
+            fail("The object was modified, the download should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(file.exists());
+    }
+
+}
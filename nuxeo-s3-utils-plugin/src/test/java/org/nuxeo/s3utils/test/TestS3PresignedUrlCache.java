@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.nuxeo.s3utils.S3PresignedUrlCache;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+
+/**
+ * No S3 access here, no need for the Nuxeo runtime
+ *
+ * @since 3.2.1
+ */
+public class TestS3PresignedUrlCache {
+
+    protected AtomicInteger built = new AtomicInteger();
+
+    protected Supplier<String> builder = () -> "https://the-url/" + built.incrementAndGet();
+
+    @Test
+    public void testReuse() {
+
+        S3PresignedUrlCache cache = new S3PresignedUrlCache(100, 50);
+
+        String url = cache.get("bucket", "the/key", 1200, null, null, builder);
+        assertEquals(url, cache.get("bucket", "the/key", 1200, null, null, builder));
+        assertEquals(1, built.get());
+
+        // Any other parameter => another URL
+        assertNotEquals(url, cache.get("other-bucket", "the/key", 1200, null, null, builder));
+        assertNotEquals(url, cache.get("bucket", "the/other/key", 1200, null, null, builder));
+        assertNotEquals(url, cache.get("bucket", "the/key", 60, null, null, builder));
+        assertNotEquals(url, cache.get("bucket", "the/key", 1200, "application/pdf", null, builder));
+        assertNotEquals(url, cache.get("bucket", "the/key", 1200, null, "attachment", builder));
+        assertEquals(6, built.get());
+        assertEquals(6, cache.size());
+
+        // Parameters must not be mixed up
+        String url1 = cache.get("bucket", "the/key", 1200, "a", "b", builder);
+        String url2 = cache.get("bucket", "the/key", 1200, null, "a/1:b", builder);
+        assertNotEquals(url1, url2);
+    }
+
+    @Test
+    public void testMinRemaining() throws Exception {
+
+        // 100% => never reused
+        S3PresignedUrlCache cache = new S3PresignedUrlCache(100, 100);
+        String url = cache.get("bucket", "the/key", 1200, null, null, builder);
+        assertNotEquals(url, cache.get("bucket", "the/key", 1200, null, null, builder));
+
+        // 0% => reused until it expires
+        cache = new S3PresignedUrlCache(100, 0);
+        url = cache.get("bucket", "the/key", 1, null, null, builder);
+        assertEquals(url, cache.get("bucket", "the/key", 1, null, null, builder));
+        Thread.sleep(1100);
+        assertNotEquals(url, cache.get("bucket", "the/key", 1, null, null, builder));
+    }
+
+    @Test
+    public void testCredentialsChange() {
+
+        AWSCredentials[] credentials = { new BasicSessionCredentials("access-key", "secret-key", "token-1") };
+        AWSCredentialsProvider provider = new AWSCredentialsProvider() {
+
+            @Override
+            public AWSCredentials getCredentials() {
+                return credentials[0];
+            }
+
+            @Override
+            public void refresh() {
+            }
+        };
+        S3PresignedUrlCache cache = new S3PresignedUrlCache(100, 50, null, provider);
+
+        String url = cache.get("bucket", "the/key", 1200, null, null, builder);
+        assertEquals(url, cache.get("bucket", "the/key", 1200, null, null, builder));
+        // Same values in other instances (the provider may build new ones)
+        credentials[0] = new BasicSessionCredentials("access-key", "secret-key", "token-1");
+        assertEquals(url, cache.get("bucket", "the/key", 1200, null, null, builder));
+        assertEquals(1, built.get());
+
+        // Refreshed session: the URL signed with the previous token expires with it
+        credentials[0] = new BasicSessionCredentials("access-key", "secret-key", "token-2");
+        String newUrl = cache.get("bucket", "the/key", 1200, null, null, builder);
+        assertNotEquals(url, newUrl);
+        assertEquals(newUrl, cache.get("bucket", "the/key", 1200, null, null, builder));
+
+        // Other access key
+        credentials[0] = new BasicAWSCredentials("other-access-key", "secret-key");
+        assertNotEquals(newUrl, cache.get("bucket", "the/key", 1200, null, null, builder));
+        assertEquals(3, built.get());
+    }
+
+    @Test
+    public void testBounded() {
+
+        S3PresignedUrlCache cache = new S3PresignedUrlCache(16, 50);
+        for (int i = 0; i < 100; i++) {
+            cache.get("bucket", "key-" + i, 1200, null, null, builder);
+        }
+        assertTrue(cache.size() <= 16);
+    }
+
+}
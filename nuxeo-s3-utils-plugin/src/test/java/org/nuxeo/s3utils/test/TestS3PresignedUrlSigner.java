@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.s3utils.S3PresignedUrlSigner;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+
+/**
+ * Presigning is local, no S3 access here, no need for the Nuxeo runtime
+ *
+ * @since 3.2.1
+ */
+public class TestS3PresignedUrlSigner {
+
+    protected static final String[] KEYS = { "simple.pdf", "folder/a b//c+d~é*(x).pdf", "/leading-slash",
+            "x'y=z;q%&?#[]@!$,:", "日本/ü", "trailing/" };
+
+    protected static final String[] BUCKETS = { "my-bucket", "my.dotted.bucket" };
+
+    // Exposes the signing with a given date, to compare with the URL built by the SDK
+    protected static class TestableSigner extends S3PresignedUrlSigner {
+
+        public TestableSigner(AmazonS3 s3, AWSCredentialsProvider credentialsProvider, String region) {
+            super(s3, credentialsProvider, region);
+        }
+
+        public TestableSigner(AmazonS3 s3, AWSCredentialsProvider credentialsProvider, String region,
+                boolean accelerateMode, boolean dualstack) {
+            super(s3, credentialsProvider, region, accelerateMode, dualstack);
+        }
+
+        public String presignGet(String bucket, String key, String sdkUrl, Map<String, String> requestParameters) {
+
+            String date = sdkUrl.replaceAll(".*X-Amz-Date=([^&]*).*", "$1");
+            long expires = Long.parseLong(sdkUrl.replaceAll(".*X-Amz-Expires=([^&]*).*", "$1"));
+            long signingTime = LocalDateTime.parse(date, DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'"))
+                                            .toInstant(ZoneOffset.UTC)
+                                            .toEpochMilli();
+            return presignGet(bucket, key, signingTime, expires, requestParameters);
+        }
+    }
+
+    @Test
+    public void testSameUrlsAsTheSDK() {
+
+        AWSCredentialsProvider[] providers = {
+                new AWSStaticCredentialsProvider(
+                        new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY")),
+                new AWSStaticCredentialsProvider(
+                        new BasicSessionCredentials(" AKIDEXAMPLE ", "secret", " session/token+==")) };
+
+        for (String region : new String[] { "us-east-1", "eu-west-3" }) {
+            for (AWSCredentialsProvider provider : providers) {
+                for (boolean pathStyle : new boolean[] { false, true }) {
+                    AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+                                                       .withRegion(region)
+                                                       .withCredentials(provider)
+                                                       .withPathStyleAccessEnabled(pathStyle)
+                                                       .build();
+                    TestableSigner signer = new TestableSigner(s3, provider, s3.getRegionName());
+                    try {
+                        for (String bucket : BUCKETS) {
+                            for (String key : KEYS) {
+                                checkSameUrl(s3, signer, bucket, key, null, null);
+                                checkSameUrl(s3, signer, bucket, key, "application/pdf; x=*'",
+                                        "attachment; filename=\"a b+é.pdf\"");
+                            }
+                        }
+                    } finally {
+                        s3.shutdown();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAccelerateAndDualstack() {
+
+        AWSCredentialsProvider provider = new AWSStaticCredentialsProvider(
+                new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY"));
+        for (boolean accelerate : new boolean[] { false, true }) {
+            for (boolean dualstack : new boolean[] { false, true }) {
+                AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+                                                   .withRegion("eu-west-3")
+                                                   .withCredentials(provider)
+                                                   .withAccelerateModeEnabled(accelerate)
+                                                   .withDualstackEnabled(dualstack)
+                                                   .build();
+                TestableSigner signer = new TestableSigner(s3, provider, s3.getRegionName(), accelerate, dualstack);
+                try {
+                    for (String bucket : BUCKETS) {
+                        for (String key : KEYS) {
+                            checkSameUrl(s3, signer, bucket, key, null, null);
+                        }
+                    }
+                    String url = signer.presignGet("my-bucket", "the/key",
+                            new Date(System.currentTimeMillis() + 3600 * 1000L), null);
+                    String host = accelerate ? (dualstack ? "s3-accelerate.dualstack" : "s3-accelerate")
+                            : (dualstack ? "s3.dualstack.eu-west-3" : "s3.eu-west-3");
+                    assertTrue(url, url.startsWith("https://my-bucket." + host + ".amazonaws.com/the/key?"));
+                } finally {
+                    s3.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEndpointWithSigningRegion() {
+
+        AWSCredentialsProvider provider = new AWSStaticCredentialsProvider(
+                new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY"));
+        for (boolean pathStyle : new boolean[] { false, true }) {
+            // The client region is not the signing region (VPC endpoint, S3-compatible storage, ...)
+            AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+                                               .withEndpointConfiguration(new EndpointConfiguration(
+                                                       "https://storage.example.com:9000", "us-west-2"))
+                                               .withCredentials(provider)
+                                               .withPathStyleAccessEnabled(pathStyle)
+                                               .build();
+            TestableSigner signer = new TestableSigner(s3, provider, "us-west-2");
+            try {
+                for (String bucket : BUCKETS) {
+                    for (String key : KEYS) {
+                        checkSameUrl(s3, signer, bucket, key, "application/pdf", null);
+                    }
+                }
+                String url = signer.presignGet("my-bucket", "the/key",
+                        new Date(System.currentTimeMillis() + 3600 * 1000L), null);
+                assertTrue(url, url.contains("%2Fus-west-2%2Fs3%2Faws4_request"));
+                assertTrue(url, url.startsWith(pathStyle ? "https://storage.example.com:9000/my-bucket/the/key?"
+                        : "https://my-bucket.storage.example.com:9000/the/key?"));
+            } finally {
+                s3.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testExpiration() {
+
+        AWSCredentialsProvider provider = new AWSStaticCredentialsProvider(
+                new BasicAWSCredentials("AKIDEXAMPLE", "secret"));
+        AmazonS3 s3 = AmazonS3ClientBuilder.standard().withRegion("eu-west-3").withCredentials(provider).build();
+        try {
+            S3PresignedUrlSigner signer = new S3PresignedUrlSigner(s3, provider, "eu-west-3");
+
+            String url = signer.presignGet("my-bucket", "the/key",
+                    new Date(System.currentTimeMillis() + 3600 * 1000L), null);
+            assertTrue(url, url.startsWith("https://my-bucket.s3.eu-west-3.amazonaws.com/the/key?"));
+            // Same computation as the SDK: floor of the remaining seconds
+            assertTrue(url, url.contains("&X-Amz-Expires=3599&") || url.contains("&X-Amz-Expires=3600&"));
+
+            try {
+                signer.presignGet("my-bucket", "the/key", new Date(System.currentTimeMillis() + 8 * 24 * 3600 * 1000L),
+                        null);
+                fail("More than 7 days should fail");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        } finally {
+            s3.shutdown();
+        }
+    }
+
+    protected void checkSameUrl(AmazonS3 s3, TestableSigner signer, String bucket, String key, String contentType,
+            String contentDisposition) {
+
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucket, key, HttpMethod.GET);
+        Map<String, String> parameters = new HashMap<>();
+        if (contentType != null) {
+            request.addRequestParameter("response-content-type", contentType);
+            parameters.put("response-content-type", contentType);
+        }
+        if (contentDisposition != null) {
+            request.addRequestParameter("response-content-disposition", contentDisposition);
+            parameters.put("response-content-disposition", contentDisposition);
+        }
+        request.setExpiration(new Date(System.currentTimeMillis() + 1200 * 1000L));
+
+        String sdkUrl = s3.generatePresignedUrl(request).toString();
+        assertEquals(sdkUrl, signer.presignGet(bucket, key, sdkUrl, parameters));
+    }
+
+}
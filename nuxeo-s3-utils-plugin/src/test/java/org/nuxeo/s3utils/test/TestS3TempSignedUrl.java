@@ -21,6 +21,11 @@ package org.nuxeo.s3utils.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -98,6 +103,28 @@ public class TestS3TempSignedUrl {
 
     }
 
+    @Test
+    public void testGetTempSignedUrls() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?", TestUtils.awsCredentialsLookOk());
+
+        String otherKey = UUID.randomUUID().toString() + ".pdf";
+        List<String> keys = Arrays.asList(otherKey, TEST_FILE_KEY);
+        Map<String, String> urls = s3Handler.buildPresignedUrls(null, keys, 0, null, null);
+        assertEquals(keys, new ArrayList<>(urls.keySet()));
+
+        File f = TestUtils.downloadFile(urls.get(TEST_FILE_KEY));
+        assertNotNull(f);
+        long size = f.length();
+        f.delete();
+        assertEquals(TEST_FILE_SIZE, size);
+
+        // The bucket passed is used
+        urls = s3Handler.buildPresignedUrls("another-bucket-" + UUID.randomUUID(), keys, 0, null, null);
+        assertTrue(urls.get(TEST_FILE_KEY).contains("another-bucket-"));
+    }
+
     @Test
     public void testTempSignedUrlShouldFail() throws Exception {
 
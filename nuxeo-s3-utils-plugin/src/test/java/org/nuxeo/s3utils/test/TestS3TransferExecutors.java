@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+import org.nuxeo.s3utils.S3TransferExecutors;
+
+/**
+ * No S3 access here, no need for the Nuxeo runtime
+ *
+ * @since 3.2.1
+ */
+public class TestS3TransferExecutors {
+
+    @Test
+    public void testMaxSizeRequiresAQueueSize() {
+
+        // Unbounded queue: the threads above the core size would never be started
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) S3TransferExecutors.newExecutor("test-unbounded", 2, 8, 0,
+                false);
+        try {
+            assertEquals(2, executor.getCorePoolSize());
+            assertEquals(2, executor.getMaximumPoolSize());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        executor = (ThreadPoolExecutor) S3TransferExecutors.newExecutor("test-bounded", 2, 8, 100, false);
+        try {
+            assertEquals(2, executor.getCorePoolSize());
+            assertEquals(8, executor.getMaximumPoolSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIOExecutorIsBounded() {
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) S3TransferExecutors.newIOExecutor("test-io", 4);
+        try {
+            assertEquals(4, executor.getMaximumPoolSize());
+            assertEquals(4, executor.getQueue().remainingCapacity());
+            assertTrue(executor.getRejectedExecutionHandler() instanceof ThreadPoolExecutor.CallerRunsPolicy);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSaturatedPoolRunsInTheCaller() {
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) S3TransferExecutors.newExecutor("test-saturated", 1, 1, 1,
+                false);
+        try {
+            Object lock = new Object();
+            synchronized (lock) {
+                // The thread is blocked, the queue is filled, the next task runs in the caller
+                executor.execute(() -> {
+                    synchronized (lock) {
+                        // Wait for the caller
+                    }
+                });
+                executor.execute(() -> {
+                });
+                Thread[] runner = new Thread[1];
+                executor.execute(() -> runner[0] = Thread.currentThread());
+                assertSame(Thread.currentThread(), runner[0]);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -43,18 +43,28 @@ import org.nuxeo.runtime.test.runner.TransactionalFeature;
 import org.nuxeo.s3utils.BlobKey;
 import org.nuxeo.s3utils.Constants;
 import org.nuxeo.s3utils.S3Handler;
+import org.nuxeo.s3utils.S3ObjectMetadataCache;
 import org.nuxeo.s3utils.S3UtilsBlobProvider;
 
 import javax.inject.Inject;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @since TODO
@@ -145,6 +155,105 @@ public class TestS3UtilsBlobProvider {
         assertTrue(tmp.length() == TEST_FILE_SIZE);
     }
 
+    @Test
+    public void testGetBlobWithMetadataCache() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?",
+                TestUtils.awsCredentialsLookOk());
+
+        S3UtilsBlobProvider blobProvider = new S3UtilsBlobProvider();
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.S3_HANDLER_ATTACHED_PROPERTY, Constants.DEFAULT_HANDLER_NAME);
+        properties.put(S3UtilsBlobProvider.METADATA_CACHE_TTL_PROPERTY, "600");
+        properties.put(S3UtilsBlobProvider.METADATA_CACHE_TRUST_DURATION_PROPERTY, "600");
+        blobProvider.initialize("TestS3Provider", properties);
+        blobManager.getBlobProviders().put("TestS3Provider", blobProvider);
+
+        S3ObjectMetadataCache metadataCache = blobProvider.getMetadataCache();
+        assertNotNull(metadataCache);
+
+        ManagedBlob blob = blobProvider.createBlobFromObjectKey(TEST_FILE_KEY);
+        assertEquals(TEST_FILE_SIZE, blob.getLength());
+        S3ObjectMetadataCache.CachedMetadata cached = metadataCache.get(s3Handler.getBucket(), TEST_FILE_KEY);
+        assertNotNull(cached);
+
+        // First read downloads the file, second read is served from the file cache. Both use the cached metadata
+        for (int i = 0; i < 2; i++) {
+            File tmp = Framework.createTempFile("nxtmp-", "");
+            FileUtils.copyInputStreamToFile(blobProvider.getStream(blob), tmp);
+            assertEquals(TEST_FILE_SIZE, tmp.length());
+        }
+        assertTrue(cached == metadataCache.get(s3Handler.getBucket(), TEST_FILE_KEY));
+
+        blobProvider.close();
+    }
+
+    @Test
+    public void testGetStreamWithStreamMode() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?",
+                TestUtils.awsCredentialsLookOk());
+
+        S3UtilsBlobProvider blobProvider = new S3UtilsBlobProvider();
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.S3_HANDLER_ATTACHED_PROPERTY, Constants.DEFAULT_HANDLER_NAME);
+        properties.put(S3UtilsBlobProvider.GET_STREAM_MODE_PROPERTY, S3UtilsBlobProvider.GET_STREAM_MODE_STREAM);
+        // Stream all objects
+        properties.put(S3UtilsBlobProvider.STREAM_ABOVE_PROPERTY, "0");
+        blobProvider.initialize("TestS3Provider", properties);
+        blobManager.getBlobProviders().put("TestS3Provider", blobProvider);
+
+        ManagedBlob blob = blobProvider.createBlobFromObjectKey(TEST_FILE_KEY);
+        File tmp = Framework.createTempFile("nxtmp-", "");
+        FileUtils.copyInputStreamToFile(blobProvider.getStream(blob), tmp);
+        assertEquals(TEST_FILE_SIZE, tmp.length());
+
+        // Nothing was written in the file cache
+        String etag = s3Handler.getObjectMetadata(TEST_FILE_KEY).getETag();
+        assertNull(blobProvider.fileCache.getFile(etag));
+
+        blobProvider.close();
+    }
+
+    @Test
+    public void testGetStreamWithTeeMode() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?",
+                TestUtils.awsCredentialsLookOk());
+
+        S3UtilsBlobProvider blobProvider = new S3UtilsBlobProvider();
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.S3_HANDLER_ATTACHED_PROPERTY, Constants.DEFAULT_HANDLER_NAME);
+        properties.put(S3UtilsBlobProvider.GET_STREAM_MODE_PROPERTY, S3UtilsBlobProvider.GET_STREAM_MODE_TEE);
+        blobProvider.initialize("TestS3Provider", properties);
+        blobManager.getBlobProviders().put("TestS3Provider", blobProvider);
+
+        ManagedBlob blob = blobProvider.createBlobFromObjectKey(TEST_FILE_KEY);
+        String etag = s3Handler.getObjectMetadata(TEST_FILE_KEY).getETag();
+
+        // Two readers of the same download
+        try (InputStream stream1 = blobProvider.getStream(blob); InputStream stream2 = blobProvider.getStream(blob)) {
+            assertEquals(TEST_FILE_SIZE, stream1.readAllBytes().length);
+            assertEquals(TEST_FILE_SIZE, stream2.readAllBytes().length);
+        }
+
+        // Once complete, the file is committed in the file cache
+        File cached = null;
+        for (int i = 0; i < 50 && cached == null; i++) {
+            cached = blobProvider.fileCache.getFile(etag);
+            if (cached == null) {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull(cached);
+        assertEquals(TEST_FILE_SIZE, cached.length());
+
+        blobProvider.close();
+    }
+
     @Test
     @Deploy("org.nuxeo.ecm.platform.convert")
     public void testGetBlobWithDownloadThreshold() throws Exception {
@@ -433,4 +542,62 @@ public class TestS3UtilsBlobProvider {
         
     }
 
+    @Test
+    @Deploy("nuxeo-s3-utils:test-counting-s3handler.xml")
+    public void shouldDownloadOncePerETagWithGetFile() throws Exception {
+
+        Assume.assumeTrue("No custom configuration file => no test", SimpleFeatureCustom.hasLocalTestConfiguration());
+        Assume.assumeTrue("Connection to AWS is failing. Are your credentials correctly set?",
+                TestUtils.awsCredentialsLookOk());
+
+        // New provider => empty file cache, the concurrent calls all start with a miss
+        S3UtilsBlobProvider blobProvider = new S3UtilsBlobProvider();
+        Map<String, String> properties = new HashMap<>();
+        properties.put(S3UtilsBlobProvider.S3_HANDLER_ATTACHED_PROPERTY, "counting");
+        blobProvider.initialize("TestS3Provider-counting-getfile", properties);
+        blobManager.getBlobProviders().put("TestS3Provider-counting-getfile", blobProvider);
+        ManagedBlob blob = blobProvider.createBlobFromObjectKey(TEST_FILE_KEY);
+
+        CountingS3HandlerImpl.DOWNLOADS.set(0);
+
+        int count = 10;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        List<File> files = new ArrayList<>();
+        try {
+            List<Future<File>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return blobProvider.getFile(blob);
+                }));
+            }
+            start.countDown();
+            for (Future<File> future : futures) {
+                File f = future.get();
+                assertEquals(TEST_FILE_SIZE, f.length());
+                assertEquals(TEST_FILE_NAME, f.getName());
+                files.add(f);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, CountingS3HandlerImpl.DOWNLOADS.get());
+
+        // Each caller has its own file, in its own directory
+        for (int i = 1; i < files.size(); i++) {
+            assertNotEquals(files.get(0).getParentFile(), files.get(i).getParentFile());
+        }
+
+        // A file name with a path does not escape the directory
+        File linksDir = files.get(0).getParentFile().getParentFile();
+        blob.setFilename("../../escape.txt");
+        File escape = blobProvider.getFile(blob);
+        assertEquals("escape.txt", escape.getName());
+        assertEquals(linksDir, escape.getParentFile().getParentFile());
+        assertEquals(1, CountingS3HandlerImpl.DOWNLOADS.get());
+
+        blobProvider.close();
+    }
+
 }
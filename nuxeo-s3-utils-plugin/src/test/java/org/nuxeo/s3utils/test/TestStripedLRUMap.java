@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2023 Hyland (http://hyland.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.s3utils.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.nuxeo.s3utils.StripedLRUMap;
+
+/**
+ * No S3 access here, no need for the Nuxeo runtime
+ *
+ * @since 3.2.1
+ */
+public class TestStripedLRUMap {
+
+    @Test
+    public void testLRU() {
+
+        // One segment => strict LRU
+        StripedLRUMap<String, Integer> map = new StripedLRUMap<>(3, 1);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        // Access "a" => "b" is now the eldest
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        map.put("d", 4);
+
+        assertEquals(3, map.size());
+        assertNull(map.get("b"));
+        assertNotNull(map.get("a"));
+
+        assertFalse(map.remove("a", 2));
+        assertTrue(map.remove("a", 1));
+        assertNull(map.get("a"));
+
+        map.setMaxSize(1);
+        map.put("e", 5);
+        assertEquals(1, map.size());
+        assertNotNull(map.get("e"));
+    }
+
+    @Test
+    public void testBoundedUnderConcurrency() throws Exception {
+
+        int maxSize = 1000;
+        StripedLRUMap<String, Integer> map = new StripedLRUMap<>(maxSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        String key = "key-" + thread + "-" + i;
+                        map.put(key, i);
+                        map.get("key-" + thread + "-" + (i / 2));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Each segment holds maxSize / segments (rounded up)
+        assertTrue(map.size() <= maxSize + StripedLRUMap.DEFAULT_SEGMENTS);
+        assertTrue(map.size() > 0);
+
+        // A predicate that never matches lists the entries
+        Map<String, Integer> entries = new HashMap<>();
+        map.removeIf((key, value) -> {
+            entries.put(key, value);
+            return false;
+        });
+        assertEquals(map.size(), entries.size());
+        long odd = entries.values().stream().filter(value -> value % 2 != 0).count();
+        assertTrue(odd > 0 && odd < entries.size());
+
+        map.removeIf((key, value) -> value % 2 == 0);
+        assertEquals(odd, map.size());
+        entries.forEach((key, value) -> {
+            if (value % 2 == 0) {
+                assertNull(map.get(key));
+            } else {
+                assertEquals(value, map.get(key));
+            }
+        });
+
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+}